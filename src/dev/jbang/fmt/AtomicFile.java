@@ -0,0 +1,66 @@
+package dev.jbang.fmt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Replaces files atomically: the content goes to a temporary file next to the
+ * target, which is then renamed over it, so readers and interrupted runs never
+ * see a partial file. Used for state files (incremental state, quarantine,
+ * reports) and formatted sources.
+ */
+final class AtomicFile {
+
+	interface Content {
+		void writeTo(BufferedWriter writer) throws IOException;
+	}
+
+	private interface TempWriter {
+		void write(Path tmp) throws IOException;
+	}
+
+	private AtomicFile() {
+	}
+
+	static void write(Path file, Content content) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		replace(file, tmp -> {
+			try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				content.writeTo(w);
+			}
+		});
+	}
+
+	/**
+	 * Replaces an existing file, e.g. a source, keeping its permissions. A
+	 * symbolic link is kept too, the file it points to is replaced.
+	 */
+	static void write(Path file, byte[] content) throws IOException {
+		Path target = file.toRealPath();
+		replace(target, tmp -> {
+			Files.write(tmp, content);
+			// the temporary file is only readable by its owner
+			var permissions = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+			if (permissions != null) {
+				Files.setPosixFilePermissions(tmp, permissions.readAttributes().permissions());
+			}
+		});
+	}
+
+	private static void replace(Path file, TempWriter writer) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+		try {
+			writer.write(tmp);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package dev.jbang.fmt;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link BlockingQueue} that hands out elements in comparator order but, unlike
+ * {@link java.util.concurrent.PriorityBlockingQueue}, has a fixed capacity so
+ * producers get back-pressure just like with an
+ * {@link java.util.concurrent.ArrayBlockingQueue}. Elements that compare
+ * equal are handed out in the order they were put.
+ */
+public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	// the sequence number keeps equal elements in insertion order
+	private record Node<E>(E element, long seq) {
+	}
+
+	private final int capacity;
+	private final PriorityQueue<Node<E>> queue;
+	private long seq;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	public BoundedPriorityBlockingQueue(int capacity, Comparator<? super E> comparator) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.queue = new PriorityQueue<>(Math.min(capacity, 1024), (a, b) -> {
+			int c = comparator.compare(a.element(), b.element());
+			return c != 0 ? c : Long.compare(a.seq(), b.seq());
+		});
+	}
+
+	@Override
+	public boolean offer(E e) {
+		lock.lock();
+		try {
+			if (queue.size() >= capacity) {
+				return false;
+			}
+			enqueue(e);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (queue.size() >= capacity) {
+				notFull.await();
+			}
+			enqueue(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (queue.size() >= capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			enqueue(e);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (queue.isEmpty()) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (queue.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E poll() {
+		lock.lock();
+		try {
+			return queue.isEmpty() ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(E e) {
+		queue.add(new Node<>(e, seq++));
+		notEmpty.signal();
+	}
+
+	private E dequeue() {
+		E e = queue.poll().element();
+		notFull.signal();
+		return e;
+	}
+
+	@Override
+	public E peek() {
+		lock.lock();
+		try {
+			Node<E> head = queue.peek();
+			return head == null ? null : head.element();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		lock.lock();
+		try {
+			int n = 0;
+			while (n < maxElements && !queue.isEmpty()) {
+				c.add(queue.poll().element());
+				n++;
+			}
+			if (n > 0) {
+				notFull.signalAll();
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the elements, in no particular order.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		lock.lock();
+		try {
+			return queue.stream().map(Node::element).toList().iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
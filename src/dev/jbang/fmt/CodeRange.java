@@ -12,6 +12,8 @@ public record CodeRange(int start, int end) {
 	 * directives)
 	 */
 	public static List<CodeRange> identifyJavaRanges(String content) {
+		var event = new FmtEvents.RangeScan();
+		event.begin();
 		List<CodeRange> ranges = new ArrayList<>();
 		String[] lines = content.split("\n", -1);
 
@@ -23,7 +25,7 @@ public record CodeRange(int start, int end) {
 			String line = lines[i];
 			int lineLength = line.length();
 
-			if (isJBangDirective(line) || (i == 0 && line.startsWith("//"))) {
+			if (isProtected(line, i)) {
 				// End current Java range if we were in one
 				if (inJavaCode) {
 					ranges.add(new CodeRange(javaStart, currentPos));
@@ -49,9 +51,39 @@ public record CodeRange(int start, int end) {
 			ranges.add(new CodeRange(javaStart, currentPos));
 		}
 
+		event.end();
+		if (event.shouldCommit()) {
+			event.file = FmtEvents.currentFile();
+			event.size = content.length();
+			event.ranges = ranges.size();
+			event.commit();
+		}
 		return ranges;
 	}
 
+	/**
+	 * The parts of the ranges that lie within [start, end)
+	 */
+	public static List<CodeRange> intersect(List<CodeRange> ranges, int start, int end) {
+		List<CodeRange> result = new ArrayList<>();
+		for (CodeRange range : ranges) {
+			int from = Math.max(range.start(), start);
+			int to = Math.min(range.end(), end);
+			if (from < to) {
+				result.add(new CodeRange(from, to));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks if a line must be left untouched: a JBang directive or a comment on
+	 * the first line (which usually holds the shebang)
+	 */
+	static boolean isProtected(String line, int lineIndex) {
+		return isJBangDirective(line) || (lineIndex == 0 && line.startsWith("//"));
+	}
+
 	/**
 	 * Checks if a line is a JBang directive
 	 */
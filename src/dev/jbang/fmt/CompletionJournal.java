@@ -0,0 +1,253 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.error;
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only log of the files a run has completed ({@code --journal}), so a
+ * run that was interrupted, e.g. by a preempted CI job, resumes where it
+ * stopped instead of starting over.
+ * <p>
+ * The journal starts with the fingerprint of the formatter settings; with other
+ * settings it is started anew. Each following line holds the size,
+ * modification time, content hash and absolute path of a file that was clean,
+ * or written formatted, at that time. A file whose size and modification time
+ * still match is done without reading it; otherwise one whose content hash
+ * matches is. Later lines win, and a line torn by the interruption is ignored.
+ * <p>
+ * Consumers only queue their lines; a single writer thread appends them in
+ * batches and syncs the file to disk at most once per {@link #SYNC_INTERVAL},
+ * so journaling never makes formatting wait for the disk. Closing writes and
+ * syncs the rest. Once writing fails, the run goes on without a journal.
+ */
+public class CompletionJournal implements AutoCloseable {
+
+	private static final String HEADER = "# jbang-fmt journal ";
+
+	static final long SYNC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int BATCH_SIZE = 64 * 1024;
+
+	record Done(long size, long lastModified, String hash) {
+	}
+
+	private final Path file;
+	private final Map<String, Done> previous;
+	private final FileChannel channel;
+	private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+	private final Thread writer;
+	private volatile boolean closed;
+	// set when writing failed, lines are no longer queued
+	private volatile boolean failed;
+	private int appended;
+
+	private CompletionJournal(Path file, Map<String, Done> previous, FileChannel channel) {
+		this.file = file;
+		this.previous = previous;
+		this.channel = channel;
+		writer = Thread.ofPlatform().name("fmt-journal").daemon().start(this::drain);
+	}
+
+	/**
+	 * Opens the journal for appending, reading what earlier runs with the same
+	 * settings completed.
+	 */
+	public static CompletionJournal open(Path file, String fingerprint) throws IOException {
+		Map<String, Done> previous = new HashMap<>();
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			// the last line is only complete with its newline
+			long complete = completeLength(channel);
+			boolean torn = complete < channel.size();
+			boolean resume = false;
+			if (complete > 0) {
+				try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+					resume = (HEADER + fingerprint).equals(reader.readLine());
+					String next = resume ? reader.readLine() : null;
+					while (next != null) {
+						String line = next;
+						next = reader.readLine();
+						if (next == null && torn) {
+							break;
+						}
+						String[] parts = line.split("\t", 4);
+						if (parts.length == 4) {
+							try {
+								previous.put(parts[3],
+										new Done(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+							} catch (NumberFormatException e) {
+								// not a journal line, the file is simply done again
+							}
+						}
+					}
+				}
+			}
+			if (resume) {
+				verbose("Resuming from " + file + " with " + previous.size() + " completed files");
+				channel.truncate(complete);
+				channel.position(complete);
+			} else {
+				if (complete > 0) {
+					verbose("Formatter settings changed since " + file + " was written, starting a new journal");
+				}
+				channel.truncate(0);
+				channel.write(ByteBuffer.wrap((HEADER + fingerprint + "\n").getBytes(StandardCharsets.UTF_8)));
+			}
+			return new CompletionJournal(file, previous, channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static long completeLength(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		for (long end = channel.size(); end > 0;) {
+			long start = Math.max(0, end - buffer.capacity());
+			buffer.clear().limit((int) (end - start));
+			int read;
+			do {
+				read = channel.read(buffer, start + buffer.position());
+			} while (read > 0 && buffer.hasRemaining());
+			for (int i = buffer.position() - 1; i >= 0; i--) {
+				if (buffer.get(i) == '\n') {
+					return start + i + 1;
+				}
+			}
+			end = start;
+		}
+		return 0;
+	}
+
+	/**
+	 * Whether the file was completed and is unchanged since, by its size and
+	 * modification time.
+	 */
+	public boolean isDone(Path path, long size, long lastModified) {
+		Done done = previous.get(key(path));
+		return done != null && done.size() == size && done.lastModified() == lastModified;
+	}
+
+	/**
+	 * Whether the file was completed with this content.
+	 */
+	public boolean isDone(Path path, String hash) {
+		Done done = previous.get(key(path));
+		return done != null && done.hash().equals(hash);
+	}
+
+	/**
+	 * Journals a file as completed, with the hash of its content as on disk now.
+	 */
+	public void completed(Path path, String hash) throws IOException {
+		if (failed) {
+			return;
+		}
+		var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		pending.offer(attrs.size() + "\t" + attrs.lastModifiedTime().toMillis() + "\t" + hash + "\t" + key(path)
+				+ "\n");
+		LockSupport.unpark(writer);
+	}
+
+	private void drain() {
+		long lastSync = System.nanoTime();
+		boolean unsynced = false;
+		StringBuilder batch = new StringBuilder();
+		while (true) {
+			boolean closing = closed;
+			String line;
+			while (batch.length() < BATCH_SIZE && (line = pending.poll()) != null) {
+				batch.append(line);
+				appended++;
+			}
+			try {
+				if (!batch.isEmpty()) {
+					ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+					while (bytes.hasRemaining()) {
+						channel.write(bytes);
+					}
+					batch.setLength(0);
+					unsynced = true;
+				}
+				if (unsynced && (closing || System.nanoTime() - lastSync >= SYNC_INTERVAL)) {
+					channel.force(false);
+					lastSync = System.nanoTime();
+					unsynced = false;
+				}
+			} catch (IOException e) {
+				// e.g. ClosedChannelException has no message
+				String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+				error("Warning: cannot write journal " + file + ": " + reason);
+				failed = true;
+				pending.clear();
+				return;
+			}
+			if (closing && pending.isEmpty()) {
+				return;
+			}
+			if (pending.isEmpty()) {
+				LockSupport.parkNanos(unsynced ? SYNC_INTERVAL : Long.MAX_VALUE);
+			}
+		}
+	}
+
+	/**
+	 * Writes and syncs the lines still queued, and closes the journal.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			channel.close();
+		}
+		verbose("Journaled " + appended + " completed files in " + file);
+	}
+
+	/**
+	 * The channel lines are appended to, for tests to fail the writer.
+	 */
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Whether writing failed, so lines are no longer queued.
+	 */
+	boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * The number of lines queued for the writer thread.
+	 */
+	int getQueued() {
+		return pending.size();
+	}
+
+	private static String key(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+}
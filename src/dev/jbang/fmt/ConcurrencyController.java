@@ -0,0 +1,147 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Tunes how many files are formatted at the same time ({@code --adaptive-threads})
+ * by hill climbing on measured throughput, as the best level differs widely
+ * between laptops, throttled containers and runners on network storage.
+ * <p>
+ * Each level is measured for {@link #WINDOWS} windows of {@link #WINDOW}, and
+ * the bytes (or, when only up-to-date files were seen, the files) completed per
+ * second over them are compared with the previous level, when it was measured
+ * in the same unit; otherwise the level is the new baseline. Bytes count when a
+ * file is done, not when it is read, and a single window holds few large files,
+ * so measuring over several keeps one slow file from turning the climb around.
+ * The level keeps moving one step in the same direction while throughput holds
+ * up, and turns around when it drops by more than {@link #TOLERANCE}, so it
+ * settles into oscillating around the best level, or stays at --min-threads or
+ * --max-threads when that is best. Windows where nothing completed, e.g. while
+ * discovery is behind, are not measured.
+ */
+final class ConcurrencyController implements AutoCloseable {
+
+	static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+	/** Windows measured at each level before taking a step. */
+	static final int WINDOWS = 3;
+
+	/** Relative drop in throughput that counts as worse rather than noise. */
+	static final double TOLERANCE = 0.05;
+
+	private final FormatService service;
+	private final LongSupplier files;
+	private final LongSupplier bytes;
+	private final int min;
+	private final int max;
+	private final Thread thread;
+
+	// time measured at each level, shown with --verbose
+	private final TreeMap<Integer, Long> nanosAtLevel = new TreeMap<>();
+
+	private int direction = 1;
+	private double previous = -1;
+	private boolean previousInBytes;
+
+	ConcurrencyController(FormatService service, LongSupplier files, LongSupplier bytes, int min, int max) {
+		this.service = service;
+		this.files = files;
+		this.bytes = bytes;
+		this.min = min;
+		this.max = Math.min(max, service.getMaxParallelism());
+		thread = Thread.ofPlatform().name("fmt-concurrency").daemon().start(this::run);
+	}
+
+	private void run() {
+		long lastFiles = files.getAsLong();
+		long lastBytes = bytes.getAsLong();
+		long lastTime = System.nanoTime();
+		// totals over the windows measured at the current level
+		long measuredFiles = 0;
+		long measuredBytes = 0;
+		long measuredNanos = 0;
+		int windows = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(WINDOW);
+			} catch (InterruptedException e) {
+				break;
+			}
+			long now = System.nanoTime();
+			long f = files.getAsLong();
+			long b = bytes.getAsLong();
+			if (f > lastFiles) {
+				record(service.getParallelism(), now - lastTime);
+				measuredFiles += f - lastFiles;
+				measuredBytes += b - lastBytes;
+				measuredNanos += now - lastTime;
+				if (++windows == WINDOWS) {
+					double seconds = measuredNanos / 1e9;
+					boolean inBytes = measuredBytes > 0;
+					adapt((inBytes ? measuredBytes : measuredFiles) / seconds, inBytes);
+					measuredFiles = 0;
+					measuredBytes = 0;
+					measuredNanos = 0;
+					windows = 0;
+				}
+			}
+			lastFiles = f;
+			lastBytes = b;
+			lastTime = now;
+		}
+	}
+
+	private synchronized void record(int level, long nanos) {
+		nanosAtLevel.merge(level, nanos, Long::sum);
+	}
+
+	/**
+	 * Takes one step from the current level given the throughput measured at
+	 * it, in bytes or in files per second.
+	 */
+	void adapt(double throughput, boolean inBytes) {
+		int level = service.getParallelism();
+		// files and bytes per second do not compare
+		if (previous >= 0 && inBytes == previousInBytes && throughput < previous * (1 - TOLERANCE)) {
+			direction = -direction;
+		}
+		previous = throughput;
+		previousInBytes = inBytes;
+		// at a bound it stays there until throughput drops
+		int next = Math.clamp(level + direction, min, max);
+		if (next != level) {
+			service.setParallelism(next);
+			verbose(String.format("%.1f %s/s at %d threads, trying %d", throughput, inBytes ? "bytes" : "files",
+					level, next));
+		}
+	}
+
+	/**
+	 * The level the run ended at; with short runs the time at each level is
+	 * dominated by the start, while the JIT still warms up.
+	 */
+	int getLevel() {
+		return service.getParallelism();
+	}
+
+	synchronized String getStatistics() {
+		StringBuilder sb = new StringBuilder("Time at each number of threads:");
+		nanosAtLevel.forEach((level, nanos) -> sb.append(String.format(" %d: %.1fs", level, nanos / 1e9)));
+		return sb.toString();
+	}
+
+	@Override
+	public void close() {
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		verbose(getStatistics());
+	}
+}
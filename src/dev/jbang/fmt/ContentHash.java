@@ -0,0 +1,28 @@
+package dev.jbang.fmt;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * SHA-256 hashes, hex encoded, used to recognize content and settings across
+ * runs.
+ */
+public final class ContentHash {
+
+	private ContentHash() {
+	}
+
+	public static String of(String content) {
+		return of(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static String of(byte[] bytes) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+}
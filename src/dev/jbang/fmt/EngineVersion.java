@@ -0,0 +1,39 @@
+package dev.jbang.fmt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.jar.Manifest;
+
+/**
+ * The version of a formatting engine, read from the manifest of the jar it is
+ * loaded from, so fingerprints change when the engine is upgraded.
+ */
+final class EngineVersion {
+
+	private EngineVersion() {
+	}
+
+	/**
+	 * The manifest attribute (e.g. {@code Bundle-Version}) of the jar holding
+	 * the class, or "unknown" when it is not loaded from a jar that has one.
+	 */
+	static String of(Class<?> engine, String attribute) {
+		String classFile = engine.getName().replace('.', '/') + ".class";
+		var resource = engine.getClassLoader() != null ? engine.getClassLoader().getResource(classFile) : null;
+		if (resource != null && "jar".equals(resource.getProtocol())) {
+			String jar = resource.toString();
+			jar = jar.substring(0, jar.length() - classFile.length()) + "META-INF/MANIFEST.MF";
+			try (InputStream in = URI.create(jar).toURL().openStream()) {
+				String version = new Manifest(in).getMainAttributes().getValue(attribute);
+				if (version != null) {
+					return version;
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				// reported as unknown
+			}
+		}
+		String version = engine.getPackage().getImplementationVersion();
+		return version != null ? version : "unknown";
+	}
+}
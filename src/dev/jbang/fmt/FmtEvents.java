@@ -0,0 +1,154 @@
+package dev.jbang.fmt;
+
+import java.util.concurrent.Callable;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the formatting phases. They cost next to
+ * nothing unless a recording is running, e.g. started with {@code --jfr} or
+ * {@code jcmd <pid> JFR.start}.
+ * <p>
+ * Events raised below {@link FormatterBackend#format(String)} do not know
+ * which file they belong to; the file being formatted by the current thread is
+ * taken from {@link #withFile(String, Callable)}.
+ */
+final class FmtEvents {
+
+	private static final ThreadLocal<String> currentFile = new ThreadLocal<>();
+
+	private FmtEvents() {
+	}
+
+	/**
+	 * Runs the task with file as the current file for events.
+	 */
+	static <T> T withFile(String file, Callable<T> task) throws Exception {
+		String previous = currentFile.get();
+		currentFile.set(file);
+		try {
+			return task.call();
+		} finally {
+			currentFile.set(previous);
+		}
+	}
+
+	static String currentFile() {
+		return currentFile.get();
+	}
+
+	@Name("dev.jbang.fmt.SettingsLoad")
+	@Label("Settings Load")
+	@Category("jbang-fmt")
+	@StackTrace(false)
+	static class SettingsLoad extends Event {
+		@Label("Source")
+		String source;
+
+		@Label("Settings")
+		int settings;
+	}
+
+	@Name("dev.jbang.fmt.FormatterCreate")
+	@Label("Formatter Create")
+	@Category("jbang-fmt")
+	@StackTrace(false)
+	static class FormatterCreate extends Event {
+		@Label("Engine")
+		String engine;
+
+		@Label("Formatter")
+		String formatter;
+	}
+
+	@Name("dev.jbang.fmt.RangeScan")
+	@Label("Directive Range Scan")
+	@Description("Finding the ranges outside JBang directives")
+	@Category("jbang-fmt")
+	@StackTrace(false)
+	static class RangeScan extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+
+		@Label("Ranges")
+		int ranges;
+	}
+
+	@Name("dev.jbang.fmt.Format")
+	@Label("Format")
+	@Description("The formatter engine computing edits")
+	@Category("jbang-fmt")
+	@StackTrace(false)
+	static class Format extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Engine")
+		String engine;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+
+		@Label("Edits")
+		int edits;
+
+		@Label("Failed")
+		boolean failed;
+	}
+
+	@Name("dev.jbang.fmt.ApplyEdits")
+	@Label("Apply Edits")
+	@Category("jbang-fmt")
+	@StackTrace(false)
+	static class ApplyEdits extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Edits")
+		int edits;
+
+		@Label("Formatted Size")
+		@DataAmount
+		long size;
+
+		@Label("Changed")
+		boolean changed;
+	}
+
+	@Name("dev.jbang.fmt.FileRead")
+	@Label("File Read")
+	@Category("jbang-fmt")
+	@StackTrace(false)
+	static class FileRead extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+	}
+
+	@Name("dev.jbang.fmt.FileWrite")
+	@Label("File Write")
+	@Category("jbang-fmt")
+	@StackTrace(false)
+	static class FileWrite extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+	}
+}
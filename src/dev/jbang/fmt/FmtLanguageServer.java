@@ -0,0 +1,307 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.error;
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import org.eclipse.lsp4j.DidChangeConfigurationParams;
+import org.eclipse.lsp4j.DidChangeTextDocumentParams;
+import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.DidCloseTextDocumentParams;
+import org.eclipse.lsp4j.DidOpenTextDocumentParams;
+import org.eclipse.lsp4j.DidSaveTextDocumentParams;
+import org.eclipse.lsp4j.DocumentFormattingParams;
+import org.eclipse.lsp4j.DocumentOnTypeFormattingOptions;
+import org.eclipse.lsp4j.DocumentOnTypeFormattingParams;
+import org.eclipse.lsp4j.DocumentRangeFormattingParams;
+import org.eclipse.lsp4j.InitializeParams;
+import org.eclipse.lsp4j.InitializeResult;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.ServerCapabilities;
+import org.eclipse.lsp4j.ServerInfo;
+import org.eclipse.lsp4j.TextDocumentSyncKind;
+import org.eclipse.lsp4j.TextEdit;
+import org.eclipse.lsp4j.services.LanguageClient;
+import org.eclipse.lsp4j.services.LanguageClientAware;
+import org.eclipse.lsp4j.services.LanguageServer;
+import org.eclipse.lsp4j.services.TextDocumentService;
+import org.eclipse.lsp4j.services.WorkspaceService;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Language server ({@code --lsp}) offering document, range and on-type
+ * formatting over stdio, so editors keep one warm formatter instead of starting
+ * a JVM per save.
+ * <p>
+ * The style comes from the {@code style} initialization option or the
+ * {@code jbang-fmt.style} setting, defaulting to the command line; one
+ * formatter is kept per style. Requested ranges are intersected with the
+ * ranges outside JBang directives, and results are returned as the edits of
+ * the formatter (or a line diff) rather than a whole document replacement.
+ * <p>
+ * {@code .jsh} scripts and Markdown files are formatted as on the command
+ * line, each Java snippet overlapping the range as a whole. Documents of a kind
+ * the engine cannot format get no edits.
+ */
+public class FmtLanguageServer implements LanguageServer, LanguageClientAware, TextDocumentService, WorkspaceService {
+
+	/**
+	 * Creates the formatter for a style.
+	 */
+	public interface FormatterFactory {
+		FormatterBackend create(String style) throws Exception;
+	}
+
+	private static final Pattern LONE_LF = Pattern.compile("(?<!\r)\n");
+
+	private final FormatterFactory factory;
+	private final Map<String, FormatterBackend> formatters = new ConcurrentHashMap<>();
+	private final Map<String, String> documents = new ConcurrentHashMap<>();
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private volatile String style;
+	private volatile boolean shutdown;
+	private volatile Runnable onExit = () -> {
+	};
+
+	public FmtLanguageServer(FormatterFactory factory, String style) {
+		this.factory = factory;
+		this.style = style;
+	}
+
+	@Override
+	public void connect(LanguageClient client) {
+		// edits are returned as responses, nothing is pushed to the client
+	}
+
+	/**
+	 * Called when the client sends exit.
+	 */
+	public void onExit(Runnable onExit) {
+		this.onExit = onExit;
+	}
+
+	/**
+	 * Exit code as the protocol asks: 0 if shutdown came before exit.
+	 */
+	public int getExitCode() {
+		return shutdown ? 0 : 1;
+	}
+
+	@Override
+	public CompletableFuture<InitializeResult> initialize(InitializeParams params) {
+		styleFrom(params.getInitializationOptions());
+
+		var capabilities = new ServerCapabilities();
+		capabilities.setTextDocumentSync(TextDocumentSyncKind.Full);
+		capabilities.setDocumentFormattingProvider(true);
+		capabilities.setDocumentRangeFormattingProvider(true);
+		capabilities.setDocumentOnTypeFormattingProvider(new DocumentOnTypeFormattingOptions("}", List.of(";", "\n")));
+		return CompletableFuture.completedFuture(new InitializeResult(capabilities, new ServerInfo("jbang-fmt")));
+	}
+
+	@Override
+	public CompletableFuture<Object> shutdown() {
+		shutdown = true;
+		executor.shutdown();
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public void exit() {
+		onExit.run();
+	}
+
+	@Override
+	public TextDocumentService getTextDocumentService() {
+		return this;
+	}
+
+	@Override
+	public WorkspaceService getWorkspaceService() {
+		return this;
+	}
+
+	@Override
+	public void didOpen(DidOpenTextDocumentParams params) {
+		documents.put(params.getTextDocument().getUri(), params.getTextDocument().getText());
+	}
+
+	@Override
+	public void didChange(DidChangeTextDocumentParams params) {
+		// full sync: the last change holds the whole text
+		var changes = params.getContentChanges();
+		if (!changes.isEmpty()) {
+			documents.put(params.getTextDocument().getUri(), changes.get(changes.size() - 1).getText());
+		}
+	}
+
+	@Override
+	public void didClose(DidCloseTextDocumentParams params) {
+		documents.remove(params.getTextDocument().getUri());
+	}
+
+	@Override
+	public void didSave(DidSaveTextDocumentParams params) {
+	}
+
+	@Override
+	public void didChangeConfiguration(DidChangeConfigurationParams params) {
+		if (params.getSettings() instanceof JsonObject settings && settings.get("jbang-fmt") != null) {
+			styleFrom(settings.get("jbang-fmt"));
+		} else {
+			styleFrom(params.getSettings());
+		}
+	}
+
+	@Override
+	public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+	}
+
+	@Override
+	public CompletableFuture<List<? extends TextEdit>> formatting(DocumentFormattingParams params) {
+		String uri = params.getTextDocument().getUri();
+		return format(uri, content -> new int[] { 0, content.length() });
+	}
+
+	@Override
+	public CompletableFuture<List<? extends TextEdit>> rangeFormatting(DocumentRangeFormattingParams params) {
+		String uri = params.getTextDocument().getUri();
+		Range range = params.getRange();
+		return format(uri, content -> {
+			int[] starts = TextDiff.lineStarts(content);
+			return new int[] { offset(starts, content, range.getStart()), offset(starts, content, range.getEnd()) };
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<? extends TextEdit>> onTypeFormatting(DocumentOnTypeFormattingParams params) {
+		String uri = params.getTextDocument().getUri();
+		int line = params.getPosition().getLine();
+		// after a newline, the line just finished is the one to format
+		int first = "\n".equals(params.getCh()) ? Math.max(0, line - 1) : line;
+		return format(uri, content -> {
+			int[] starts = TextDiff.lineStarts(content);
+			return new int[] { offset(starts, content, new Position(first, 0)),
+					offset(starts, content, new Position(line + 1, 0)) };
+		});
+	}
+
+	private interface Span {
+		int[] of(String content);
+	}
+
+	private CompletableFuture<List<? extends TextEdit>> format(String uri, Span span) {
+		String content = documents.get(uri);
+		if (content == null) {
+			return CompletableFuture.completedFuture(List.of());
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				FormatterBackend formatter = formatter();
+				// documents that are no files, like new buffers, are taken as Java
+				SourceKind kind = SourceKind.of(uri);
+				if (kind != null && !formatter.supports(kind.getCodeKind())) {
+					return List.of();
+				}
+				int[] requested = span.of(content);
+				if (kind != null && kind != SourceKind.java) {
+					return toTextEdits(content,
+							FmtEvents.withFile(uri, () -> snippetEdits(kind, content, formatter, requested)));
+				}
+				List<CodeRange> selected = CodeRange.intersect(formatter.formattableRanges(content), requested[0],
+						requested[1]);
+				if (selected.isEmpty()) {
+					return List.of();
+				}
+				return toTextEdits(content, FmtEvents.withFile(uri, () -> formatter.formatEdits(content, selected)));
+			} catch (Exception e) {
+				error("Failed formatting " + uri + ": " + e.getMessage());
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * The edits of a .jsh or Markdown document for the Java snippets that overlap
+	 * the span, each formatted as a whole, narrowed down to the changed lines.
+	 */
+	private static List<FormatEdit> snippetEdits(SourceKind kind, String content, FormatterBackend formatter,
+			int[] span) throws Exception {
+		List<FormatEdit> edits = new ArrayList<>(kind.snippetEdits(content, formatter));
+		edits.removeIf(e -> e.offset() > span[1] || e.offset() + e.length() < span[0]);
+		return edits.isEmpty() ? List.of() : TextDiff.diff(content, FormatEdit.apply(content, edits));
+	}
+
+	private FormatterBackend formatter() {
+		return formatters.computeIfAbsent(style, s -> {
+			try {
+				verbose("Creating formatter for style " + s);
+				return factory.create(s);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	private void styleFrom(Object options) {
+		if (options instanceof JsonObject o && o.get("style") instanceof JsonElement e && e.isJsonPrimitive()) {
+			style = e.getAsString();
+		}
+	}
+
+	/**
+	 * Converts edits to LSP text edits. The formatter breaks lines with \n, so in
+	 * a document using \r\n the inserted line breaks are converted to match.
+	 */
+	static List<TextEdit> toTextEdits(String content, List<FormatEdit> edits) {
+		int[] starts = TextDiff.lineStarts(content);
+		boolean crlf = content.contains("\r\n");
+		List<TextEdit> result = new ArrayList<>(edits.size());
+		for (FormatEdit edit : edits) {
+			String text = crlf ? LONE_LF.matcher(edit.text()).replaceAll("\r\n") : edit.text();
+			result.add(new TextEdit(new Range(position(starts, edit.offset()),
+					position(starts, edit.offset() + edit.length())), text));
+		}
+		return result;
+	}
+
+	/**
+	 * Offset of an LSP position (UTF-16 based, like Java strings), clamped to the
+	 * end of its line.
+	 */
+	static int offset(int[] starts, String content, Position p) {
+		if (p.getLine() >= starts.length) {
+			return content.length();
+		}
+		int lineEnd = p.getLine() + 1 < starts.length ? starts[p.getLine() + 1] : content.length();
+		// a character past the end of the line means its end, before \n or \r\n
+		if (lineEnd > starts[p.getLine()] && content.charAt(lineEnd - 1) == '\n') {
+			lineEnd--;
+			if (lineEnd > starts[p.getLine()] && content.charAt(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+		}
+		return Math.min(starts[p.getLine()] + p.getCharacter(), lineEnd);
+	}
+
+	static Position position(int[] starts, int offset) {
+		int line = Arrays.binarySearch(starts, offset);
+		if (line < 0) {
+			line = -line - 2;
+		}
+		return new Position(line, offset - starts[line]);
+	}
+}
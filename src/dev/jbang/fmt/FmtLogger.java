@@ -1,48 +1,240 @@
 package dev.jbang.fmt;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
 import picocli.CommandLine.Option;
 import picocli.CommandLine.ScopeType;
 
-// stupid simple "hack" for easy control of verbose and quiet output
+/**
+ * Simple logger with easy control of verbose and quiet output.
+ * <p>
+ * Messages are put on a lock-free queue and written by a single writer thread
+ * through large buffers, so formatting threads never contend on the
+ * synchronized {@code System.out}/{@code System.err} streams. Call
+ * {@link #flush()} before exiting to make sure everything queued is written.
+ * <p>
+ * Formatted content for {@code --stdout} is held back by the writer: once
+ * {@link #OUTPUT_LIMIT} characters of it are queued, {@link #output(String)}
+ * blocks until some are written, so piping many files does not keep all of them
+ * in memory.
+ */
 public class FmtLogger {
 
-	static boolean verbose = false;
-	static boolean quiet = false;
+	enum Level {
+		ERROR,
+		INFO,
+		VERBOSE
+	}
+
+	enum Format {
+		text,
+		json
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Characters of --stdout content that may be queued before output blocks. */
+	static final int OUTPUT_LIMIT = 8 * 1024 * 1024;
+
+	static volatile Level level = Level.INFO;
+	static volatile Format format = Format.text;
+
+	/** Set when stdout carries a protocol (--lsp); all messages then go to stderr. */
+	static volatile boolean stderrOnly;
+
+	private record Entry(Level level, boolean raw, String message, CountDownLatch flushed, Instant time,
+			String thread) {
+
+		Entry(Level level, boolean raw, String message, CountDownLatch flushed) {
+			this(level, raw, message, flushed, format == Format.json ? Instant.now() : null,
+					format == Format.json ? Thread.currentThread().getName() : null);
+		}
+	}
+
+	private static final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+	private static final Semaphore outputSpace = new Semaphore(OUTPUT_LIMIT);
+	private static final AtomicBoolean idle = new AtomicBoolean();
+	private static final Thread writer = Thread.ofPlatform()
+		.name("fmt-logger")
+		.daemon()
+		.start(FmtLogger::drain);
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(FmtLogger::flush, "fmt-logger-flush"));
+	}
 
 	@Option(names = {
 			"--verbose" }, description = "Be verbose on what it does.", scope = ScopeType.INHERIT)
 	void setVerbose(boolean value) {
-		verbose = value;
+		level = value ? Level.VERBOSE : Level.INFO;
 	}
 
 	@Option(names = {
 			"--quiet", "-q" }, description = "Be quiet, only print when error occurs.", scope = ScopeType.INHERIT)
 	void setQuiet(boolean value) {
-		quiet = value;
+		level = value ? Level.ERROR : Level.INFO;
+	}
+
+	static boolean isEnabled(Level l) {
+		return l.compareTo(level) <= 0;
+	}
+
+	public static boolean isVerbose() {
+		return isEnabled(Level.VERBOSE);
 	}
 
 	public static void info(String message) {
-		if (!quiet) {
-			System.out.println(message);
+		if (isEnabled(Level.INFO)) {
+			log(Level.INFO, message);
 		}
 	}
 
 	public static void requiredInfo(String message) {
-		System.out.println(message);
+		log(Level.INFO, message);
+	}
+
+	/**
+	 * Writes content as-is to stdout, regardless of log level and format. Used
+	 * for formatted output that is meant to be piped. Blocks while the writer is
+	 * {@link #OUTPUT_LIMIT} characters behind.
+	 */
+	public static void output(String content) {
+		content = String.valueOf(content);
+		outputSpace.acquireUninterruptibly(outputPermits(content));
+		enqueue(new Entry(Level.INFO, true, content, null));
+	}
+
+	// content larger than the limit waits for the writer to catch up completely
+	private static int outputPermits(String content) {
+		return Math.min(content.length(), OUTPUT_LIMIT);
 	}
 
 	public static void verbose(String message) {
-		if (verbose) {
-			System.out.println(message);
+		if (isEnabled(Level.VERBOSE)) {
+			log(Level.VERBOSE, message);
 		}
 	}
 
 	public static void error(String message) {
-		System.err.println(message);
+		log(Level.ERROR, message);
 	}
 
 	public static void error(String message, Exception e) {
-		System.err.println(message);
-		e.printStackTrace(System.err);
+		StringWriter trace = new StringWriter();
+		e.printStackTrace(new PrintWriter(trace));
+		log(Level.ERROR, message + System.lineSeparator() + trace.toString().stripTrailing());
+	}
+
+	/**
+	 * Blocks until all messages queued so far have been written and flushed.
+	 */
+	public static void flush() {
+		if (Thread.currentThread() == writer || !writer.isAlive()) {
+			return;
+		}
+		var latch = new CountDownLatch(1);
+		enqueue(new Entry(null, false, null, latch));
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void log(Level l, String message) {
+		enqueue(new Entry(l, false, String.valueOf(message), null));
+	}
+
+	private static void enqueue(Entry entry) {
+		pending.offer(entry);
+		if (idle.compareAndSet(true, false)) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private static void drain() {
+		Writer out = open(System.out);
+		Writer err = open(System.err);
+		for (;;) {
+			Entry entry;
+			while ((entry = pending.poll()) != null) {
+				try {
+					if (entry.flushed() != null) {
+						out.flush();
+						err.flush();
+					} else {
+						Writer w = entry.level() == Level.ERROR || stderrOnly ? err : out;
+						w.write(entry.raw() ? entry.message() : render(entry));
+						w.write(System.lineSeparator());
+					}
+				} catch (IOException | RuntimeException e) {
+					// nowhere left to report it; drop the message, but keep writing
+				} finally {
+					if (entry.flushed() != null) {
+						entry.flushed().countDown();
+					} else if (entry.raw()) {
+						outputSpace.release(outputPermits(entry.message()));
+					}
+				}
+			}
+			try {
+				out.flush();
+				err.flush();
+			} catch (IOException e) {
+				// ignore, same as above
+			}
+			idle.set(true);
+			if (pending.isEmpty()) {
+				LockSupport.park();
+			}
+			idle.set(false);
+		}
+	}
+
+	private static Writer open(PrintStream stream) {
+		return new BufferedWriter(new OutputStreamWriter(stream, stream.charset()), BUFFER_SIZE);
+	}
+
+	private static String render(Entry entry) {
+		if (entry.time() == null) {
+			return entry.message();
+		}
+		return "{\"time\":\"" + entry.time() + "\",\"level\":\"" + entry.level().name().toLowerCase()
+				+ "\",\"thread\":" + quote(entry.thread()) + ",\"message\":" + quote(entry.message()) + "}";
+	}
+
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"' -> sb.append("\\\"");
+			case '\\' -> sb.append("\\\\");
+			case '\n' -> sb.append("\\n");
+			case '\r' -> sb.append("\\r");
+			case '\t' -> sb.append("\\t");
+			default -> {
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+			}
+		}
+		return sb.append('"').toString();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package dev.jbang.fmt;
+
+import java.util.List;
+
+/**
+ * Replacement of {@code length} characters at {@code offset} with
+ * {@code text}, in offsets of the original content.
+ */
+public record FormatEdit(int offset, int length, String text) {
+
+	/**
+	 * Applies edits sorted by offset and not overlapping to the content.
+	 */
+	public static String apply(String content, List<FormatEdit> edits) {
+		int size = content.length();
+		for (FormatEdit e : edits) {
+			size += e.text().length() - e.length();
+		}
+		StringBuilder sb = new StringBuilder(size);
+		int pos = 0;
+		for (FormatEdit e : edits) {
+			sb.append(content, pos, e.offset()).append(e.text());
+			pos = e.offset() + e.length();
+		}
+		return sb.append(content, pos, content.length()).toString();
+	}
+}
@@ -0,0 +1,134 @@
+package dev.jbang.fmt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers recent formatting results, so byte-identical files (generated or
+ * vendored copies) are formatted once.
+ * <p>
+ * Results are found by kind, length and {@link String#hashCode()} and only used
+ * when the content is equal, so no file pays for a cryptographic hash. The
+ * first request for some content formats; concurrent requests for the same
+ * content wait on its future, without holding a CPU permit, and the future is
+ * dropped once formatting is done. Finished results are kept in a least
+ * recently used map bounded to {@link #DEFAULT_CAPACITY} characters of content
+ * and formatted text, so memory stays bounded however many files a run has.
+ */
+class FormatMemo {
+
+	/** Characters of content and formatted text kept by default, about 16 MB. */
+	static final long DEFAULT_CAPACITY = 8 * 1024 * 1024;
+
+	private record Key(SourceKind kind, int length, int hash) {
+		static Key of(SourceKind kind, String content) {
+			return new Key(kind, content.length(), content.hashCode());
+		}
+	}
+
+	/** formatted is the content itself when it was clean. */
+	private record Done(String content, String formatted) {
+		long chars() {
+			return formatted == content ? content.length() : (long) content.length() + formatted.length();
+		}
+	}
+
+	private final FormatService service;
+	private final long capacity;
+	private final Map<Key, CompletableFuture<Done>> inFlight = new ConcurrentHashMap<>();
+	private final LinkedHashMap<Key, Done> recent = new LinkedHashMap<>(16, 0.75f, true);
+	private long chars;
+	private final LongAdder reused = new LongAdder();
+
+	/**
+	 * @param service  whose CPU permit duplicates give up while they wait
+	 * @param capacity characters of content and formatted text to keep
+	 */
+	FormatMemo(FormatService service, long capacity) {
+		this.service = service;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the formatted content, calling format only if no result for the
+	 * same content is known or in flight.
+	 */
+	String format(SourceKind kind, String content, Callable<String> format) throws Exception {
+		Key key = Key.of(kind, content);
+		String known = recent(key, content);
+		if (known != null) {
+			return known;
+		}
+		var mine = new CompletableFuture<Done>();
+		var existing = inFlight.putIfAbsent(key, mine);
+		if (existing != null) {
+			Done other;
+			try {
+				other = service.awaitWithoutPermit(existing);
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception cause ? cause : e;
+			}
+			if (other.content().equals(content)) {
+				reused.increment();
+				return other.formatted();
+			}
+			// same length and hash code, other content
+			return format.call();
+		}
+		try {
+			// finished between the lookup and taking the key
+			known = recent(key, content);
+			if (known != null) {
+				mine.complete(new Done(content, known));
+				return known;
+			}
+			String formatted = format.call();
+			Done done = new Done(content, formatted.equals(content) ? content : formatted);
+			remember(key, done);
+			mine.complete(done);
+			return formatted;
+		} catch (Exception | Error e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, mine);
+		}
+	}
+
+	private String recent(Key key, String content) {
+		Done done;
+		synchronized (recent) {
+			done = recent.get(key);
+		}
+		if (done != null && done.content().equals(content)) {
+			reused.increment();
+			return done.formatted();
+		}
+		return null;
+	}
+
+	private void remember(Key key, Done done) {
+		// a file this large is unlikely to have copies and would evict everything
+		if (done.chars() > capacity / 4) {
+			return;
+		}
+		synchronized (recent) {
+			Done replaced = recent.put(key, done);
+			chars += done.chars() - (replaced != null ? replaced.chars() : 0);
+			for (Iterator<Done> it = recent.values().iterator(); chars > capacity && it.hasNext();) {
+				chars -= it.next().chars();
+				it.remove();
+			}
+		}
+	}
+
+	long getReused() {
+		return reused.sum();
+	}
+}
@@ -0,0 +1,151 @@
+package dev.jbang.fmt;
+
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the statistics, work queue and CPU permits of a run through the
+ * platform MBean server, so tools like jconsole can watch long runs live. All
+ * attributes are read on demand from the counters the run keeps anyway.
+ * <p>
+ * Each consumer thread notes the file it is formatting in a slot of its own,
+ * so tracking the files in flight costs a volatile write per file rather than
+ * updates of a shared map.
+ */
+public class FormatRun implements FormatRunMBean, AutoCloseable {
+
+	static final String OBJECT_NAME = "dev.jbang.fmt:type=FormatRun";
+
+	private final Main.FileStats stats;
+	private final BlockingQueue<?> queue;
+	private final FormatService service;
+	// the run holding the object name, an earlier run must not unregister a later one
+	private static FormatRun registered;
+
+	private record Running(String file, long since) {
+	}
+
+	private static final class Slot {
+		volatile Running running;
+	}
+
+	private final Queue<Slot> slots = new ConcurrentLinkedQueue<>();
+	private final ThreadLocal<Slot> slot = ThreadLocal.withInitial(() -> {
+		var slot = new Slot();
+		slots.add(slot);
+		return slot;
+	});
+
+	FormatRun(Main.FileStats stats, BlockingQueue<?> queue, FormatService service) {
+		this.stats = stats;
+		this.queue = queue;
+		this.service = service;
+	}
+
+	/**
+	 * Registers this run with the platform MBean server, replacing an earlier
+	 * run that is still registered.
+	 */
+	FormatRun register() throws JMException {
+		synchronized (FormatRun.class) {
+			var server = ManagementFactory.getPlatformMBeanServer();
+			var name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			registered = this;
+		}
+		return this;
+	}
+
+	/**
+	 * Notes the file the current consumer thread starts formatting.
+	 */
+	void started(String file) {
+		slot.get().running = new Running(file, System.nanoTime());
+	}
+
+	void finished() {
+		slot.get().running = null;
+	}
+
+	@Override
+	public void close() throws JMException {
+		synchronized (FormatRun.class) {
+			if (registered == this) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+				registered = null;
+			}
+		}
+	}
+
+	@Override
+	public long getFilesProcessed() {
+		return stats.getProcessed();
+	}
+
+	@Override
+	public long getFilesModified() {
+		return stats.getModified();
+	}
+
+	@Override
+	public long getFilesSkipped() {
+		return stats.getSkipped();
+	}
+
+	@Override
+	public long getFilesUpToDate() {
+		return stats.getUpToDate();
+	}
+
+	@Override
+	public long getBytesProcessed() {
+		return stats.getBytes();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		double seconds = stats.getElapsedSeconds();
+		return seconds > 0 ? stats.getBytes() / seconds : 0;
+	}
+
+	@Override
+	public double getElapsedSeconds() {
+		return stats.getElapsedSeconds();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public int getActivePermits() {
+		return service.getActive();
+	}
+
+	@Override
+	public int getParallelism() {
+		return service.getParallelism();
+	}
+
+	@Override
+	public String[] getInFlightFiles() {
+		long now = System.nanoTime();
+		return slots.stream()
+			.map(s -> s.running)
+			.filter(Objects::nonNull)
+			.sorted(Comparator.comparingLong(Running::since))
+			.map(r -> String.format("%s (%.1fs)", r.file(), (now - r.since()) / 1e9))
+			.toArray(String[]::new);
+	}
+}
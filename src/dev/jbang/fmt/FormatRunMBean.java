@@ -0,0 +1,33 @@
+package dev.jbang.fmt;
+
+/**
+ * Live view of a formatting run, registered as
+ * {@value FormatRun#OBJECT_NAME} with {@code --jmx}.
+ */
+public interface FormatRunMBean {
+
+	long getFilesProcessed();
+
+	long getFilesModified();
+
+	long getFilesSkipped();
+
+	long getFilesUpToDate();
+
+	long getBytesProcessed();
+
+	double getBytesPerSecond();
+
+	double getElapsedSeconds();
+
+	/** Files discovered but not yet taken by a consumer. */
+	int getQueueDepth();
+
+	/** CPU permits in use, i.e. files being formatted right now. */
+	int getActivePermits();
+
+	int getParallelism();
+
+	/** Files being processed, each with how long it has been running. */
+	String[] getInFlightFiles();
+}
@@ -0,0 +1,469 @@
+package dev.jbang.fmt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Formats many sources in parallel with one warm formatter.
+ * <p>
+ * Work flows through a bounded queue (back-pressure on the producer) that is
+ * drained by virtual thread consumers, while a semaphore limits how many of
+ * them format at the same time. The semaphore belongs to the service, so
+ * concurrent calls share the same CPU budget; the limit can be changed while
+ * running, up to the maximum parallelism the service was created with.
+ * Instances are safe to share between threads; build tools and IDEs can keep
+ * one per build.
+ *
+ * <pre>
+ * var service = new FormatService(new JavaFormatter("jbang", settings, false));
+ * service.formatAll(Stream.of(FormatService.Source.of("A.java", code)), r -> log(r))
+ * 	.thenAccept(results -> ...);
+ * </pre>
+ */
+public class FormatService {
+
+	static final int QUEUE_CAPACITY = 10_000;
+
+	/**
+	 * Something to format, e.g. a file or an editor buffer.
+	 */
+	public interface Source {
+		String name();
+
+		String content() throws IOException;
+
+		static Source of(String name, String content) {
+			return new Source() {
+				@Override
+				public String name() {
+					return name;
+				}
+
+				@Override
+				public String content() {
+					return content;
+				}
+			};
+		}
+
+		static Source of(Path path) {
+			return new Source() {
+				@Override
+				public String name() {
+					return path.toString();
+				}
+
+				@Override
+				public String content() throws IOException {
+					return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Outcome for a single source; formatted is null when formatting failed.
+	 */
+	public record Result(Source source, String formatted, boolean changed, Exception failure) {
+		public boolean failed() {
+			return failure != null;
+		}
+	}
+
+	/**
+	 * Outcome of a batch, in the order the sources were given.
+	 */
+	public record Results(List<Result> results) {
+		public long changed() {
+			return results.stream().filter(Result::changed).count();
+		}
+
+		public long failed() {
+			return results.stream().filter(Result::failed).count();
+		}
+	}
+
+	/**
+	 * Handles one item taken from the queue. Returning true stops the whole run.
+	 */
+	interface Worker<T> {
+		boolean process(T item) throws Exception;
+	}
+
+	/**
+	 * Lets an item in before it gets a CPU permit, e.g. once it fits a memory
+	 * budget, so items waiting for admission do not keep others from
+	 * formatting. Returns what to do once the item is done.
+	 */
+	interface Admission<T> {
+		Runnable admit(T item) throws InterruptedException;
+	}
+
+	private static final Map<String, FormatService> shared = new ConcurrentHashMap<>();
+
+	/**
+	 * A semaphore whose number of permits can be lowered while they are held.
+	 */
+	private static final class AdjustableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		AdjustableSemaphore(int permits) {
+			super(permits);
+		}
+
+		void reduce(int permits) {
+			reducePermits(permits);
+		}
+	}
+
+	private final FormatterBackend backend;
+	private final int maxParallelism;
+	private volatile int parallelism;
+	private final AdjustableSemaphore cpuLimit;
+	/** Abandoned threads that hold a CPU permit, at most parallelism - 1. */
+	private final List<Thread> abandoned = new ArrayList<>();
+
+	public FormatService(FormatterBackend backend) {
+		this(backend, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism how many sources may be formatted at the same time
+	 */
+	public FormatService(FormatterBackend backend, int parallelism) {
+		this(backend, parallelism, parallelism);
+	}
+
+	/**
+	 * @param parallelism    how many sources may be formatted at the same time
+	 * @param maxParallelism up to how many {@link #setParallelism(int)} may
+	 *                       raise it
+	 */
+	public FormatService(FormatterBackend backend, int parallelism, int maxParallelism) {
+		this.backend = backend;
+		this.maxParallelism = Math.max(1, maxParallelism);
+		this.parallelism = Math.clamp(parallelism, 1, this.maxParallelism);
+		this.cpuLimit = new AdjustableSemaphore(this.parallelism);
+	}
+
+	/**
+	 * Returns the service shared within this JVM for backends with the same
+	 * fingerprint, creating it with the given backend on first use. Lets build
+	 * tools reuse one warm formatter across modules.
+	 */
+	public static FormatService shared(FormatterBackend backend) {
+		return shared.computeIfAbsent(backend.getFingerprint(), k -> new FormatService(backend));
+	}
+
+	/**
+	 * Drops the shared service for backends with the same fingerprint, so a
+	 * build daemon or IDE can let go of a formatter it no longer uses. Callers
+	 * still holding the service can keep using it.
+	 */
+	public static void evictShared(FormatterBackend backend) {
+		shared.remove(backend.getFingerprint());
+	}
+
+	/**
+	 * Drops all shared services, e.g. when a build daemon finishes a build.
+	 */
+	public static void evictAllShared() {
+		shared.clear();
+	}
+
+	public FormatterBackend getBackend() {
+		return backend;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public int getMaxParallelism() {
+		return maxParallelism;
+	}
+
+	/**
+	 * Changes how many sources may be formatted at the same time, between one and
+	 * the maximum parallelism. When lowered, sources being formatted finish
+	 * before others start.
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		int target = Math.clamp(parallelism, 1, maxParallelism);
+		// one permit must stay free of abandoned threads at the new limit too
+		while (abandoned.size() > target - 1) {
+			abandoned.removeFirst();
+			cpuLimit.release();
+		}
+		if (target > this.parallelism) {
+			cpuLimit.release(target - this.parallelism);
+		} else if (target < this.parallelism) {
+			cpuLimit.reduce(this.parallelism - target);
+		}
+		this.parallelism = target;
+	}
+
+	/**
+	 * Waits for the future from within a worker of {@link #process}, giving its
+	 * CPU permit to other workers meanwhile, e.g. while another worker formats
+	 * the same content.
+	 */
+	<V> V awaitWithoutPermit(Future<V> future) throws InterruptedException, ExecutionException {
+		cpuLimit.release();
+		try {
+			return future.get();
+		} finally {
+			// the worker releases it again when done
+			cpuLimit.acquireUninterruptibly();
+		}
+	}
+
+	/**
+	 * Counts a thread that was given up on, but keeps using a CPU, against the
+	 * parallelism until it ends. At most parallelism - 1 such threads are
+	 * counted, as they may never end; returns false when this one is not.
+	 */
+	synchronized boolean holdPermitWhileRunning(Thread thread) {
+		if (abandoned.size() >= parallelism - 1) {
+			return false;
+		}
+		abandoned.add(thread);
+		cpuLimit.reduce(1);
+		Thread.ofVirtual().name("fmt-abandoned").start(() -> {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					// keep waiting, the permit has to come back
+				}
+			}
+			releaseAbandoned(thread);
+		});
+		return true;
+	}
+
+	// the permit may have been given back already by setParallelism
+	private synchronized void releaseAbandoned(Thread thread) {
+		if (abandoned.remove(thread)) {
+			cpuLimit.release();
+		}
+	}
+
+	/**
+	 * Number of sources being formatted right now, i.e. CPU permits in use.
+	 */
+	public int getActive() {
+		return Math.max(0, parallelism - cpuLimit.availablePermits());
+	}
+
+	/**
+	 * Number of consumers draining the queue: twice the maximum parallelism, so
+	 * reading and writing overlaps with formatting at any limit.
+	 */
+	public int getConsumers() {
+		return Math.max(2, maxParallelism * 2);
+	}
+
+	public CompletableFuture<Results> formatAll(Stream<? extends Source> sources) {
+		return formatAll(sources, r -> {
+		});
+	}
+
+	/**
+	 * Formats all sources, calling progress (from worker threads) as each one
+	 * completes. Cancelling the returned future stops reading the stream and
+	 * interrupts the workers. When progress throws, the batch stops and the
+	 * future completes with that exception.
+	 */
+	public CompletableFuture<Results> formatAll(Stream<? extends Source> sources, Consumer<? super Result> progress) {
+		record Indexed(long index, Source source) {
+		}
+		record Ordered(long index, Result result) {
+		}
+		var done = new Indexed(-1, null);
+		var future = new CompletableFuture<Results>();
+		var runner = Thread.ofVirtual().name("fmt-service").unstarted(() -> {
+			BlockingQueue<Indexed> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+			Queue<Ordered> results = new ConcurrentLinkedQueue<>();
+			Runnable producer = () -> {
+				long[] index = { 0 };
+				try (sources) {
+					sources.forEachOrdered(s -> {
+						try {
+							queue.put(new Indexed(index[0]++, s));
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IllegalStateException("Interrupted", e);
+						}
+					});
+				} finally {
+					try {
+						queue.put(done);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			var progressFailure = new AtomicReference<RuntimeException>();
+			try {
+				process(queue, done, producer, item -> {
+					Result result;
+					try {
+						result = format(item.source());
+					} catch (Exception e) {
+						result = new Result(item.source(), null, false, e);
+					}
+					results.add(new Ordered(item.index(), result));
+					try {
+						progress.accept(result);
+						return false;
+					} catch (RuntimeException e) {
+						// the result is recorded already, it must not fail a second time
+						progressFailure.compareAndSet(null, e);
+						return true;
+					}
+				}, (item, e) -> {
+				}, nanos -> {
+				});
+				if (progressFailure.get() != null) {
+					throw progressFailure.get();
+				}
+				future.complete(new Results(results.stream()
+					.sorted(Comparator.comparingLong(Ordered::index))
+					.map(Ordered::result)
+					.toList()));
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		});
+		future.whenComplete((r, t) -> {
+			if (future.isCancelled()) {
+				runner.interrupt();
+			}
+		});
+		runner.start();
+		return future;
+	}
+
+	/**
+	 * Formats a single source with the backend, without queueing.
+	 */
+	public Result format(Source source) throws Exception {
+		String content = source.content();
+		String formatted = backend.format(content);
+		return new Result(source, formatted, !formatted.equals(content), null);
+	}
+
+	<T> boolean process(BlockingQueue<T> queue, T done, Runnable producer, Worker<T> worker,
+			BiConsumer<T, Exception> onFailure, LongConsumer takeWait) throws Exception {
+		return process(queue, done, producer, item -> () -> {
+		}, worker, onFailure, takeWait);
+	}
+
+	/**
+	 * Runs the producer and drains the queue it fills with the consumers until
+	 * the done marker comes through. Each item is admitted before it waits for a
+	 * CPU permit. Failures of single items go to onFailure rather than stopping
+	 * the run. Returns true if a worker stopped the run.
+	 */
+	<T> boolean process(BlockingQueue<T> queue, T done, Runnable producer, Admission<T> admission,
+			Worker<T> worker, BiConsumer<T, Exception> onFailure, LongConsumer takeWait) throws Exception {
+		var stopped = new AtomicBoolean();
+		var namingFactory = Thread.ofVirtual().name("fmt-", 0).factory();
+
+		try (var executor = Executors.newThreadPerTaskExecutor(namingFactory)) {
+			var producing = executor.submit(producer);
+
+			// create Consumers: process items from queue, but no more than 2x the
+			// parallelism
+			var tasks = new ArrayList<Future<?>>();
+			for (int i = 0; i < getConsumers(); i++) {
+				tasks.add(executor.submit(() -> {
+					for (;;) {
+						T item = queue.poll();
+						try {
+							if (item == null) {
+								long waitStart = System.nanoTime();
+								item = queue.take();
+								takeWait.accept(System.nanoTime() - waitStart);
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+
+						if (item == done) {
+							queue.offer(item);
+							break;
+						}
+
+						// Admit the item, then acquire CPU permit before formatting
+						Runnable admitted;
+						try {
+							admitted = admission.admit(item);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+						try {
+							cpuLimit.acquire();
+						} catch (InterruptedException e) {
+							admitted.run();
+							Thread.currentThread().interrupt();
+							break;
+						}
+						try {
+							if (worker.process(item) && stopped.compareAndSet(false, true)) {
+								// cancel the producer and all other consumers
+								executor.shutdownNow();
+							}
+						} catch (Exception e) {
+							if (!stopped.get()) {
+								onFailure.accept(item, e);
+							}
+						} finally {
+							cpuLimit.release();
+							admitted.run();
+						}
+					}
+				}));
+			}
+
+			try {
+				producing.get(); // propagate producer errors
+				for (var t : tasks)
+					t.get(); // propagate consumer errors
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				throw e;
+			} catch (ExecutionException e) {
+				if (!stopped.get()) {
+					throw e;
+				}
+			}
+		}
+		return stopped.get();
+	}
+}
@@ -0,0 +1,201 @@
+package dev.jbang.fmt;
+
+import java.util.List;
+
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.ToolFactory;
+import org.eclipse.jdt.core.compiler.IScanner;
+import org.eclipse.jdt.core.compiler.ITerminalSymbols;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
+
+/**
+ * Checks ({@code --verify}) that formatting changed nothing but layout: the
+ * tokens outside whitespace and comments must be the same, compared while
+ * scanning both texts side by side without building an AST, and JBang
+ * directive lines must be left byte for byte as they were.
+ * <p>
+ * Text blocks are compared by their value, as formatters may shift their
+ * incidental indentation.
+ */
+final class FormatVerifier {
+
+	/**
+	 * Thrown when a formatted text is not equivalent to the original.
+	 */
+	static class VerificationException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		VerificationException(String message) {
+			super(message);
+		}
+	}
+
+	private final boolean checkDirectives;
+	private final String sourceLevel;
+	private final String complianceLevel;
+
+	/**
+	 * @param checkDirectives false when the formatter may touch JBang
+	 *                        directives
+	 */
+	FormatVerifier(boolean checkDirectives) {
+		this(checkDirectives, JavaCore.latestSupportedJavaVersion(), JavaCore.latestSupportedJavaVersion());
+	}
+
+	/**
+	 * @param sourceLevel     the Java version the formatter parsed the code as,
+	 *                        e.g. "1.8" or "17", as keywords differ between
+	 *                        them
+	 * @param complianceLevel the compliance level it parsed the code with
+	 */
+	FormatVerifier(boolean checkDirectives, String sourceLevel, String complianceLevel) {
+		this.checkDirectives = checkDirectives;
+		this.sourceLevel = sourceLevel;
+		this.complianceLevel = complianceLevel;
+	}
+
+	/**
+	 * Verifies the Java code of a file of the kind, piece by piece.
+	 */
+	void verify(SourceKind kind, String original, String formatted) throws VerificationException {
+		List<SourceKind.Snippet> before = kind.snippets(original);
+		List<SourceKind.Snippet> after = kind.snippets(formatted);
+		if (before.size() != after.size()) {
+			throw new VerificationException(before.size() + " java blocks became " + after.size());
+		}
+		for (int i = 0; i < before.size(); i++) {
+			verify(before.get(i).code(), after.get(i).code());
+		}
+	}
+
+	/**
+	 * Throws if formatted is not original with only whitespace and comments
+	 * changed.
+	 */
+	void verify(String original, String formatted) throws VerificationException {
+		verifyTokens(original, formatted);
+		if (checkDirectives) {
+			verifyDirectives(original, formatted);
+		}
+	}
+
+	private void verifyTokens(String original, String formatted) throws VerificationException {
+		char[] a = original.toCharArray();
+		char[] b = formatted.toCharArray();
+		IScanner before = scanner(a);
+		IScanner after = scanner(b);
+		int token;
+		do {
+			token = next(before, "original");
+			int other = next(after, "formatted text");
+			if (token != other || !sameSource(token, a, before, b, after)) {
+				throw new VerificationException("token '" + new String(before.getCurrentTokenSource())
+						+ "' at line " + lineOf(original, before.getCurrentTokenStartPosition()) + " became '"
+						+ new String(after.getCurrentTokenSource()) + "'");
+			}
+		} while (token != ITerminalSymbols.TokenNameEOF);
+	}
+
+	private IScanner scanner(char[] source) {
+		IScanner scanner = ToolFactory.createScanner(false, false, false, sourceLevel, complianceLevel);
+		scanner.setSource(source);
+		return scanner;
+	}
+
+	private static int next(IScanner scanner, String which) throws VerificationException {
+		try {
+			return scanner.getNextToken();
+		} catch (InvalidInputException e) {
+			throw new VerificationException("cannot tokenize the " + which + ": " + e.getMessage());
+		}
+	}
+
+	private static boolean sameSource(int token, char[] a, IScanner before, char[] b, IScanner after) {
+		if (token == ITerminalSymbols.TokenNameEOF) {
+			return true;
+		}
+		if (token == ITerminalSymbols.TokenNameTextBlock) {
+			return textBlockValue(before).equals(textBlockValue(after));
+		}
+		int from = before.getCurrentTokenStartPosition();
+		int length = before.getCurrentTokenEndPosition() + 1 - from;
+		int otherFrom = after.getCurrentTokenStartPosition();
+		if (after.getCurrentTokenEndPosition() + 1 - otherFrom != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (a[from + i] != b[otherFrom + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The string a text block stands for: the lines after the opening delimiter
+	 * with the incidental indentation stripped and escapes translated.
+	 */
+	private static String textBlockValue(IScanner scanner) {
+		String raw = new String(scanner.getRawTokenSource());
+		int start = raw.indexOf('\n') + 1;
+		int end = raw.length() - 3;
+		if (start <= 0 || end < start) {
+			return raw;
+		}
+		return raw.substring(start, end).stripIndent().translateEscapes();
+	}
+
+	private static void verifyDirectives(String original, String formatted) throws VerificationException {
+		int a = 0;
+		int b = 0;
+		int lineA = 0;
+		int lineB = 0;
+		while (true) {
+			// advance both texts to their next protected line
+			while (a <= original.length() && !CodeRange.isProtected(line(original, a), lineA)) {
+				a = nextLine(original, a);
+				lineA++;
+			}
+			while (b <= formatted.length() && !CodeRange.isProtected(line(formatted, b), lineB)) {
+				b = nextLine(formatted, b);
+				lineB++;
+			}
+			boolean endA = a > original.length();
+			boolean endB = b > formatted.length();
+			if (endA && endB) {
+				return;
+			}
+			if (endA || endB || !line(original, a).equals(line(formatted, b))) {
+				throw new VerificationException("JBang directive at line " + (lineA + 1) + " changed"
+						+ (endB ? " or was removed" : " to '" + line(formatted, b).strip() + "'"));
+			}
+			a = nextLine(original, a);
+			b = nextLine(formatted, b);
+			lineA++;
+			lineB++;
+		}
+	}
+
+	private static String line(String content, int start) {
+		int end = content.indexOf('\n', start);
+		return content.substring(start, end < 0 ? content.length() : end);
+	}
+
+	/**
+	 * Start of the line after the one at start, or past the end of content.
+	 */
+	private static int nextLine(String content, int start) {
+		int end = content.indexOf('\n', start);
+		return end < 0 ? content.length() + 1 : end + 1;
+	}
+
+	private static int lineOf(String content, int offset) {
+		int line = 1;
+		for (int i = 0; i < offset && i < content.length(); i++) {
+			if (content.charAt(i) == '\n') {
+				line++;
+			}
+		}
+		return line;
+	}
+}
@@ -0,0 +1,94 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.error;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Gives up on formatting that takes longer than a timeout.
+ * <p>
+ * The work runs in its own platform thread while the caller waits for it with
+ * a deadline. A virtual thread would not do: formats stuck in a loop would pin
+ * the carrier threads, and with as many of them as carriers the waiting
+ * callers would never be scheduled to notice the deadline. On timeout the
+ * thread is sampled for where it was stuck, interrupted and abandoned: the
+ * Eclipse formatter does not check for interruption, so it may keep running in
+ * the background. The caller moves on, but the abandoned thread holds a CPU
+ * permit of the service until it ends, so runs with many timeouts do not use
+ * more CPUs than allowed. One permit is never held that way, otherwise files
+ * stuck for good would leave none for the rest of the run.
+ */
+class FormatWatchdog {
+
+	/**
+	 * Thrown when formatting did not finish in time, with the stack of the
+	 * formatting thread at that moment.
+	 */
+	static class FileTimeoutException extends TimeoutException {
+		private static final long serialVersionUID = 1L;
+
+		private final transient StackTraceElement[] sample;
+
+		FileTimeoutException(Duration timeout, StackTraceElement[] sample) {
+			super("formatting did not finish within " + timeout.toSeconds() + "s");
+			this.sample = sample;
+		}
+
+		/**
+		 * The innermost frames of the stack sample, one per line.
+		 */
+		String getSample(int frames) {
+			var sb = new StringBuilder();
+			for (int i = 0; i < Math.min(frames, sample.length); i++) {
+				sb.append("\n\tat ").append(sample[i]);
+			}
+			return sb.toString();
+		}
+	}
+
+	private final Duration timeout;
+	private final FormatService service;
+	private final ThreadFactory threads = Thread.ofPlatform()
+		.name("fmt-watched-", 0)
+		.daemon()
+		.factory();
+
+	FormatWatchdog(Duration timeout, FormatService service) {
+		this.timeout = timeout;
+		this.service = service;
+	}
+
+	String format(Callable<String> format) throws Exception {
+		var result = new CompletableFuture<String>();
+		Thread worker = threads.newThread(() -> {
+			try {
+				result.complete(format.call());
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+			}
+		});
+		worker.start();
+		try {
+			return result.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			StackTraceElement[] sample = worker.getStackTrace();
+			worker.interrupt();
+			if (!service.holdPermitWhileRunning(worker)) {
+				error("Warning: " + worker.getName() + " is still formatting after the timeout,"
+						+ " not counted against the CPU limit so the other files can go on");
+			}
+			throw new FileTimeoutException(timeout, sample);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception cause ? cause : e;
+		} catch (InterruptedException e) {
+			worker.interrupt();
+			throw e;
+		}
+	}
+}
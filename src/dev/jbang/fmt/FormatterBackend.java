@@ -0,0 +1,88 @@
+package dev.jbang.fmt;
+
+import java.util.List;
+
+/**
+ * A formatting engine. Implementations only format the given ranges, which is
+ * how JBang directives are kept untouched unless touchJBang is set.
+ */
+public interface FormatterBackend {
+
+	/**
+	 * What a piece of code has to parse as.
+	 */
+	enum CodeKind {
+		/** a whole source file */
+		compilationUnit,
+		/**
+		 * a sequence of statements, possibly with methods and types declared
+		 * between them, like a .jsh script
+		 */
+		statements,
+		/** whatever it parses as, like a snippet in documentation */
+		any
+	}
+
+	/**
+	 * Name of the engine, e.g. "Eclipse" or "Google".
+	 */
+	String getName();
+
+	/**
+	 * Hash identifying the engine and every setting that affects its output. Two
+	 * backends with the same fingerprint format identically.
+	 */
+	String getFingerprint();
+
+	/**
+	 * Whether JBang directives should be formatted like any other code.
+	 */
+	boolean isTouchJBang();
+
+	/**
+	 * Formats the whole content, except JBang directives unless touchJBang is set.
+	 */
+	default String format(String content) throws Exception {
+		return format(content, formattableRanges(content));
+	}
+
+	/**
+	 * Formats only the given character ranges of the content.
+	 */
+	String format(String content, List<CodeRange> ranges) throws Exception;
+
+	/**
+	 * The edits formatting the given ranges would make, sorted by offset, for
+	 * callers that only need to know what changes where (check mode, editors,
+	 * diffs). By default computed by diffing the formatted content by line.
+	 */
+	default List<FormatEdit> formatEdits(String content, List<CodeRange> ranges) throws Exception {
+		return TextDiff.diff(content, format(content, ranges));
+	}
+
+	/**
+	 * Whether the engine can format code of the kind. All engines format
+	 * compilation units.
+	 */
+	default boolean supports(CodeKind kind) {
+		return kind == CodeKind.compilationUnit;
+	}
+
+	/**
+	 * Like {@link #formatEdits(String, List)}, for code of the given kind.
+	 */
+	default List<FormatEdit> formatEdits(String content, List<CodeRange> ranges, CodeKind kind) throws Exception {
+		if (!supports(kind)) {
+			throw new UnsupportedOperationException(getName() + " engine cannot format " + kind);
+		}
+		return formatEdits(content, ranges);
+	}
+
+	/**
+	 * The whole content, or only the ranges outside JBang directives unless
+	 * touchJBang is set.
+	 */
+	default List<CodeRange> formattableRanges(String content) {
+		return !isTouchJBang() ? CodeRange.identifyJavaRanges(content) : List.of(new CodeRange(0, content.length()));
+	}
+}
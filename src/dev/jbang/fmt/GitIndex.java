@@ -0,0 +1,212 @@
+package dev.jbang.fmt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The git index (staging area) file, versions 2 to 4.
+ * <p>
+ * Entries are only ever changed in place: a new blob id, and the size and
+ * times of the work tree file, live at fixed offsets of an entry, so the file
+ * is patched rather than written anew, whatever its version. The cached tree
+ * extension, which would be out of date, is dropped; git rebuilds it when
+ * needed. Writing follows git's locking protocol: the new index is
+ * written to {@code index.lock}, which is then renamed over the index.
+ */
+final class GitIndex {
+
+	/**
+	 * A stage 0 entry of a regular file, with the offset of its fixed part in the
+	 * index file. Skip-worktree entries have no work tree file (sparse
+	 * checkouts).
+	 */
+	record Entry(String path, int offset, long size, long mtimeNanos, byte[] id, boolean skipWorktree) {
+	}
+
+	/**
+	 * New blob id of an entry, with the size and change and modification times
+	 * of its work tree file. A time of -1 keeps the recorded one; a size that
+	 * does not match the file makes git look at its content again.
+	 */
+	record Update(byte[] id, long size, long ctimeNanos, long mtimeNanos) {
+	}
+
+	private static final int MODE_TYPE_MASK = 0170000;
+	private static final int MODE_REGULAR = 0100000;
+	private static final int ENTRY_FIXED = 62;
+	private static final int ENTRY_ID = 40;
+	private static final int SKIP_WORKTREE = 0x4000;
+	private static final int INTENT_TO_ADD = 0x2000;
+
+	private final Path file;
+	private final byte[] bytes;
+	private final int extensionsStart;
+	private final Map<String, Entry> entries;
+
+	private GitIndex(Path file, byte[] bytes, int extensionsStart, Map<String, Entry> entries) {
+		this.file = file;
+		this.bytes = bytes;
+		this.extensionsStart = extensionsStart;
+		this.entries = entries;
+	}
+
+	static GitIndex read(Path file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		if (bytes.length < 32 || bytes[0] != 'D' || bytes[1] != 'I' || bytes[2] != 'R' || bytes[3] != 'C') {
+			throw new IOException("Not a git index: " + file);
+		}
+		int version = GitRepository.readInt(bytes, 4);
+		if (version < 2 || version > 4) {
+			throw new IOException("Unsupported git index version " + version + ": " + file);
+		}
+		int count = GitRepository.readInt(bytes, 8);
+		Map<String, Entry> entries = new LinkedHashMap<>(count * 2);
+		int pos = 12;
+		byte[] previous = new byte[0];
+		for (int i = 0; i < count; i++) {
+			int offset = pos;
+			int mode = GitRepository.readInt(bytes, offset + 24);
+			long mtime = (GitRepository.readInt(bytes, offset + 8) & 0xffffffffL) * 1_000_000_000L
+					+ (GitRepository.readInt(bytes, offset + 12) & 0xffffffffL);
+			long size = GitRepository.readInt(bytes, offset + 36) & 0xffffffffL;
+			byte[] id = Arrays.copyOfRange(bytes, offset + ENTRY_ID, offset + ENTRY_ID + 20);
+			int flags = ((bytes[offset + 60] & 0xff) << 8) | (bytes[offset + 61] & 0xff);
+			int stage = (flags >> 12) & 3;
+			int extended = 0;
+			pos = offset + ENTRY_FIXED;
+			if ((flags & 0x4000) != 0) {
+				extended = ((bytes[pos] & 0xff) << 8) | (bytes[pos + 1] & 0xff);
+				pos += 2;
+			}
+			byte[] name;
+			if (version == 4) {
+				// the name is the previous one, shortened by n bytes, plus a suffix
+				int strip = 0;
+				int c;
+				do {
+					c = bytes[pos++] & 0xff;
+					strip = (strip << 7) | (c & 0x7f);
+					if ((c & 0x80) != 0) {
+						strip++;
+					}
+				} while ((c & 0x80) != 0);
+				int end = indexOf(bytes, pos);
+				int keep = previous.length - strip;
+				name = new byte[keep + end - pos];
+				System.arraycopy(previous, 0, name, 0, keep);
+				System.arraycopy(bytes, pos, name, keep, end - pos);
+				pos = end + 1;
+			} else {
+				int end = indexOf(bytes, pos);
+				name = Arrays.copyOfRange(bytes, pos, end);
+				// entries are padded with 1 to 8 NULs to a multiple of 8 bytes
+				pos = offset + ((end - offset + 8) & ~7);
+			}
+			previous = name;
+			// intent-to-add entries have nothing staged yet
+			if (stage == 0 && (mode & MODE_TYPE_MASK) == MODE_REGULAR && (extended & INTENT_TO_ADD) == 0) {
+				String path = new String(name, StandardCharsets.UTF_8);
+				entries.put(path, new Entry(path, offset, size, mtime, id, (extended & SKIP_WORKTREE) != 0));
+			}
+		}
+		// split indexes keep their entries in a second file
+		for (int ext = pos; ext + 8 <= bytes.length - 20;) {
+			String signature = new String(bytes, ext, 4, StandardCharsets.US_ASCII);
+			if (signature.equals("link")) {
+				throw new IOException("Split git indexes are not supported: " + file);
+			}
+			ext += 8 + GitRepository.readInt(bytes, ext + 4);
+		}
+		return new GitIndex(file, bytes, pos, entries);
+	}
+
+	private static int indexOf(byte[] bytes, int from) throws IOException {
+		for (int i = from; i < bytes.length; i++) {
+			if (bytes[i] == 0) {
+				return i;
+			}
+		}
+		throw new IOException("Truncated git index");
+	}
+
+	/**
+	 * Stage 0 entries of regular files by path, in index order.
+	 */
+	Map<String, Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Takes the lock of an index, failing like git does if another process holds
+	 * it. The index is read after taking the lock, so no change is lost.
+	 */
+	static Path lock(Path file) throws IOException {
+		Path lock = file.resolveSibling(file.getFileName() + ".lock");
+		try {
+			Files.createFile(lock);
+		} catch (FileAlreadyExistsException e) {
+			throw new IOException("Unable to lock " + lock + ": another git process seems to be running", e);
+		}
+		return lock;
+	}
+
+	/**
+	 * Writes the index with the entries of the given paths updated, while holding
+	 * lock; the lock is then renamed over the index.
+	 */
+	void write(Path lock, Map<String, Update> updates) throws IOException {
+		byte[] patched = Arrays.copyOf(bytes, bytes.length - 20);
+		for (var e : updates.entrySet()) {
+			int offset = entries.get(e.getKey()).offset();
+			Update update = e.getValue();
+			System.arraycopy(update.id(), 0, patched, offset + ENTRY_ID, 20);
+			putInt(patched, offset + 36, (int) update.size());
+			putTime(patched, offset, update.ctimeNanos());
+			putTime(patched, offset + 8, update.mtimeNanos());
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+		out.write(patched, 0, extensionsStart);
+		for (int ext = extensionsStart; ext + 8 <= patched.length;) {
+			int length = 8 + GitRepository.readInt(patched, ext + 4);
+			// the end of index entry extension hashes the extensions that follow
+			String signature = new String(patched, ext, 4, StandardCharsets.US_ASCII);
+			if (!signature.equals("TREE") && !signature.equals("EOIE")) {
+				out.write(patched, ext, length);
+			}
+			ext += length;
+		}
+		MessageDigest sha1 = GitRepository.sha1();
+		byte[] content = out.toByteArray();
+		try (OutputStream os = Files.newOutputStream(lock, StandardOpenOption.TRUNCATE_EXISTING)) {
+			os.write(content);
+			os.write(sha1.digest(content));
+		}
+		Files.move(lock, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void putTime(byte[] b, int off, long nanos) {
+		if (nanos >= 0) {
+			putInt(b, off, (int) (nanos / 1_000_000_000L));
+			putInt(b, off + 4, (int) (nanos % 1_000_000_000L));
+		}
+	}
+
+	private static void putInt(byte[] b, int off, int value) {
+		b[off] = (byte) (value >>> 24);
+		b[off + 1] = (byte) (value >>> 16);
+		b[off + 2] = (byte) (value >>> 8);
+		b[off + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,558 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.error;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Just enough of a git repository to read and write objects without running
+ * git: loose objects, pack files (with deltas) and alternates, the commit HEAD
+ * points to and its tree. Only SHA-1 repositories are supported.
+ */
+final class GitRepository implements AutoCloseable {
+
+	static final int OBJ_COMMIT = 1;
+	static final int OBJ_TREE = 2;
+	static final int OBJ_BLOB = 3;
+	private static final int OBJ_OFS_DELTA = 6;
+	private static final int OBJ_REF_DELTA = 7;
+
+	private static final HexFormat HEX = HexFormat.of();
+
+	/**
+	 * An object's type and content.
+	 */
+	record GitObject(int type, byte[] data) {
+	}
+
+	private final Path workTree;
+	private final Path gitDir;
+	private final Path commonDir;
+	private final List<Path> objectDirs = new ArrayList<>();
+	private List<Pack> packs;
+
+	private GitRepository(Path workTree, Path gitDir, Path commonDir) throws IOException {
+		this.workTree = workTree;
+		this.gitDir = gitDir;
+		this.commonDir = commonDir;
+		objectDirs.add(commonDir.resolve("objects"));
+		Path alternates = commonDir.resolve("objects/info/alternates");
+		if (Files.exists(alternates)) {
+			for (String line : Files.readAllLines(alternates, StandardCharsets.UTF_8)) {
+				if (!line.isBlank() && !line.startsWith("#")) {
+					objectDirs.add(commonDir.resolve("objects").resolve(line.strip()).normalize());
+				}
+			}
+		}
+	}
+
+	/**
+	 * The repository whose work tree contains dir.
+	 */
+	static GitRepository find(Path dir) throws IOException {
+		for (Path d = dir.toAbsolutePath().normalize(); d != null; d = d.getParent()) {
+			Path dotGit = d.resolve(".git");
+			if (Files.isDirectory(dotGit)) {
+				return open(d, dotGit);
+			}
+			if (Files.isRegularFile(dotGit)) {
+				// linked work trees and submodules point to their git directory
+				String link = Files.readString(dotGit, StandardCharsets.UTF_8).strip();
+				if (link.startsWith("gitdir:")) {
+					return open(d, d.resolve(link.substring("gitdir:".length()).strip()).normalize());
+				}
+			}
+		}
+		throw new IOException("Not inside a git work tree: " + dir.toAbsolutePath());
+	}
+
+	private static GitRepository open(Path workTree, Path gitDir) throws IOException {
+		Path common = gitDir;
+		Path commonFile = gitDir.resolve("commondir");
+		if (Files.exists(commonFile)) {
+			common = gitDir.resolve(Files.readString(commonFile, StandardCharsets.UTF_8).strip()).normalize();
+		}
+		Path config = common.resolve("config");
+		if (Files.exists(config) && Files.readString(config, StandardCharsets.UTF_8)
+			.matches("(?s).*objectformat\\s*=\\s*sha256.*")) {
+			throw new IOException("SHA-256 repositories are not supported: " + common);
+		}
+		return new GitRepository(workTree, gitDir, common);
+	}
+
+	Path getWorkTree() {
+		return workTree;
+	}
+
+	Path getGitDir() {
+		return gitDir;
+	}
+
+	/**
+	 * The index of the work tree, or {@code GIT_INDEX_FILE}, which git sets for
+	 * hooks of {@code git commit -a} or {@code git commit <paths>}.
+	 */
+	Path getIndexFile() {
+		String env = System.getenv("GIT_INDEX_FILE");
+		return env != null ? Path.of(env).toAbsolutePath() : gitDir.resolve("index");
+	}
+
+	Map<Path, GitIndex.Entry> select(Collection<GitIndex.Entry> entries, List<Path> pathspecs,
+			Set<SourceKind> kinds) {
+		return select(workTree, entries, pathspecs, kinds);
+	}
+
+	/**
+	 * The index entries of the given kinds below one of the pathspecs, or all of
+	 * them if there are none, in index order, by the path they are formatted
+	 * and reported under: relative to the current directory when below it.
+	 * Pathspecs outside the work tree select nothing, with a warning.
+	 */
+	static Map<Path, GitIndex.Entry> select(Path workTree, Collection<GitIndex.Entry> entries, List<Path> pathspecs,
+			Set<SourceKind> kinds) {
+		List<String> prefixes = new ArrayList<>();
+		for (Path spec : pathspecs == null || pathspecs.isEmpty() ? List.of(workTree) : pathspecs) {
+			Path absolute = spec.toAbsolutePath().normalize();
+			if (workTree.startsWith(absolute)) {
+				prefixes.add("");
+			} else if (absolute.startsWith(workTree)) {
+				prefixes.add(workTree.relativize(absolute).toString().replace('\\', '/') + "/");
+			} else {
+				error("Warning: " + spec + " is outside the git work tree " + workTree + ", nothing selected from it");
+			}
+		}
+		Path cwd = Path.of("").toAbsolutePath();
+		Path base = workTree.startsWith(cwd) ? cwd.relativize(workTree) : null;
+		Map<Path, GitIndex.Entry> selected = new LinkedHashMap<>();
+		for (GitIndex.Entry entry : entries) {
+			String path = entry.path();
+			if (kinds.contains(SourceKind.of(path)) && isBelow(path, prefixes)) {
+				Path file = base != null ? base.resolve(path) : workTree.resolve(path);
+				if (base == null && file.startsWith(cwd)) {
+					file = cwd.relativize(file);
+				}
+				selected.put(file, entry);
+			}
+		}
+		return selected;
+	}
+
+	private static boolean isBelow(String path, List<String> prefixes) {
+		for (String prefix : prefixes) {
+			if (path.startsWith(prefix)
+					|| (path.length() == prefix.length() - 1 && prefix.startsWith(path))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads an object, from loose objects first and then the packs.
+	 */
+	GitObject read(byte[] id) throws IOException {
+		String hex = HEX.formatHex(id);
+		for (Path objects : objectDirs) {
+			Path loose = objects.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+			byte[] compressed;
+			try {
+				compressed = Files.readAllBytes(loose);
+			} catch (NoSuchFileException e) {
+				continue;
+			}
+			byte[] raw = inflate(compressed, -1);
+			int space = indexOf(raw, (byte) ' ', 0);
+			int nul = indexOf(raw, (byte) 0, space);
+			int type = switch (new String(raw, 0, space, StandardCharsets.US_ASCII)) {
+			case "commit" -> OBJ_COMMIT;
+			case "tree" -> OBJ_TREE;
+			case "blob" -> OBJ_BLOB;
+			default -> 4;
+			};
+			return new GitObject(type, Arrays.copyOfRange(raw, nul + 1, raw.length));
+		}
+		for (Pack pack : packs()) {
+			long offset = pack.find(id);
+			if (offset >= 0) {
+				return pack.read(offset);
+			}
+		}
+		throw new IOException("Missing git object " + hex);
+	}
+
+	/**
+	 * Content of a blob.
+	 */
+	byte[] readBlob(byte[] id) throws IOException {
+		GitObject object = read(id);
+		if (object.type() != OBJ_BLOB) {
+			throw new IOException("Not a blob: " + HEX.formatHex(id));
+		}
+		return object.data();
+	}
+
+	/**
+	 * Stores content as a loose blob, unless it exists, and returns its id. The
+	 * object is written next to its final name and renamed into place, like git
+	 * does.
+	 */
+	byte[] writeBlob(byte[] content) throws IOException {
+		byte[] header = blobHeader(content);
+		byte[] id = blobId(content);
+		String hex = HEX.formatHex(id);
+		Path dir = objectDirs.get(0).resolve(hex.substring(0, 2));
+		Path file = dir.resolve(hex.substring(2));
+		if (!Files.exists(file)) {
+			Files.createDirectories(dir);
+			Path tmp = Files.createTempFile(dir, "tmp_obj_", "");
+			try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(tmp))) {
+				out.write(header);
+				out.write(content);
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				Files.deleteIfExists(tmp);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * The id content has as a blob, without storing it.
+	 */
+	static byte[] blobId(byte[] content) {
+		MessageDigest sha1 = sha1();
+		sha1.update(blobHeader(content));
+		sha1.update(content);
+		return sha1.digest();
+	}
+
+	private static byte[] blobHeader(byte[] content) {
+		return ("blob " + content.length + "\0").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Blob ids by path of the tree of the commit HEAD points to; empty on an
+	 * unborn branch.
+	 */
+	Map<String, byte[]> headTree() throws IOException {
+		Map<String, byte[]> blobs = new HashMap<>();
+		byte[] commit = resolveHead();
+		if (commit != null) {
+			String text = new String(read(commit).data(), StandardCharsets.UTF_8);
+			readTree(HEX.parseHex(text.substring("tree ".length(), "tree ".length() + 40)), "", blobs);
+		}
+		return blobs;
+	}
+
+	private void readTree(byte[] id, String prefix, Map<String, byte[]> blobs) throws IOException {
+		byte[] tree = read(id).data();
+		int pos = 0;
+		while (pos < tree.length) {
+			int space = indexOf(tree, (byte) ' ', pos);
+			int nul = indexOf(tree, (byte) 0, space);
+			String mode = new String(tree, pos, space - pos, StandardCharsets.US_ASCII);
+			String name = prefix + new String(tree, space + 1, nul - space - 1, StandardCharsets.UTF_8);
+			byte[] child = Arrays.copyOfRange(tree, nul + 1, nul + 21);
+			if (mode.equals("40000")) {
+				readTree(child, name + "/", blobs);
+			} else {
+				blobs.put(name, child);
+			}
+			pos = nul + 21;
+		}
+	}
+
+	private byte[] resolveHead() throws IOException {
+		String head = Files.readString(gitDir.resolve("HEAD"), StandardCharsets.US_ASCII).strip();
+		for (int depth = 0; head.startsWith("ref: ") && depth < 10; depth++) {
+			String ref = head.substring("ref: ".length());
+			Path loose = (ref.startsWith("refs/") ? commonDir : gitDir).resolve(ref);
+			if (Files.exists(loose)) {
+				head = Files.readString(loose, StandardCharsets.US_ASCII).strip();
+			} else {
+				head = packedRef(ref);
+				if (head == null) {
+					// unborn branch, nothing committed yet
+					return null;
+				}
+			}
+		}
+		return HEX.parseHex(head);
+	}
+
+	private String packedRef(String ref) throws IOException {
+		Path packed = commonDir.resolve("packed-refs");
+		if (Files.exists(packed)) {
+			for (String line : Files.readAllLines(packed, StandardCharsets.UTF_8)) {
+				if (line.endsWith(" " + ref) && !line.startsWith("#")) {
+					return line.substring(0, 40);
+				}
+			}
+		}
+		return null;
+	}
+
+	private synchronized List<Pack> packs() throws IOException {
+		if (packs == null) {
+			packs = new ArrayList<>();
+			for (Path objects : objectDirs) {
+				Path dir = objects.resolve("pack");
+				if (Files.isDirectory(dir)) {
+					try (var files = Files.list(dir)) {
+						for (Path idx : files.filter(p -> p.toString().endsWith(".idx")).sorted().toList()) {
+							String name = idx.getFileName().toString();
+							Path pack = idx.resolveSibling(name.substring(0, name.length() - 4) + ".pack");
+							if (Files.exists(pack)) {
+								packs.add(new Pack(idx, pack));
+							}
+						}
+					}
+				}
+			}
+		}
+		return packs;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (packs != null) {
+			for (Pack pack : packs) {
+				pack.channel.close();
+			}
+		}
+	}
+
+	/**
+	 * A pack file with its version 2 index.
+	 */
+	private final class Pack {
+		private final byte[] index;
+		private final int count;
+		private final FileChannel channel;
+
+		Pack(Path idx, Path pack) throws IOException {
+			index = Files.readAllBytes(idx);
+			if (index.length < 8 + 256 * 4 || (index[0] & 0xff) != 0xff || index[1] != 't' || index[2] != 'O'
+					|| index[3] != 'c' || readInt(index, 4) != 2) {
+				throw new IOException("Unsupported pack index " + idx);
+			}
+			count = readInt(index, 8 + 255 * 4);
+			channel = FileChannel.open(pack, StandardOpenOption.READ);
+		}
+
+		/**
+		 * Offset of the object in the pack, or -1.
+		 */
+		long find(byte[] id) {
+			int first = id[0] & 0xff;
+			int lo = first == 0 ? 0 : readInt(index, 8 + (first - 1) * 4);
+			int hi = readInt(index, 8 + first * 4) - 1;
+			int names = 8 + 256 * 4;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int cmp = Arrays.compareUnsigned(index, names + mid * 20, names + mid * 20 + 20, id, 0, 20);
+				if (cmp == 0) {
+					int offsets = names + count * 20 + count * 4;
+					long offset = readInt(index, offsets + mid * 4) & 0xffffffffL;
+					if ((offset & 0x80000000L) != 0) {
+						int large = offsets + count * 4 + (int) (offset & 0x7fffffff) * 8;
+						offset = ((long) readInt(index, large) << 32) | (readInt(index, large + 4) & 0xffffffffL);
+					}
+					return offset;
+				}
+				if (cmp < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return -1;
+		}
+
+		GitObject read(long offset) throws IOException {
+			ByteBuffer head = ByteBuffer.allocate(32);
+			channel.read(head, offset);
+			int pos = 0;
+			int c = head.get(pos++) & 0xff;
+			int type = (c >> 4) & 7;
+			long size = c & 15;
+			for (int shift = 4; (c & 0x80) != 0; shift += 7) {
+				c = head.get(pos++) & 0xff;
+				size |= (long) (c & 0x7f) << shift;
+			}
+			if (type == OBJ_OFS_DELTA) {
+				c = head.get(pos++) & 0xff;
+				long back = c & 0x7f;
+				while ((c & 0x80) != 0) {
+					c = head.get(pos++) & 0xff;
+					back = ((back + 1) << 7) | (c & 0x7f);
+				}
+				GitObject base = read(offset - back);
+				return new GitObject(base.type(), applyDelta(base.data(), inflate(offset + pos, size)));
+			}
+			if (type == OBJ_REF_DELTA) {
+				byte[] baseId = new byte[20];
+				head.get(pos, baseId);
+				GitObject base = GitRepository.this.read(baseId);
+				return new GitObject(base.type(), applyDelta(base.data(), inflate(offset + pos + 20, size)));
+			}
+			return new GitObject(type, inflate(offset + pos, size));
+		}
+
+		private byte[] inflate(long position, long size) throws IOException {
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException("Object too large: " + size + " bytes");
+			}
+			Inflater inflater = new Inflater();
+			try {
+				byte[] out = new byte[(int) size];
+				int written = 0;
+				ByteBuffer in = ByteBuffer.allocate(8192);
+				// the stream's end marker need not be read once the size is reached
+				while (written < out.length) {
+					if (inflater.needsInput()) {
+						in.clear();
+						int read = channel.read(in, position);
+						if (read <= 0) {
+							throw new IOException("Truncated pack");
+						}
+						position += read;
+						inflater.setInput(in.array(), 0, read);
+					}
+					int n = inflater.inflate(out, written, out.length - written);
+					if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+						throw new IOException("Corrupt pack: object shorter than its size");
+					}
+					written += n;
+				}
+				return out;
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt pack: " + e.getMessage(), e);
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	private static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+		int[] pos = { 0 };
+		long baseSize = varint(delta, pos);
+		long resultSize = varint(delta, pos);
+		if (baseSize != base.length) {
+			throw new IOException("Delta does not match its base");
+		}
+		byte[] result = new byte[(int) resultSize];
+		int out = 0;
+		int p = pos[0];
+		while (p < delta.length) {
+			int op = delta[p++] & 0xff;
+			if ((op & 0x80) != 0) {
+				int copyOffset = 0;
+				int copySize = 0;
+				for (int i = 0; i < 4; i++) {
+					if ((op & (1 << i)) != 0) {
+						copyOffset |= (delta[p++] & 0xff) << (8 * i);
+					}
+				}
+				for (int i = 0; i < 3; i++) {
+					if ((op & (0x10 << i)) != 0) {
+						copySize |= (delta[p++] & 0xff) << (8 * i);
+					}
+				}
+				if (copySize == 0) {
+					copySize = 0x10000;
+				}
+				System.arraycopy(base, copyOffset, result, out, copySize);
+				out += copySize;
+			} else if (op != 0) {
+				System.arraycopy(delta, p, result, out, op);
+				p += op;
+				out += op;
+			} else {
+				throw new IOException("Invalid delta");
+			}
+		}
+		return result;
+	}
+
+	private static long varint(byte[] data, int[] pos) {
+		long value = 0;
+		int shift = 0;
+		int c;
+		do {
+			c = data[pos[0]++] & 0xff;
+			value |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return value;
+	}
+
+	private static byte[] inflate(byte[] compressed, int size) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? size : compressed.length * 3);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated object");
+				}
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt object: " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	private static int indexOf(byte[] b, byte value, int from) {
+		for (int i = from; i < b.length; i++) {
+			if (b[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+}
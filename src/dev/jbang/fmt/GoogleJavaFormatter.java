@@ -0,0 +1,194 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.error;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.ToolFactory;
+import org.eclipse.jdt.core.compiler.IScanner;
+import org.eclipse.jdt.core.compiler.ITerminalSymbols;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
+
+import com.google.common.collect.Range;
+import com.google.googlejavaformat.java.Formatter;
+import com.google.googlejavaformat.java.FormatterException;
+import com.google.googlejavaformat.java.JavaFormatterOptions;
+
+/**
+ * google-java-format implementation
+ * <p>
+ * google-java-format attaches comments to the following token and rewrites
+ * them even outside the requested ranges (e.g. "//DEPS" becomes "// DEPS"), so
+ * protected lines are swapped for block comment markers while formatting and
+ * put back afterwards.
+ */
+public class GoogleJavaFormatter implements FormatterBackend {
+
+	private static final Pattern MARKER = Pattern.compile("\\s*/\\*jbang-fmt:(\\d+)\\*/\\s*");
+	/**
+	 * Java version google-java-format parses as: that of the javac it runs on,
+	 * as far as the scanner knows it.
+	 */
+	private static final String LEVEL = JavaCore.isSupportedJavaVersion(String.valueOf(Runtime.version().feature()))
+			? String.valueOf(Runtime.version().feature())
+			: JavaCore.latestSupportedJavaVersion();
+	/** Version of google-java-format, as its output changes between versions. */
+	private static final String VERSION = EngineVersion.of(Formatter.class, "Implementation-Version");
+
+	private final JavaFormatterOptions.Style style;
+	private final boolean touchJBang;
+	private final Formatter formatter;
+
+	public GoogleJavaFormatter(JavaFormatterOptions.Style style, boolean touchJBang) {
+		this.style = style;
+		this.touchJBang = touchJBang;
+		this.formatter = new Formatter(JavaFormatterOptions.builder().style(style).build());
+	}
+
+	@Override
+	public String format(String content, List<CodeRange> ranges) throws Exception {
+		Set<Integer> lineComments;
+		try {
+			lineComments = touchJBang ? Set.of() : lineCommentOffsets(content);
+		} catch (InvalidInputException e) {
+			error("Warning: google-java-format could not format the content: " + e.getMessage());
+			return content;
+		}
+
+		// mask protected lines, remembering how much each shifted the offsets
+		List<String> originals = new ArrayList<>();
+		List<int[]> shifts = new ArrayList<>(); // original end offset, cumulative shift
+		StringBuilder masked = new StringBuilder(content.length());
+		String[] lines = content.split("\n", -1);
+		int offset = 0;
+		int shift = 0;
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i];
+			String indent = line.substring(0, line.length() - line.stripLeading().length());
+			// only real comments, a directive-like line can also be part of a text block
+			if (!touchJBang && CodeRange.isProtected(line, i) && lineComments.contains(offset + indent.length())) {
+				String marker = indent + "/*jbang-fmt:" + originals.size() + "*/";
+				originals.add(line);
+				masked.append(marker);
+				shift += marker.length() - line.length();
+				shifts.add(new int[] { offset + line.length(), shift });
+			} else {
+				masked.append(line);
+			}
+			offset += line.length();
+			if (i < lines.length - 1) {
+				masked.append('\n');
+				offset++;
+			}
+		}
+
+		List<Range<Integer>> characterRanges = new ArrayList<>();
+		for (CodeRange range : ranges) {
+			if (range.end() > range.start()) {
+				characterRanges.add(Range.closedOpen(shifted(range.start(), shifts), shifted(range.end(), shifts)));
+			}
+		}
+		if (characterRanges.isEmpty()) {
+			return content;
+		}
+
+		String formatted;
+		var event = new FmtEvents.Format();
+		event.begin();
+		try {
+			formatted = formatter.formatSource(masked.toString(), characterRanges);
+		} catch (FormatterException e) {
+			event.failed = true;
+			error("Warning: google-java-format could not format the content: " + e.getMessage());
+			return content;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.file = FmtEvents.currentFile();
+				event.engine = getName();
+				event.size = content.length();
+				event.commit();
+			}
+		}
+		if (originals.isEmpty()) {
+			return formatted;
+		}
+
+		// put protected lines back, they must still be on lines of their own
+		StringBuilder result = new StringBuilder(formatted.length());
+		String[] formattedLines = formatted.split("\n", -1);
+		int restored = 0;
+		for (int i = 0; i < formattedLines.length; i++) {
+			String line = formattedLines[i];
+			Matcher m = MARKER.matcher(line);
+			if (m.matches() && Integer.parseInt(m.group(1)) == restored) {
+				result.append(originals.get(restored++));
+			} else if (line.contains("/*jbang-fmt:")) {
+				break;
+			} else {
+				result.append(line);
+			}
+			if (i < formattedLines.length - 1) {
+				result.append('\n');
+			}
+		}
+		if (restored != originals.size()) {
+			error("Warning: google-java-format moved JBang directives, leaving the content unformatted");
+			return content;
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Start offsets of all // comments in the content.
+	 */
+	private static Set<Integer> lineCommentOffsets(String content) throws InvalidInputException {
+		Set<Integer> offsets = new HashSet<>();
+		IScanner scanner = ToolFactory.createScanner(true, false, false, LEVEL, LEVEL);
+		scanner.setSource(content.toCharArray());
+		for (int token = scanner.getNextToken(); token != ITerminalSymbols.TokenNameEOF; token = scanner
+			.getNextToken()) {
+			if (token == ITerminalSymbols.TokenNameCOMMENT_LINE) {
+				offsets.add(scanner.getCurrentTokenStartPosition());
+			}
+		}
+		return offsets;
+	}
+
+	private static int shifted(int offset, List<int[]> shifts) {
+		int shift = 0;
+		for (int[] s : shifts) {
+			if (s[0] > offset) {
+				break;
+			}
+			shift = s[1];
+		}
+		return offset + shift;
+	}
+
+	@Override
+	public String getName() {
+		return "Google";
+	}
+
+	@Override
+	public String getFingerprint() {
+		return ContentHash.of(getName() + "\nversion=" + VERSION + "\nstyle=" + style + "\ntouchJBang=" + touchJBang);
+	}
+
+	@Override
+	public boolean isTouchJBang() {
+		return touchJBang;
+	}
+
+	@Override
+	public String toString() {
+		return "google-java-format[style=" + style + ", touchJBang=" + touchJBang + "]";
+	}
+}
@@ -0,0 +1,148 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which files were clean in the previous run so unchanged files can
+ * be skipped without reading them.
+ * <p>
+ * The state file starts with the fingerprint of the formatter settings; when
+ * the settings change, everything is formatted again. Each following line holds
+ * the size, modification time and absolute path of a file that was clean. A
+ * file whose size and modification time still match is considered up-to-date.
+ * With {@code --git-tracked}, the git blob ids of clean contents are kept too,
+ * on lines of their own, as files whose stat data matches the git index are
+ * known by their blob id.
+ */
+public class IncrementalState {
+
+	private static final String HEADER = "# jbang-fmt incremental state ";
+	private static final String BLOB = "blob\t";
+
+	record Stamp(long size, long lastModified) {
+	}
+
+	private final Path file;
+	private final String fingerprint;
+	private final Map<String, Stamp> previous;
+	private final Map<String, Stamp> current = new ConcurrentHashMap<>();
+	private final Set<String> previousBlobs;
+	private final Set<String> currentBlobs = ConcurrentHashMap.newKeySet();
+
+	private IncrementalState(Path file, String fingerprint, Map<String, Stamp> previous, Set<String> previousBlobs) {
+		this.file = file;
+		this.fingerprint = fingerprint;
+		this.previous = previous;
+		this.previousBlobs = previousBlobs;
+	}
+
+	/**
+	 * Loads the state, starting from scratch if it is missing or was written
+	 * with other settings.
+	 */
+	public static IncrementalState load(Path file, String fingerprint) throws IOException {
+		Map<String, Stamp> previous = new HashMap<>();
+		Set<String> previousBlobs = new HashSet<>();
+		if (Files.exists(file)) {
+			try (var lines = Files.lines(file, StandardCharsets.UTF_8)) {
+				var it = lines.iterator();
+				if (it.hasNext() && it.next().equals(HEADER + fingerprint)) {
+					while (it.hasNext()) {
+						String line = it.next();
+						if (line.startsWith(BLOB)) {
+							previousBlobs.add(line.substring(BLOB.length()));
+							continue;
+						}
+						String[] parts = line.split("\t", 3);
+						if (parts.length == 3) {
+							try {
+								previous.put(parts[2], new Stamp(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+							} catch (NumberFormatException e) {
+								// a truncated or edited line, the file is simply checked again
+							}
+						}
+					}
+				} else {
+					verbose("Formatter settings changed since " + file + " was written, checking all files");
+				}
+			}
+		}
+		return new IncrementalState(file, fingerprint, previous, previousBlobs);
+	}
+
+	/**
+	 * Whether the file is unchanged since it was last seen clean. Up-to-date
+	 * files are carried over to the new state.
+	 */
+	public boolean isUpToDate(Path path, long size, long lastModified) {
+		String key = key(path);
+		Stamp stamp = new Stamp(size, lastModified);
+		if (stamp.equals(previous.get(key))) {
+			current.put(key, stamp);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a file as clean, as it is on disk now.
+	 */
+	public void recordClean(Path path) throws IOException {
+		var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		current.put(key(path), new Stamp(attrs.size(), attrs.lastModifiedTime().toMillis()));
+	}
+
+	/**
+	 * Whether content with this git blob id was seen clean. Known blobs are
+	 * carried over to the new state.
+	 */
+	public boolean isCleanBlob(String id) {
+		if (previousBlobs.contains(id)) {
+			currentBlobs.add(id);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records content with this git blob id as clean.
+	 */
+	public void recordCleanBlob(String id) {
+		currentBlobs.add(id);
+	}
+
+	/**
+	 * Writes the state of this run, replacing the previous one atomically.
+	 */
+	public void save() throws IOException {
+		AtomicFile.write(file, w -> {
+			w.write(HEADER + fingerprint);
+			w.newLine();
+			for (var e : new TreeMap<>(current).entrySet()) {
+				w.write(e.getValue().size() + "\t" + e.getValue().lastModified() + "\t" + e.getKey());
+				w.newLine();
+			}
+			for (String id : new TreeSet<>(currentBlobs)) {
+				w.write(BLOB + id);
+				w.newLine();
+			}
+		});
+	}
+
+	private static String key(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+}
@@ -13,16 +13,24 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
+import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.ToolFactory;
+import org.eclipse.jdt.core.compiler.IScanner;
+import org.eclipse.jdt.core.compiler.ITerminalSymbols;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
 import org.eclipse.jdt.core.formatter.CodeFormatter;
-import org.eclipse.jface.text.Document;
-import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.Region;
+import org.eclipse.text.edits.DeleteEdit;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.RangeMarker;
+import org.eclipse.text.edits.ReplaceEdit;
 import org.eclipse.text.edits.TextEdit;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -30,7 +38,10 @@ import org.w3c.dom.NodeList;
 /**
  * Eclipse Java formatter implementation
  */
-public class JavaFormatter {
+public class JavaFormatter implements FormatterBackend {
+
+	/** Version of JDT core, as its output changes between versions. */
+	private static final String VERSION = EngineVersion.of(JavaCore.class, "Bundle-Version");
 
 	private final Map<String, String> settings;
 	private final boolean touchJBang;
@@ -42,36 +53,260 @@ public class JavaFormatter {
 		this.settingsName = settingsName;
 	}
 
-	public String format(String content) throws Exception {
-		return format(content,
-				!touchJBang ? CodeRange.identifyJavaRanges(content) : List.of(new CodeRange(0, content.length())));
+	@Override
+	public String format(String content, List<CodeRange> ranges) throws Exception {
+		List<FormatEdit> edits = formatEdits(content, ranges);
+
+		// applied straight into a presized builder, no jface Document needed
+		var applyEvent = new FmtEvents.ApplyEdits();
+		applyEvent.begin();
+		String formatted = edits.isEmpty() ? content : FormatEdit.apply(content, edits);
+		applyEvent.end();
+		if (applyEvent.shouldCommit()) {
+			applyEvent.file = FmtEvents.currentFile();
+			applyEvent.edits = edits.size();
+			applyEvent.size = formatted.length();
+			applyEvent.changed = !edits.isEmpty();
+			applyEvent.commit();
+		}
+		return formatted;
+	}
+
+	/**
+	 * The edits of the Eclipse formatter itself, without those that replace text
+	 * with the same text.
+	 */
+	@Override
+	public List<FormatEdit> formatEdits(String content, List<CodeRange> ranges) throws Exception {
+		return formatEdits(content, ranges, CodeKind.compilationUnit);
 	}
 
-	String format(String content, List<CodeRange> ranges) throws Exception {
+	@Override
+	public boolean supports(CodeKind kind) {
+		return true;
+	}
+
+	@Override
+	public List<FormatEdit> formatEdits(String content, List<CodeRange> ranges, CodeKind kind) throws Exception {
+		TextEdit edit = computeEdit(content, ranges, kind);
+		List<FormatEdit> edits = new ArrayList<>();
+		if (edit != null) {
+			flatten(content, edit, edits);
+		} else if (kind != CodeKind.statements || !formatTopLevel(content, ranges, edits)) {
+			String file = FmtEvents.currentFile();
+			error("Warning: Eclipse formatter could not format " + (file != null ? file : "the content"));
+			return List.of();
+		}
+		return edits;
+	}
+
+	/**
+	 * Formats statements that do not parse as a whole, as in a JShell script
+	 * declaring methods or types between them, one top level statement or
+	 * declaration at a time. Returns false if one of them does not parse either.
+	 */
+	private boolean formatTopLevel(String content, List<CodeRange> ranges, List<FormatEdit> edits) {
+		List<CodeRange> parts = topLevel(content, getSourceLevel(), getComplianceLevel());
+		if (parts == null) {
+			return false;
+		}
+		for (CodeRange part : parts) {
+			String code = content.substring(part.start(), part.end());
+			List<CodeRange> partRanges = new ArrayList<>();
+			for (CodeRange range : CodeRange.intersect(ranges, part.start(), part.end())) {
+				if (!content.substring(range.start(), range.end()).isBlank()) {
+					partRanges.add(new CodeRange(range.start() - part.start(), range.end() - part.start()));
+				}
+			}
+			if (partRanges.isEmpty()) {
+				continue;
+			}
+			TextEdit edit = computeEdit(code, partRanges, CodeKind.any);
+			if (edit == null) {
+				return false;
+			}
+			List<FormatEdit> partEdits = new ArrayList<>();
+			flatten(code, edit, partEdits);
+			for (FormatEdit e : partEdits) {
+				edits.add(new FormatEdit(e.offset() + part.start(), e.length(), e.text()));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The top level statements and declarations of the code, each from its first
+	 * to its last token, or null if it cannot be scanned. Comments between them
+	 * belong to none. Scanned at the Java version the formatter parses it as, as
+	 * keywords differ between them.
+	 */
+	static List<CodeRange> topLevel(String content, String sourceLevel, String complianceLevel) {
+		IScanner scanner = ToolFactory.createScanner(false, false, false, sourceLevel, complianceLevel);
+		scanner.setSource(content.toCharArray());
+		List<CodeRange> parts = new ArrayList<>();
+		int start = -1;
+		int first = 0;
+		int end = 0;
+		int braces = 0;
+		int parens = 0;
+		try {
+			int token = scanner.getNextToken();
+			while (token != ITerminalSymbols.TokenNameEOF) {
+				if (start < 0) {
+					start = scanner.getCurrentTokenStartPosition();
+					first = token;
+				}
+				end = scanner.getCurrentTokenEndPosition() + 1;
+				switch (token) {
+				case ITerminalSymbols.TokenNameLBRACE -> braces++;
+				case ITerminalSymbols.TokenNameRBRACE -> braces--;
+				case ITerminalSymbols.TokenNameLPAREN -> parens++;
+				case ITerminalSymbols.TokenNameRPAREN -> parens--;
+				default -> {
+				}
+				}
+				int next = scanner.getNextToken();
+				if (braces == 0 && parens == 0 && (token == ITerminalSymbols.TokenNameSEMICOLON
+						|| token == ITerminalSymbols.TokenNameRBRACE && !continues(first, next))) {
+					parts.add(new CodeRange(start, end));
+					start = -1;
+				}
+				token = next;
+			}
+		} catch (InvalidInputException e) {
+			return null;
+		}
+		if (start >= 0) {
+			// JShell takes a last statement without semicolon
+			parts.add(new CodeRange(start, end));
+		}
+		return parts;
+	}
+
+	/**
+	 * Whether the token after a closing brace belongs to the same statement, as
+	 * in an initializer or anonymous class followed by a semicolon, or an
+	 * else, catch or finally block.
+	 */
+	private static boolean continues(int first, int next) {
+		return switch (next) {
+		case ITerminalSymbols.TokenNameSEMICOLON, ITerminalSymbols.TokenNameCOMMA, ITerminalSymbols.TokenNameDOT,
+				ITerminalSymbols.TokenNameelse, ITerminalSymbols.TokenNamecatch, ITerminalSymbols.TokenNamefinally ->
+			true;
+		case ITerminalSymbols.TokenNamewhile -> first == ITerminalSymbols.TokenNamedo;
+		default -> false;
+		};
+	}
+
+	/**
+	 * The edit tree of the Eclipse formatter, null if it could not format.
+	 */
+	TextEdit computeEdit(String content, List<CodeRange> ranges) {
+		return computeEdit(content, ranges, CodeKind.compilationUnit);
+	}
+
+	TextEdit computeEdit(String content, List<CodeRange> ranges, CodeKind kind) {
 		// Convert CodeRange objects to IRegion array
 		List<IRegion> regions = new ArrayList<>();
 		for (CodeRange range : ranges) {
 			regions.add(new Region(range.start(), range.end() - range.start()));
 		}
 
+		var formatEvent = new FmtEvents.Format();
+		formatEvent.begin();
 		CodeFormatter codeFormatter = ToolFactory.createCodeFormatter(settings, ToolFactory.M_FORMAT_EXISTING);
-		TextEdit edit = codeFormatter.format(CodeFormatter.K_COMPILATION_UNIT, content, regions.toArray(new IRegion[0]),
-				0, null);
+		int k = switch (kind) {
+		case compilationUnit -> CodeFormatter.K_COMPILATION_UNIT;
+		case statements -> CodeFormatter.K_STATEMENTS;
+		// the formatter probes expression, statements, body declarations and unit
+		case any -> CodeFormatter.K_UNKNOWN;
+		};
+		TextEdit edit = null;
+		try {
+			edit = codeFormatter.format(k, content, regions.toArray(new IRegion[0]), 0, null);
+		} finally {
+			formatEvent.end();
+			if (formatEvent.shouldCommit()) {
+				formatEvent.file = FmtEvents.currentFile();
+				formatEvent.engine = getName();
+				formatEvent.size = content.length();
+				formatEvent.edits = edit != null ? edit.getChildrenSize() : 0;
+				formatEvent.failed = edit == null;
+				formatEvent.commit();
+			}
+		}
+		return edit;
+	}
 
-		if (edit != null) {
-			IDocument doc = new Document(content);
-			edit.apply(doc);
-			return doc.get();
+	/**
+	 * Collects the edits of the tree in offset order. Offsets in a TextEdit tree
+	 * are all relative to the original content. Children of a replace or delete
+	 * edit lie in the region it replaces, so only the edit itself counts; edits
+	 * that move or copy text are not expected from the formatter and rejected.
+	 */
+	static void flatten(String content, TextEdit edit, List<FormatEdit> edits) {
+		String text;
+		if (edit instanceof ReplaceEdit replace) {
+			text = replace.getText();
+		} else if (edit instanceof InsertEdit insert) {
+			text = insert.getText();
+		} else if (edit instanceof DeleteEdit) {
+			text = "";
+		} else if (edit instanceof MultiTextEdit || edit instanceof RangeMarker) {
+			// containers, the children hold the changes
+			for (TextEdit child : edit.getChildren()) {
+				flatten(content, child, edits);
+			}
+			return;
 		} else {
-			error("Warning: Eclipse formatter could not format the content");
-			return content;
+			throw new IllegalArgumentException("Unsupported formatter edit " + edit.getClass().getSimpleName());
 		}
+		int length = edit.getLength();
+		if (text.length() == length && content.regionMatches(edit.getOffset(), text, 0, length)) {
+			return;
+		}
+		edits.add(new FormatEdit(edit.getOffset(), length, text));
 	}
 
+	@Override
 	public String getName() {
 		return "Eclipse";
 	}
 
+	@Override
+	public String getFingerprint() {
+		StringBuilder sb = new StringBuilder(getName()).append("\nversion=")
+			.append(VERSION)
+			.append("\ntouchJBang=")
+			.append(touchJBang);
+		if (settings != null) {
+			new TreeMap<>(settings).forEach((k, v) -> sb.append('\n').append(k).append('=').append(v));
+		}
+		return ContentHash.of(sb.toString());
+	}
+
+	/**
+	 * The Java version the code is parsed as, the latest one unless configured.
+	 */
+	String getSourceLevel() {
+		String level = settings != null ? settings.get(JavaCore.COMPILER_SOURCE) : null;
+		return level != null ? level : JavaCore.latestSupportedJavaVersion();
+	}
+
+	/**
+	 * The compliance level the code is parsed with, the source level unless
+	 * configured.
+	 */
+	String getComplianceLevel() {
+		String level = settings != null ? settings.get(JavaCore.COMPILER_COMPLIANCE) : null;
+		return level != null ? level : getSourceLevel();
+	}
+
+	@Override
+	public boolean isTouchJBang() {
+		return touchJBang;
+	}
+
 	@Override
 	public String toString() {
 		return settingsName + "[" + (settings == null ? 0 : settings.size()) + " properties, touchJBang="
@@ -183,13 +418,24 @@ public class JavaFormatter {
 	 */
 	public static Map<String, String> loadEclipseSettings(Path settingsFile) throws IOException {
 		String fileName = settingsFile.getFileName().toString();
+		var event = new FmtEvents.SettingsLoad();
+		event.begin();
 
+		Map<String, String> settings;
 		// First try to load as a direct file
 		if (Files.exists(settingsFile)) {
-			return loadSettingsFromFile(settingsFile, fileName);
+			settings = loadSettingsFromFile(settingsFile, fileName);
+		} else {
+			// If file doesn't exist, try to load from classpath as resource
+			settings = loadSettingsFromClasspath(fileName);
 		}
 
-		// If file doesn't exist, try to load from classpath as resource
-		return loadSettingsFromClasspath(fileName);
+		event.end();
+		if (event.shouldCommit()) {
+			event.source = settingsFile.toString();
+			event.settings = settings.size();
+			event.commit();
+		}
+		return settings;
 	}
 }
\ No newline at end of file
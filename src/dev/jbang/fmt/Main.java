@@ -3,38 +3,67 @@
 //DEPS org.eclipse.jdt:org.eclipse.jdt.core:3.43.0
 //DEPS org.eclipse.platform:org.eclipse.jface.text:3.28.0
 //DEPS info.picocli:picocli:4.7.7
+//DEPS com.google.googlejavaformat:google-java-format:1.28.0
+//DEPS org.eclipse.lsp4j:org.eclipse.lsp4j:0.24.0
+//DEPS com.google.code.gson:gson:2.14.0
+
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.code=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.file=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.parser=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.tree=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED
 
 //JAVAC_OPTIONS -proc:full -Averbose=true
 
 //FILES ../../../google.xml ../../../java.xml ../../../eclipse.xml ../../../jbang.xml ../../../spring.prefs ../../../quarkus.xml
 
 //SOURCES JavaFormatter.java CodeRange.java KeyValueConsumer.java CommaSeparatedConverter.java FmtLogger.java
+//SOURCES SourceRoots.java PathWalker.java BoundedPriorityBlockingQueue.java FormatterBackend.java
+//SOURCES GoogleJavaFormatter.java FormatService.java ContentHash.java IncrementalState.java ResultCache.java
+//SOURCES SourceArchives.java FormatMemo.java FormatWatchdog.java Quarantine.java
+//SOURCES MemoryBudget.java FmtEvents.java FormatRun.java FormatRunMBean.java
+//SOURCES FormatEdit.java TextDiff.java FmtLanguageServer.java FormatVerifier.java
+//SOURCES Shard.java ShardReport.java SourceKind.java SourceGraph.java
+//SOURCES GitRepository.java GitIndex.java StagedFiles.java TrackedFiles.java CompletionJournal.java
+//SOURCES ConcurrencyController.java AtomicFile.java EngineVersion.java
 
 package dev.jbang.fmt;
 
 import static dev.jbang.fmt.FmtLogger.*;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.lsp4j.launch.LSPLauncher;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import com.google.googlejavaformat.java.JavaFormatterOptions;
 
 import picocli.CommandLine;
 import picocli.CommandLine.ArgGroup;
@@ -44,6 +73,7 @@ import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.ParameterException;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
 import picocli.CommandLine.UnmatchedArgumentException;
 
 /**
@@ -78,12 +108,27 @@ public class Main implements Callable<Integer> {
 	}
 
 	/**
-	 * Tracks file processing statistics - thread-safe for concurrent access
+	 * Tracks file processing statistics - thread-safe for concurrent access.
+	 * Counters are LongAdders so consumers never contend on updating them.
 	 */
-	private static class FileStats {
-		private final AtomicInteger processed = new AtomicInteger(0);
-		private final AtomicInteger modified = new AtomicInteger(0);
-		private final AtomicInteger skipped = new AtomicInteger(0);
+	static class FileStats {
+		private final LongAdder processed = new LongAdder();
+		private final LongAdder modified = new LongAdder();
+		private final LongAdder skipped = new LongAdder();
+		private final LongAdder upToDate = new LongAdder();
+		private final LongAdder unverified = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		// counted once a file is done, bytes above when it is read
+		private final LongAdder completedBytes = new LongAdder();
+
+		// time consumers spent waiting for discovery, and discovery waiting for
+		// consumers, tells which side bounds the run
+		private final LongAdder takeWaitNanos = new LongAdder();
+		private final LongAdder putWaitNanos = new LongAdder();
+		private volatile long discoveryNanos;
+
+		// level --adaptive-threads settled on, 0 when fixed
+		private volatile int adaptiveThreads;
 
 		private final long startTime;
 
@@ -92,15 +137,89 @@ public class Main implements Callable<Integer> {
 		}
 
 		void addProcessed() {
-			processed.incrementAndGet();
+			processed.increment();
 		}
 
 		void addModified() {
-			modified.incrementAndGet();
+			modified.increment();
 		}
 
 		void addSkipped() {
-			skipped.incrementAndGet();
+			skipped.increment();
+		}
+
+		void addUpToDate() {
+			upToDate.increment();
+		}
+
+		void addUnverified() {
+			unverified.increment();
+		}
+
+		void addBytes(long count) {
+			bytes.add(count);
+		}
+
+		void addCompletedBytes(long count) {
+			completedBytes.add(count);
+		}
+
+		long getProcessed() {
+			return processed.sum();
+		}
+
+		long getModified() {
+			return modified.sum();
+		}
+
+		long getSkipped() {
+			return skipped.sum();
+		}
+
+		long getUpToDate() {
+			return upToDate.sum();
+		}
+
+		long getUnverified() {
+			return unverified.sum();
+		}
+
+		long getBytes() {
+			return bytes.sum();
+		}
+
+		long getCompletedBytes() {
+			return completedBytes.sum();
+		}
+
+		private String upToDateOutput() {
+			long up = upToDate.sum();
+			return up > 0 ? String.format(", %d up-to-date", up) : "";
+		}
+
+		private String unverifiedOutput() {
+			long failed = unverified.sum();
+			return failed > 0 ? String.format(", %d failed verification", failed) : "";
+		}
+
+		void addTakeWait(long nanos) {
+			takeWaitNanos.add(nanos);
+		}
+
+		void addPutWait(long nanos) {
+			putWaitNanos.add(nanos);
+		}
+
+		void setAdaptiveThreads(int threads) {
+			adaptiveThreads = threads;
+		}
+
+		private String threadsOutput() {
+			return adaptiveThreads > 0 ? String.format(" with %d threads (adaptive)", adaptiveThreads) : "";
+		}
+
+		void discoveryDone() {
+			discoveryNanos = System.nanoTime() - startTime;
 		}
 
 		double getElapsedSeconds() {
@@ -108,19 +227,31 @@ public class Main implements Callable<Integer> {
 		}
 
 		String getNormalOutput() {
-			int proc = processed.get();
-			int mod = modified.get();
-			int skip = skipped.get();
-			int clean = proc - mod;
-			return String.format("Processed %d files (%d changed, %d clean, %d skipped) in %.1fs", proc, mod,
-					clean, skip, getElapsedSeconds());
+			long proc = processed.sum();
+			long mod = modified.sum();
+			long skip = skipped.sum();
+			long clean = proc - mod;
+			return String.format("Processed %d files (%d changed, %d clean, %d skipped%s%s) in %.1fs%s", proc, mod,
+					clean, skip, upToDateOutput(), unverifiedOutput(), getElapsedSeconds(), threadsOutput());
 		}
 
 		String getCheckOutput() {
-			int mod = modified.get();
-			int proc = processed.get();
-			return String.format("Would reformat %d files (out of %d) in %.1fs. Run without --check to apply.",
-					mod, proc, getElapsedSeconds());
+			long mod = modified.sum();
+			long proc = processed.sum();
+			return String.format("Would reformat %d files (out of %d%s%s) in %.1fs%s. Run without --check to apply.",
+					mod, proc, upToDateOutput(), unverifiedOutput(), getElapsedSeconds(), threadsOutput());
+		}
+
+		String getFailFastOutput(Path file) {
+			return String.format("Would reformat %s (stopped after %d files) in %.1fs. Run without --check to apply.",
+					file, processed.sum(), getElapsedSeconds());
+		}
+
+		String getQueueOutput(int consumers) {
+			return String.format(
+					"Discovery took %.1fs and waited %.1fs on a full queue; %d consumers waited %.1fs on average for files",
+					discoveryNanos / 1e9, putWaitNanos.sum() / 1e9, consumers,
+					takeWaitNanos.sum() / 1e9 / consumers);
 		}
 	}
 
@@ -133,15 +264,134 @@ public class Main implements Callable<Integer> {
 	@CommandLine.ArgGroup(exclusive = true)
 	FmtLogger verboseQuietExclusive = new FmtLogger();
 
+	@Option(names = "--log-format", description = "Format of log lines: ${COMPLETION-CANDIDATES}", defaultValue = "text")
+	private FmtLogger.Format logFormat;
+
+	@Option(names = "--jfr", paramLabel = "<file>", description = "Write a Java Flight Recorder recording, including events for every formatting phase, to this file")
+	private Path jfrFile;
+
+	@Option(names = "--jmx", description = "Expose live statistics, queue depth and files in flight as the MBean "
+			+ FormatRun.OBJECT_NAME)
+	private boolean jmx;
+
 	@Option(names = "--check", description = "Check if files would change. Exit 1 if any file would change.")
 	private boolean check;
 
-	@Option(names = "--style", description = "Formatter settings file (.xml or .prefs) or predefined style (jbang, eclipse, google, java, quarkus or spring)", defaultValue = "jbang")
+	@Option(names = "--fail-fast", description = "With --check, stop at the first file that would change. Recently modified files are checked first.")
+	private boolean failFast;
+
+	@Option(names = "--schedule", description = "Order in which discovered files are formatted: ${COMPLETION-CANDIDATES}. Defaults to fifo, or newest with --fail-fast.")
+	private Schedule schedule;
+
+	@Option(names = "--incremental", paramLabel = "<state file>", description = "Skip files that are unchanged since they were last seen clean, as recorded in this file")
+	private Path incrementalFile;
+
+	private IncrementalState incremental;
+
+	@Option(names = "--journal", paramLabel = "<file>", description = "Append every completed file to this journal as the run goes, so a run that is interrupted resumes where it stopped; files journaled with the same content are skipped")
+	private Path journalFile;
+
+	private CompletionJournal journal;
+
+	@Option(names = "--cache-dir", paramLabel = "<dir>", description = "Directory with formatting results shared between runs and machines, keyed by file content and settings")
+	private Path cacheDir;
+
+	@Option(names = "--cache-max-size", paramLabel = "<MB>", description = "Size above which least recently used entries are removed from --cache-dir", defaultValue = "512")
+	private long cacheMaxSize;
+
+	private ResultCache cache;
+
+	private SourceArchives archives;
+
+	// identical contents in one run are formatted once
+	private FormatMemo memo;
+
+	@Option(names = "--file-timeout", paramLabel = "<seconds>", description = "Give up on files that take longer to format, reporting where the formatter was stuck")
+	private Integer fileTimeout;
+
+	private FormatWatchdog watchdog;
+
+	@Option(names = "--quarantine", paramLabel = "<file>", description = "Skip files listed here until their content changes; files that hit --file-timeout are added")
+	private Path quarantineFile;
+
+	private Quarantine quarantine;
+
+	@Option(names = "--verify", description = "Check that formatting changed only whitespace and comments and left JBang directives alone; files failing the check are not written. Exit 1 if any file fails.")
+	private boolean verify;
+
+	private FormatVerifier verifier;
+
+	@Option(names = "--memory-budget", paramLabel = "<MB>", description = "Heap for files being formatted, estimated from their size. Lowered automatically under memory pressure. Defaults to half the maximum heap.")
+	private Long memoryBudget;
+
+	@Option(names = "--shard", paramLabel = "<i/n>", description = "Format only the i-th of n slices of the files, assigned by a stable hash of their path, to split a run across CI nodes")
+	private String shardSpec;
+
+	private Shard shard;
+
+	@Option(names = "--shard-balance", paramLabel = "<report>", description = "With --shard, assign the files listed in a previous --report by size so all shards get about the same amount of work")
+	private Path shardBalance;
+
+	@Option(names = "--report", paramLabel = "<file>", description = "Write the results, including every file with its size, as JSON to this file")
+	private Path reportFile;
+
+	// files for --report, by shard key
+	private final Queue<ShardReport.FileEntry> reportFiles = new ConcurrentLinkedQueue<>();
+
+	// shard keys are relative to these, so nodes agree wherever their checkout is
+	private List<Path> keyRoots = List.of();
+
+	@Option(names = "--merge", paramLabel = "<report>", arity = "1..*", description = "Merge the --report files of all shards into one summary (and --report) instead of formatting. Exit 1 if any shard would change files or failed verification.")
+	private List<Path> mergeReports;
+
+	@Option(names = "--kinds", split = ",", paramLabel = "<kind>", description = "Kinds of files to format in directories: ${COMPLETION-CANDIDATES}. Markdown files have their java code blocks formatted. Files given directly are formatted whatever their kind.", defaultValue = "java")
+	private List<SourceKind> kinds;
+
+	@Option(names = "--follow-sources", description = "Treat the sources as JBang scripts, or jbang-catalog.json files (or directories holding one) whose script-refs are, and format them and everything they reference through //SOURCES, transitively, instead of walking directories")
+	private boolean followSources;
+
+	@Option(names = "--staged", description = "Format the files staged in git, as staged, instead of the work tree; sources only narrow them down. Formatting goes to the index and to the work tree, around unstaged changes unless they overlap it.")
+	private boolean staged;
+
+	private StagedFiles stagedFiles;
+
+	@Option(names = "--git-tracked", description = "Format the files tracked by git, listed from its index instead of walking directories; sources only narrow them down. With --incremental, files git knows unchanged are skipped by their content id.")
+	private boolean gitTracked;
+
+	private TrackedFiles trackedFiles;
+
+	@Option(names = "--adaptive-threads", description = "Tune how many files are formatted at the same time by measuring throughput while running, between --min-threads and --max-threads")
+	private boolean adaptiveThreads;
+
+	@Option(names = "--min-threads", paramLabel = "<n>", description = "Lowest number of files formatted at the same time. Defaults to 1.")
+	private Integer minThreads;
+
+	@Option(names = "--max-threads", paramLabel = "<n>", description = "Highest number of files formatted at the same time. Defaults to the number of CPUs, or twice that with --adaptive-threads.")
+	private Integer maxThreads;
+
+	@Option(names = "--walkers", description = "Number of directories listed in parallel during discovery. 1 walks in a stable order.", defaultValue = "4")
+	private int walkers;
+
+	enum Engine {
+		eclipse,
+		google
+	}
+
+	@Option(names = "--engine", description = "Formatter engine: ${COMPLETION-CANDIDATES}", defaultValue = "eclipse")
+	private Engine engine;
+
+	@Option(names = "--style", description = "Formatter settings file (.xml or .prefs) or predefined style (jbang, eclipse, google, java, quarkus or spring). With --engine google: google or aosp.", defaultValue = "jbang")
 	private Path styleFile;
 
-	@Parameters(description = "Java files or directories to format", arity = "1..*")
+	@Option(names = "--lsp", description = "Run as a language server on stdin/stdout, offering document, range and on-type formatting")
+	private boolean lsp;
+
+	@Parameters(description = "Java files, directories or ZIP/JAR archives to format", arity = "0..*")
 	private List<Path> sources;
 
+	@Spec
+	CommandSpec spec;
+
 	@ArgGroup(heading = "%nOverride Formatting Settings%n%n", validate = false)
 	private FormattingSettings formattingSettings = new FormattingSettings();
 
@@ -174,6 +424,7 @@ public class Main implements Callable<Integer> {
 		int exitCode = new CommandLine(new Main())
 			.setParameterExceptionHandler(new ShortErrorMessageHandler())
 			.execute(args);
+		FmtLogger.flush();
 		System.exit(exitCode);
 	}
 
@@ -200,158 +451,456 @@ public class Main implements Callable<Integer> {
 	@Override
 	public Integer call() throws Exception {
 
-		try {
-			JavaFormatter formatter;
+		FmtLogger.format = logFormat;
 
-			final Map<String, String> realsettings = JavaFormatter.loadEclipseSettings(styleFile);
-
-			formattingSettings.lineLength.ifPresent(ll -> {
-				overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.comment.line_length",
-						ll.toString());
-				overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.lineSplit",
-						ll.toString());
-			});
-			formattingSettings.javaVersion.ifPresent(jv -> {
-				jv = majorVersionToEclipseVersion.getOrDefault(jv, jv);
-
-				overrideSettings(realsettings, JavaCore.COMPILER_COMPLIANCE,
-						jv);
-				overrideSettings(realsettings, JavaCore.COMPILER_CODEGEN_TARGET_PLATFORM,
-						jv);
-				overrideSettings(realsettings, JavaCore.COMPILER_SOURCE,
-						jv);
-			});
-
-			formattingSettings.indentWith.ifPresent(iw -> {
-				overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.tabulation.char", iw.name());
-			});
-			formattingSettings.indentSize.ifPresent(is -> {
-				overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.indentation.size", is.toString());
-
-				overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.tabulation.size", is.toString());
-			});
+		if (failFast && !check) {
+			throw new ParameterException(spec.commandLine(), "--fail-fast requires --check");
+		}
+		if (lsp) {
+			return runLanguageServer();
+		}
+		if (mergeReports != null) {
+			return mergeReports();
+		}
+		if (staged && (incrementalFile != null || journalFile != null || followSources || gitTracked)) {
+			throw new ParameterException(spec.commandLine(),
+					"--staged cannot be combined with --incremental, --journal, --follow-sources or --git-tracked");
+		}
+		if (stdout && incrementalFile != null) {
+			// files skipped as up-to-date would be missing from the output
+			throw new ParameterException(spec.commandLine(), "--incremental cannot be combined with --stdout");
+		}
+		if (stdout && journalFile != null) {
+			// files journaled as completed would be missing from the output
+			throw new ParameterException(spec.commandLine(), "--journal cannot be combined with --stdout");
+		}
+		if (gitTracked && followSources) {
+			throw new ParameterException(spec.commandLine(), "--git-tracked cannot be combined with --follow-sources");
+		}
+		if (!staged && !gitTracked && (sources == null || sources.isEmpty())) {
+			throw new ParameterException(spec.commandLine(), "Missing required parameter: '<sources>'");
+		}
+		if ((minThreads != null && minThreads < 1)
+				|| (maxThreads != null && maxThreads < (minThreads != null ? minThreads : 1))) {
+			throw new ParameterException(spec.commandLine(),
+					"--max-threads must be at least --min-threads, and both at least 1");
+		}
+		if (shardSpec != null) {
+			try {
+				shard = Shard.parse(shardSpec);
+			} catch (IllegalArgumentException e) {
+				throw new ParameterException(spec.commandLine(), e.getMessage());
+			}
+		} else if (shardBalance != null) {
+			throw new ParameterException(spec.commandLine(), "--shard-balance requires --shard");
+		}
 
-			if (formattingSettings.settings != null) {
-				formattingSettings.settings.stream().map(s -> s.split("=")).forEach(kv -> {
-					if (!kv[0].startsWith("org.eclipse.jdt.core.formatter.")) {
-						kv[0] = "org.eclipse.jdt.core.formatter." + kv[0];
-					}
-					overrideSettings(realsettings, kv[0], kv.length > 1 ? kv[1] : "true");
-				});
+		Recording recording = null;
+		try {
+			if (jfrFile != null) {
+				recording = startRecording(jfrFile);
 			}
 
-			formatter = new JavaFormatter(styleFile.toString(), realsettings, touchJBang);
+			var createEvent = new FmtEvents.FormatterCreate();
+			createEvent.begin();
+			FormatterBackend formatter = createFormatter(styleFile);
+			createEvent.end();
+			if (createEvent.shouldCommit()) {
+				createEvent.engine = engine.name();
+				createEvent.formatter = formatter.toString();
+				createEvent.commit();
+			}
 
 			verbose("Formatting with " + formatter + "...");
 
 			FileStats stats = new FileStats();
-			formatFiles(sources, formatter, stdout, check, stats);
+			FormatService service = createService(formatter);
+			if (incrementalFile != null) {
+				incremental = IncrementalState.load(incrementalFile, formatter.getFingerprint());
+			}
+			if (fileTimeout != null) {
+				watchdog = new FormatWatchdog(Duration.ofSeconds(fileTimeout), service);
+				// class loading on first use must not count against the first files
+				formatter.format("class Warmup {\n}\n");
+			}
+			if (quarantineFile != null) {
+				quarantine = Quarantine.load(quarantineFile);
+			}
+			if (verify) {
+				// keywords depend on the Java version the formatter parsed the code as
+				verifier = formatter instanceof JavaFormatter eclipse
+						? new FormatVerifier(!touchJBang, eclipse.getSourceLevel(), eclipse.getComplianceLevel())
+						: new FormatVerifier(!touchJBang);
+			}
+			keyRoots = Shard.roots(sources != null ? sources : List.of());
+			if (shard != null) {
+				shard = shard.under(keyRoots);
+			}
+			if (shardBalance != null) {
+				shard = shard.balancedBy(ShardReport.read(shardBalance));
+			}
+			if (cacheDir != null) {
+				cache = new ResultCache(cacheDir, formatter.getFingerprint(), cacheMaxSize * 1024 * 1024);
+			}
+
+			if (journalFile != null) {
+				journal = CompletionJournal.open(journalFile, formatter.getFingerprint());
+			}
+			Path firstChange;
+			try {
+				firstChange = formatFiles(service, stats);
+			} finally {
+				if (journal != null) {
+					journal.close();
+				}
+			}
+
+			if (incremental != null) {
+				incremental.save();
+			}
+			if (quarantine != null) {
+				quarantine.save();
+			}
+			if (cache != null) {
+				verbose(cache.getStatistics());
+				cache.trim();
+			}
+			if (shard != null) {
+				verbose("Shard " + shard + " left " + shard.getOthers() + " files to the other shards");
+			}
+			if (reportFile != null) {
+				ShardReport.of(shard, check, stats, List.copyOf(reportFiles)).write(reportFile);
+			}
 
 			// Print summary based on mode
 			if (stdout) {
 				// For stdout mode, don't print summary as it would interfere with the output
+			} else if (failFast && firstChange != null) {
+				requiredInfo(stats.getFailFastOutput(firstChange));
 			} else if (check) {
 				requiredInfo(stats.getCheckOutput());
 			} else {
 				requiredInfo(stats.getNormalOutput());
 			}
 
-			return (check && stats.modified.get() > 0) ? 1 : 0;
+			return (check && stats.getModified() > 0) || stats.getUnverified() > 0 ? 1 : 0;
 		} catch (Exception e) {
 			error("Error: " + e.getMessage(), e);
 			return 1;
+		} finally {
+			if (recording != null) {
+				// stopping writes the recording to its destination
+				recording.stop();
+				recording.close();
+				verbose("Wrote flight recording to " + jfrFile);
+			}
 		}
 	}
 
-	private static void formatFiles(List<Path> sourcePaths, JavaFormatter formatter, boolean stdout, boolean check,
-			FileStats stats) throws Exception {
+	/**
+	 * The formatting service: the shared one, unless the number of threads is
+	 * configured.
+	 */
+	private FormatService createService(FormatterBackend formatter) {
+		if (!adaptiveThreads && minThreads == null && maxThreads == null) {
+			return FormatService.shared(formatter);
+		}
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int min = minThreads != null ? minThreads : 1;
+		int max = maxThreads != null ? maxThreads : Math.max(min, adaptiveThreads ? 2 * cpus : cpus);
+		int start = Math.clamp(cpus, min, max);
+		return new FormatService(formatter, start, adaptiveThreads ? max : start);
+	}
 
-		// Track processed files to avoid duplicates
-		Set<Path> processedFiles = ConcurrentHashMap.newKeySet();
+	private int mergeReports() throws IOException {
+		List<ShardReport> reports = new ArrayList<>();
+		for (Path file : mergeReports) {
+			reports.add(ShardReport.read(file));
+		}
+		ShardReport merged = ShardReport.merge(reports);
+		if (reportFile != null) {
+			merged.write(reportFile);
+		}
+		requiredInfo(merged.summary(reports.size()));
+		return (merged.check() && merged.changed() > 0) || merged.failedVerification() > 0 ? 1 : 0;
+	}
 
-		// CPU limit semaphore to prevent overwhelming the system
-		var cpuLimit = new Semaphore(Runtime.getRuntime().availableProcessors());
+	private int runLanguageServer() throws Exception {
+		// stdout carries the protocol, everything else must go to stderr
+		PrintStream protocol = System.out;
+		System.setOut(System.err);
+		FmtLogger.stderrOnly = true;
+
+		var server = new FmtLanguageServer(style -> createFormatter(Path.of(style)), styleFile.toString());
+		var launcher = LSPLauncher.createServerLauncher(server, System.in, protocol);
+		server.connect(launcher.getRemoteProxy());
+		var listening = launcher.startListening();
+		server.onExit(() -> listening.cancel(true));
+		try {
+			listening.get();
+		} catch (CancellationException e) {
+			// exit notification
+		}
+		return server.getExitCode();
+	}
 
-		var namingFactory = Thread.ofVirtual().name("fmt-", 0).factory();
+	private static Recording startRecording(Path file) throws Exception {
+		var recording = new Recording(Configuration.getConfiguration("default"));
+		recording.setName("jbang-fmt");
+		recording.setToDisk(true);
+		recording.setDestination(file);
+		recording.start();
+		return recording;
+	}
 
-		try (var executor = Executors.newThreadPerTaskExecutor(namingFactory)) {
-			// Back-pressure: bounded queue of Paths
-			BlockingQueue<Path> queue = new ArrayBlockingQueue<Path>(10_000);
+	// package-private so tests can run with other engines
+	FormatterBackend createFormatter(Path style) throws IOException {
+		return switch (engine) {
+		case eclipse -> createEclipseFormatter(style);
+		case google -> createGoogleFormatter(style);
+		};
+	}
 
-			// Producer: walk directories and put files in queue
-			var walking = executor.submit(producePaths(sourcePaths, stats, queue));
+	private JavaFormatter createEclipseFormatter(Path styleFile) throws IOException {
+		final Map<String, String> realsettings = JavaFormatter.loadEclipseSettings(styleFile);
+
+		formattingSettings.lineLength.ifPresent(ll -> {
+			overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.comment.line_length",
+					ll.toString());
+			overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.lineSplit",
+					ll.toString());
+		});
+		formattingSettings.javaVersion.ifPresent(jv -> {
+			jv = majorVersionToEclipseVersion.getOrDefault(jv, jv);
+
+			overrideSettings(realsettings, JavaCore.COMPILER_COMPLIANCE,
+					jv);
+			overrideSettings(realsettings, JavaCore.COMPILER_CODEGEN_TARGET_PLATFORM,
+					jv);
+			overrideSettings(realsettings, JavaCore.COMPILER_SOURCE,
+					jv);
+		});
+
+		formattingSettings.indentWith.ifPresent(iw -> {
+			overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.tabulation.char", iw.name());
+		});
+		formattingSettings.indentSize.ifPresent(is -> {
+			overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.indentation.size", is.toString());
+
+			overrideSettings(realsettings, "org.eclipse.jdt.core.formatter.tabulation.size", is.toString());
+		});
+
+		if (formattingSettings.settings != null) {
+			formattingSettings.settings.stream().map(s -> s.split("=")).forEach(kv -> {
+				if (!kv[0].startsWith("org.eclipse.jdt.core.formatter.")) {
+					kv[0] = "org.eclipse.jdt.core.formatter." + kv[0];
+				}
+				overrideSettings(realsettings, kv[0], kv.length > 1 ? kv[1] : "true");
+			});
+		}
 
-			// create Consumers: process files from queue, but no more than 2x the number of
-			// CPUs
-			int consumers = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
-			var tasks = new ArrayList<Future<?>>();
-			for (int i = 0; i < consumers; i++) {
-				tasks.add(executor.submit(() -> {
-					for (;;) {
-						Path p;
-						try {
-							p = queue.take();
-						} catch (InterruptedException e) {
-							Thread.currentThread().interrupt();
-							break;
-						}
+		return new JavaFormatter(styleFile.toString(), realsettings, touchJBang);
+	}
 
-						if (p.equals(DONE)) {
-							queue.offer(p);
-							break;
-						}
+	private GoogleJavaFormatter createGoogleFormatter(Path styleFile) {
+		if (formattingSettings.lineLength.isPresent() || formattingSettings.indentWith.isPresent()
+				|| formattingSettings.indentSize.isPresent() || formattingSettings.javaVersion.isPresent()
+				|| formattingSettings.settings != null) {
+			error("Warning: formatting setting overrides are ignored by the google engine");
+		}
+		// google-java-format only knows two styles; anything else means its default
+		var style = "aosp".equalsIgnoreCase(styleFile.toString()) ? JavaFormatterOptions.Style.AOSP
+				: JavaFormatterOptions.Style.GOOGLE;
+		return new GoogleJavaFormatter(style, touchJBang);
+	}
 
-						// Skip if already processed
-						if (!processedFiles.add(p.toAbsolutePath())) {
-							continue;
+	/**
+	 * Formats all sources in parallel. Returns the first file that would change
+	 * when running with --fail-fast, otherwise null.
+	 */
+	private Path formatFiles(FormatService service, FileStats stats) throws Exception {
+
+		// --stdout output must come in a stable order
+		int walkerCount = stdout ? 1 : walkers;
+
+		// first file that would change, used to stop early with --fail-fast
+		var firstChange = new AtomicReference<Path>();
+
+		// Back-pressure: bounded queue of files; when failing fast check the
+		// most recently modified files first as they are the likely offenders
+		BlockingQueue<QueuedFile> queue = newQueue(
+				schedule != null ? schedule : failFast ? Schedule.newest : Schedule.fifo);
+
+		try (var archives = new SourceArchives();
+				var stagedFiles = staged ? StagedFiles.open(Path.of(""), !check && !stdout) : null;
+				var budget = new MemoryBudget(
+						memoryBudget != null ? memoryBudget * 1024 * 1024 : MemoryBudget.defaultBudget());
+				var monitor = jmx ? new FormatRun(stats, queue, service).register() : null;
+				var controller = adaptiveThreads ? new ConcurrencyController(service,
+						() -> stats.getProcessed() + stats.getUpToDate(), stats::getCompletedBytes,
+						minThreads != null ? minThreads : 1, service.getMaxParallelism()) : null) {
+			this.archives = archives;
+			this.stagedFiles = stagedFiles;
+			memo = new FormatMemo(service, FormatMemo.DEFAULT_CAPACITY);
+
+			// Producer: walk directories (or follow //SOURCES, or list the index)
+			// and put files in queue, consumers format them. Overlapping sources are
+			// dropped up front so no file is discovered twice; the source graph
+			// dedupes itself.
+			Runnable producer;
+			if (stagedFiles != null) {
+				producer = produceIndexed(stagedFiles.files(sources, EnumSet.copyOf(kinds)), stats, queue, archives,
+						shard);
+			} else if (gitTracked) {
+				trackedFiles = TrackedFiles.open(Path.of(""));
+				producer = produceIndexed(trackedFiles.files(sources, EnumSet.copyOf(kinds)), stats, queue, archives,
+						shard);
+			} else if (followSources) {
+				producer = followSources(sources, stats, queue, archives, shard);
+			} else {
+				List<Path> roots = SourceRoots.canonicalize(sources, p -> kinds.contains(SourceKind.of(p)));
+				producer = producePaths(roots, walkerCount, stats, queue, archives, shard, EnumSet.copyOf(kinds));
+			}
+			service.process(queue, DONE, producer,
+					p -> {
+						// Admission: only format while the estimated heap use fits
+						long bytes = MemoryBudget.estimate(p.size());
+						budget.acquire(bytes);
+						return () -> budget.release(bytes);
+					},
+					p -> {
+						if ((incremental != null || journal != null) && !archives.isEntry(p.path()) && isUpToDate(p)) {
+							stats.addUpToDate();
+							report(p, false);
+							return false;
+						}
+						if (monitor != null) {
+							monitor.started(archives.displayName(p.path()));
 						}
-
-						// Acquire CPU permit before formatting
 						try {
-							cpuLimit.acquire();
-							formatFile(p, formatter, stdout, check, stats);
-						} catch (Exception e) {
-							error("Failed " + p + ": " + e.getMessage());
+							boolean changed = formatFile(p.path(), service.getBackend(), stats);
+							stats.addCompletedBytes(p.size());
+							report(p, changed);
+							return changed && failFast && firstChange.compareAndSet(null, p.path());
 						} finally {
-							cpuLimit.release();
+							if (monitor != null) {
+								monitor.finished();
+							}
 						}
+					},
+					(p, e) -> error("Failed " + archives.displayName(p.path()) + ": " + e.getMessage()),
+					stats::addTakeWait);
 
-					}
-				}));
+			if (controller != null) {
+				stats.setAdaptiveThreads(controller.getLevel());
+			}
+			verbose(stats.getQueueOutput(service.getConsumers()));
+			verbose(budget.getStatistics());
+			if (memo.getReused() > 0) {
+				verbose("Reused results for " + memo.getReused() + " files with duplicate content");
 			}
 
-			walking.get(); // propagate discovery errors
-			for (var t : tasks)
-				t.get(); // propagate formatting errors
+			// archives are never changed in place, changed entries go to a copy
+			if (!check && !stdout) {
+				archives.writeFormatted();
+				if (stagedFiles != null) {
+					stagedFiles.save();
+				}
+			}
 		}
+		return firstChange.get();
 	}
 
-	private static final Path DONE = Path.of("ENDENDEND");
+	/**
+	 * Whether --incremental knows the file as clean, by its size and
+	 * modification time or, for files git tracks whose stat data still matches
+	 * its index, by their blob id; or whether --journal has it as completed.
+	 */
+	private boolean isUpToDate(QueuedFile file) throws IOException {
+		long size = file.size();
+		long lastModified = file.lastModified();
+		boolean cleanBlob = false;
+		if (trackedFiles != null) {
+			// the queued stat data is the index's, which may be older than the file;
+			// known clean blobs are carried over even when the file cannot be trusted
+			var attrs = Files.readAttributes(file.path(), BasicFileAttributes.class);
+			size = attrs.size();
+			lastModified = attrs.lastModifiedTime().toMillis();
+			cleanBlob = incremental != null && incremental.isCleanBlob(trackedFiles.blobId(file.path()))
+					&& trackedFiles.isUnchanged(file.path(), attrs);
+		}
+		boolean clean = incremental != null && incremental.isUpToDate(file.path(), size, lastModified);
+		return clean || cleanBlob || (journal != null && journal.isDone(file.path(), size, lastModified));
+	}
 
-	private static Runnable producePaths(List<Path> sourcePaths, FileStats stats, BlockingQueue<Path> queue) {
-		return () -> {
+	private void report(QueuedFile file, boolean changed) {
+		if (reportFile != null) {
+			String key = Shard.key(file.path(), keyRoots, archives);
+			reportFiles.add(new ShardReport.FileEntry(key, file.size(), changed));
+		}
+	}
+
+	/**
+	 * A file waiting to be formatted, with the attributes learned during
+	 * discovery so the queue can be ordered without touching the disk again.
+	 */
+	record QueuedFile(Path path, long size, long lastModified) {
+		static QueuedFile of(Path path, BasicFileAttributes attrs) {
+			return new QueuedFile(path, attrs.size(), attrs.lastModifiedTime().toMillis());
+		}
+	}
+
+	static final QueuedFile DONE = new QueuedFile(Path.of("ENDENDEND"), 0, 0);
+
+	/**
+	 * Order in which queued files are handed to the consumers.
+	 */
+	enum Schedule {
+		/** in discovery order */
+		fifo(null),
+		/**
+		 * largest first (LPT scheduling) so a huge file found late does not become
+		 * the tail that keeps the whole run waiting
+		 */
+		largest(Comparator.comparingLong(QueuedFile::size).reversed()),
+		/** most recently modified first */
+		newest(Comparator.comparingLong(QueuedFile::lastModified).reversed());
+
+		private final Comparator<QueuedFile> order;
+
+		Schedule(Comparator<QueuedFile> order) {
+			this.order = order;
+		}
+	}
+
+	/**
+	 * Creates the bounded work queue. Priority schedules reorder the files
+	 * buffered in the queue; the poison pill always sorts last so it is only
+	 * taken once all files are.
+	 */
+	static BlockingQueue<QueuedFile> newQueue(Schedule schedule) {
+		if (schedule.order == null) {
+			return new ArrayBlockingQueue<>(FormatService.QUEUE_CAPACITY);
+		}
+		return new BoundedPriorityBlockingQueue<>(FormatService.QUEUE_CAPACITY,
+				Comparator.comparing((QueuedFile f) -> f == DONE).thenComparing(schedule.order));
+	}
+
+	static Runnable producePaths(List<Path> sourcePaths, int walkers, FileStats stats,
+			BlockingQueue<QueuedFile> queue, SourceArchives archives, Shard shard, Set<SourceKind> kinds) {
+		return produce(sink -> {
+			var walker = new PathWalker(walkers, p -> kinds.contains(SourceKind.of(p)));
+			List<Path> directories = new ArrayList<>();
 			for (Path target : sourcePaths) {
 				if (Files.exists(target)) {
 					if (Files.isDirectory(target)) {
-						try (var paths = Files.walk(target)) {
-							paths.filter(Files::isRegularFile)
-								.filter(p -> p.toString().endsWith(".java"))
-								.forEach(p -> {
-									try {
-										queue.put(p);
-									} catch (InterruptedException ie) {
-										Thread.currentThread().interrupt();
-									}
-								});
-						} catch (IOException e) {
-							throw new UncheckedIOException(e);
-						}
-					} else if (target.toString().endsWith(".java")) {
-						try {
-							queue.put(target);
-						} catch (InterruptedException ie) {
-							Thread.currentThread().interrupt();
-						}
+						directories.add(target);
+					} else if (SourceKind.of(target) != null) {
+						walker.skipLinksTo(target);
+						sink.accept(QueuedFile.of(target, Files.readAttributes(target, BasicFileAttributes.class)));
+					} else if (SourceArchives.isArchive(target)) {
+						// walked like a directory, through the zip file system
+						directories.add(archives.open(target));
 					} else {
 						stats.addSkipped();
 					}
@@ -359,19 +908,152 @@ public class Main implements Callable<Integer> {
 					error("Warning: Path does not exist: " + target);
 				}
 			}
-			// Poison pill to signal done
-			queue.offer(DONE);
+
+			walker.walk(directories, (p, attrs) -> sink.accept(QueuedFile.of(p, attrs)));
+		}, stats, queue, archives, shard);
+	}
+
+	/**
+	 * Producer for --follow-sources: the files of the JBang projects the entries
+	 * (scripts or catalogs) make up, instead of walking directories.
+	 */
+	static Runnable followSources(List<Path> entries, FileStats stats, BlockingQueue<QueuedFile> queue,
+			SourceArchives archives, Shard shard) {
+		return produce(sink -> SourceGraph.walk(entries, (p, attrs) -> sink.accept(QueuedFile.of(p, attrs))),
+				stats, queue, archives, shard);
+	}
+
+	/**
+	 * Producer for --staged and --git-tracked: files listed from the git index,
+	 * with the size and modification time it recorded for them, so the work tree
+	 * is not walked.
+	 */
+	static Runnable produceIndexed(Map<Path, GitIndex.Entry> files, FileStats stats,
+			BlockingQueue<QueuedFile> queue, SourceArchives archives, Shard shard) {
+		return produce(sink -> {
+			for (var e : files.entrySet()) {
+				sink.accept(new QueuedFile(e.getKey(), e.getValue().size(), e.getValue().mtimeNanos() / 1_000_000));
+			}
+		}, stats, queue, archives, shard);
+	}
+
+	/**
+	 * Finds files to format, handing them to a sink.
+	 */
+	interface Discovery {
+		void discover(Sink sink) throws IOException, InterruptedException;
+
+		interface Sink {
+			void accept(QueuedFile file) throws InterruptedException;
+		}
+	}
+
+	/**
+	 * Runs a discovery, queueing the files of this shard, and puts the poison
+	 * pill on the queue when done.
+	 */
+	private static Runnable produce(Discovery discovery, FileStats stats, BlockingQueue<QueuedFile> queue,
+			SourceArchives archives, Shard shard) {
+		return () -> {
+			try {
+				discovery.discover(file -> {
+					if (shard == null || shard.owns(file.path(), archives)) {
+						enqueue(queue, file, stats);
+					}
+				});
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} finally {
+				stats.discoveryDone();
+				// Poison pill to signal done, also on failure so consumers stop
+				try {
+					queue.put(DONE);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
 		};
 	}
 
-	private static void formatFile(Path file, JavaFormatter formatter, boolean stdout, boolean check, FileStats stats)
-			throws Exception {
+	private static void enqueue(BlockingQueue<QueuedFile> queue, QueuedFile p, FileStats stats)
+			throws InterruptedException {
+		if (!queue.offer(p)) {
+			long waitStart = System.nanoTime();
+			queue.put(p);
+			stats.addPutWait(System.nanoTime() - waitStart);
+		}
+	}
+
+	/**
+	 * Formats a single file, returns true if it changed (or would change).
+	 */
+	private boolean formatFile(Path file, FormatterBackend formatter, FileStats stats) throws Exception {
 
 		// Read the file content
-		String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
-		String formatted = formatter.format(content);
+		var readEvent = new FmtEvents.FileRead();
+		readEvent.begin();
+		byte[] bytes = stagedFiles != null ? stagedFiles.read(file) : Files.readAllBytes(file);
+		String content = new String(bytes, StandardCharsets.UTF_8);
+		stats.addBytes(bytes.length);
+		readEvent.end();
+		if (readEvent.shouldCommit()) {
+			readEvent.file = archives.displayName(file);
+			readEvent.size = bytes.length;
+			readEvent.commit();
+		}
+		SourceKind kind = SourceKind.of(file);
+		if (!formatter.supports(kind.getCodeKind())) {
+			verbose("Skipping " + archives.displayName(file) + ": the " + formatter.getName()
+					+ " engine only formats .java files");
+			stats.addSkipped();
+			return false;
+		}
+		// only hashed when something keyed by content needs it
+		String contentHash = journal != null || quarantine != null || cache != null ? kind.hash(content) : null;
+		if (journal != null && !archives.isEntry(file) && journal.isDone(file, contentHash)) {
+			stats.addUpToDate();
+			return false;
+		}
+		if (quarantine != null && quarantine.contains(contentHash)) {
+			error("Warning: Skipping quarantined file: " + archives.displayName(file));
+			stats.addSkipped();
+			return false;
+		}
+		String formatted;
+		try {
+			formatted = memo.format(kind, content, () -> {
+				String result = cache != null ? cache.lookup(contentHash, content) : null;
+				if (result == null) {
+					Callable<String> format = () -> FmtEvents.withFile(archives.displayName(file),
+							() -> kind.format(content, formatter));
+					result = watchdog != null ? watchdog.format(format) : format.call();
+					if (cache != null) {
+						cache.store(contentHash, content, result, kind.hash(result));
+					}
+				}
+				return result;
+			});
+		} catch (FormatWatchdog.FileTimeoutException e) {
+			error("Timed out formatting " + archives.displayName(file) + ", formatter was at:" + e.getSample(12));
+			if (quarantine != null) {
+				quarantine.add(contentHash, archives.displayName(file));
+			}
+			throw e;
+		}
 		boolean fileChanged = !formatted.equals(content);
 
+		// results from the cache are verified too, they were produced elsewhere
+		if (fileChanged && verifier != null) {
+			try {
+				verifier.verify(kind, content, formatted);
+			} catch (FormatVerifier.VerificationException e) {
+				stats.addUnverified();
+				throw new FormatVerifier.VerificationException("verification failed, not written: " + e.getMessage());
+			}
+		}
+
 		// Always count as processed
 		stats.addProcessed();
 
@@ -382,19 +1064,50 @@ public class Main implements Callable<Integer> {
 
 		if (stdout) {
 			// Always print formatted content to stdout if requested.
-			requiredInfo(formatted);
+			output(formatted);
 		}
 
 		if (fileChanged) {
-			info(file.toString());
+			info(archives.displayName(file));
 			if (!check && !stdout) {
-				//could consider using atomic file operations for safety
-				//but for now keep it simple.
-				//Files.copy(file, file.resolveSibling(file.getFileName().toString() + ".bak"),
-				//		StandardCopyOption.REPLACE_EXISTING);
-				Files.write(file, formatted.getBytes(StandardCharsets.UTF_8));
+				if (archives.isEntry(file)) {
+					archives.recordChange(file, formatted.getBytes(StandardCharsets.UTF_8));
+					return fileChanged;
+				}
+				if (stagedFiles != null) {
+					stagedFiles.recordChange(file, content, formatted);
+					return fileChanged;
+				}
+				// an abandoned formatting thread or an interrupted run must not
+				// leave the source half-written
+				var writeEvent = new FmtEvents.FileWrite();
+				writeEvent.begin();
+				byte[] out = formatted.getBytes(StandardCharsets.UTF_8);
+				AtomicFile.write(file, out);
+				writeEvent.end();
+				if (writeEvent.shouldCommit()) {
+					writeEvent.file = file.toString();
+					writeEvent.size = out.length;
+					writeEvent.commit();
+				}
+				// not recorded clean for --incremental: formatting is not always
+				// idempotent, only content seen to format to itself is clean
+				if (journal != null) {
+					journal.completed(file, kind.hash(formatted));
+				}
+			}
+		} else if (!archives.isEntry(file)) {
+			if (incremental != null) {
+				incremental.recordClean(file);
+				if (trackedFiles != null) {
+					incremental.recordCleanBlob(TrackedFiles.blobId(bytes));
+				}
+			}
+			if (journal != null) {
+				journal.completed(file, contentHash);
 			}
 		}
+		return fileChanged;
 	}
 
 }
@@ -0,0 +1,209 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Admits files for formatting while their estimated memory use fits a heap
+ * budget, so small containers do not run out of memory on huge generated
+ * files.
+ * <p>
+ * A file is estimated to need its size times {@link #EXPANSION_FACTOR} while it
+ * is formatted (source and formatted strings, document and formatter model).
+ * One file is always admitted when nothing else is in flight, however large.
+ * Files are admitted in the order they asked, so a large file waiting for room
+ * is not overtaken by small ones forever.
+ * <p>
+ * The budget adapts to the heap: when a heap pool crosses its usage threshold
+ * after a collection, the budget is halved; every second the pools stay below
+ * their thresholds it grows back by a sixteenth, up to the configured maximum.
+ * The thresholds the pools had before are restored on close.
+ */
+class MemoryBudget implements AutoCloseable {
+
+	/**
+	 * Estimated bytes in flight per byte of source; formatting a 1 MB file of
+	 * dense code with the Eclipse engine needs about 120 MB of heap.
+	 */
+	static final int EXPANSION_FACTOR = 128;
+
+	/** Fraction of a heap pool that counts as pressure after a collection. */
+	private static final double PRESSURE_THRESHOLD = 0.75;
+
+	private static final long RECOVERY_NANOS = 1_000_000_000L;
+
+	private final long maxBudget;
+	private final long minBudget;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private record Waiter(long bytes, Condition admitted) {
+	}
+
+	// in arrival order, only the first may be admitted
+	private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+	private long budget;
+	private long inFlight;
+	private long peakInFlight;
+	private long lastChange;
+	private int pressureEvents;
+
+	private final Map<MemoryPoolMXBean, Long> pools = new LinkedHashMap<>();
+	private final NotificationListener listener = this::onNotification;
+
+	MemoryBudget(long maxBudget) {
+		this.maxBudget = maxBudget;
+		this.minBudget = Math.max(1, maxBudget / 64);
+		this.budget = maxBudget;
+		this.lastChange = System.nanoTime() - RECOVERY_NANOS;
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			long max = pool.getUsage().getMax();
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+				pools.put(pool, pool.getCollectionUsageThreshold());
+				pool.setCollectionUsageThreshold((long) (max * PRESSURE_THRESHOLD));
+			}
+		}
+		if (!pools.isEmpty()) {
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null,
+					null);
+		}
+	}
+
+	/**
+	 * Budget by default: half of the maximum heap.
+	 */
+	static long defaultBudget() {
+		return Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	static long estimate(long size) {
+		return Math.max(1, size) * EXPANSION_FACTOR;
+	}
+
+	/**
+	 * Waits until the bytes fit the current budget and everyone who asked
+	 * earlier was admitted.
+	 */
+	void acquire(long bytes) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if (waiters.isEmpty() && fits(bytes)) {
+				admit(bytes);
+				return;
+			}
+			var waiter = new Waiter(bytes, lock.newCondition());
+			waiters.add(waiter);
+			try {
+				while (waiters.peek() != waiter || !fits(bytes)) {
+					waiter.admitted().await();
+				}
+			} catch (InterruptedException e) {
+				waiters.remove(waiter);
+				signalNext();
+				throw e;
+			}
+			waiters.remove();
+			admit(bytes);
+			// the next one may fit as well
+			signalNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean fits(long bytes) {
+		return inFlight == 0 || inFlight + bytes <= budget;
+	}
+
+	private void admit(long bytes) {
+		inFlight += bytes;
+		peakInFlight = Math.max(peakInFlight, inFlight);
+	}
+
+	private void signalNext() {
+		Waiter next = waiters.peek();
+		if (next != null && fits(next.bytes())) {
+			next.admitted().signal();
+		}
+	}
+
+	/**
+	 * Number of files waiting to be admitted.
+	 */
+	int getWaiting() {
+		lock.lock();
+		try {
+			return waiters.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void release(long bytes) {
+		lock.lock();
+		try {
+			inFlight -= bytes;
+			long now = System.nanoTime();
+			if (budget < maxBudget && now - lastChange > RECOVERY_NANOS
+					&& pools.keySet().stream().noneMatch(MemoryPoolMXBean::isCollectionUsageThresholdExceeded)) {
+				budget = Math.min(maxBudget, budget + maxBudget / 16);
+				lastChange = now;
+			}
+			signalNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void onNotification(Notification n, Object handback) {
+		if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(n.getType())) {
+			lock.lock();
+			try {
+				budget = Math.max(minBudget, budget / 2);
+				lastChange = System.nanoTime();
+				pressureEvents++;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	String getStatistics() {
+		lock.lock();
+		try {
+			return String.format("Memory budget %d MB (now %d MB, lowered %d times), peak %d MB estimated in flight",
+					maxBudget >> 20, budget >> 20, pressureEvents, peakInFlight >> 20);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (!pools.isEmpty()) {
+			try {
+				((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+			} catch (ListenerNotFoundException e) {
+				verbose("Memory listener already removed");
+			}
+			// others may watch the pools too
+			pools.forEach(MemoryPoolMXBean::setCollectionUsageThreshold);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package dev.jbang.fmt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Walks directory trees and hands every matching regular file to a sink.
+ * <p>
+ * With a parallelism above one, that many virtual threads take directories
+ * from a shared deque, list them and queue the sub directories they find for
+ * each other. This keeps slow (network or cold cache) filesystems busy on wide
+ * trees and multiple roots, while a full sink holds back at most one listing
+ * per thread rather than one per directory. With a parallelism of one the walk
+ * is sequential, depth first and in name order, so the output order is stable.
+ * <p>
+ * Like {@link Files#walk}, symbolic links to directories are not followed, but
+ * links to regular files are reported, each file once: a link is skipped when
+ * the walk reports its target itself, when another link to the same target was
+ * reported, or when the target was {@linkplain #skipLinksTo(Path) reported
+ * elsewhere}. Otherwise formatting would write the same file twice at once.
+ */
+public class PathWalker {
+
+	/**
+	 * Receives discovered files; may block (e.g. on a full queue).
+	 */
+	public interface Sink {
+		void accept(Path file, BasicFileAttributes attrs) throws InterruptedException;
+	}
+
+	private final int parallelism;
+	private final Predicate<Path> filter;
+	/** Real paths of the files reported through links or given directly. */
+	private final Set<Path> linkTargets = ConcurrentHashMap.newKeySet();
+	private List<Path> realRoots = List.of();
+
+	public PathWalker(int parallelism, Predicate<Path> filter) {
+		this.parallelism = Math.max(1, parallelism);
+		this.filter = filter;
+	}
+
+	/**
+	 * Skips links to a file that is reported apart from the walk, e.g. because
+	 * it was given directly.
+	 */
+	public void skipLinksTo(Path file) throws IOException {
+		linkTargets.add(file.toRealPath());
+	}
+
+	public void walk(List<Path> roots, Sink sink) throws IOException, InterruptedException {
+		List<Path> reals = new ArrayList<>();
+		for (Path root : roots) {
+			try {
+				reals.add(root.toRealPath());
+			} catch (IOException e) {
+				// reported by the listing
+			}
+		}
+		realRoots = reals;
+		if (parallelism == 1) {
+			for (Path root : roots) {
+				walkSequential(root, sink);
+			}
+		} else {
+			walkParallel(roots, sink);
+		}
+	}
+
+	private void walkSequential(Path dir, Sink sink) throws IOException, InterruptedException {
+		for (Entry entry : list(dir)) {
+			if (entry.attrs().isDirectory()) {
+				walkSequential(entry.path(), sink);
+			} else {
+				sink.accept(entry.path(), entry.attrs());
+			}
+		}
+	}
+
+	private void walkParallel(List<Path> roots, Sink sink) throws IOException, InterruptedException {
+		if (roots.isEmpty()) {
+			return;
+		}
+		// directories found but not visited yet, as paths only; the front is
+		// taken first, so the walk goes depth first and the backlog stays small
+		var dirs = new LinkedBlockingDeque<Path>(roots);
+		// a new instance, so no root is mistaken for it
+		Path done = Path.of("done");
+		var pending = new AtomicInteger(roots.size());
+		var failure = new AtomicReference<Exception>();
+
+		try (ExecutorService executor = Executors
+			.newThreadPerTaskExecutor(Thread.ofVirtual().name("walk-", 0).factory())) {
+			Runnable walker = () -> {
+				try {
+					for (Path dir = dirs.takeFirst(); dir != done; dir = dirs.takeFirst()) {
+						try {
+							if (failure.get() == null) {
+								visit(dir, dirs, pending, sink);
+							}
+						} catch (Exception e) {
+							if (e instanceof InterruptedException) {
+								Thread.currentThread().interrupt();
+							}
+							failure.compareAndSet(null, e);
+						} finally {
+							if (pending.decrementAndGet() == 0) {
+								for (int i = 0; i < parallelism; i++) {
+									dirs.add(done);
+								}
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					failure.compareAndSet(null, e);
+				}
+			};
+			for (int i = 0; i < parallelism; i++) {
+				executor.execute(walker);
+			}
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				failure.compareAndSet(null, e);
+				executor.shutdownNow();
+			}
+		}
+
+		Exception e = failure.get();
+		if (e instanceof IOException ioe) {
+			throw ioe;
+		} else if (e instanceof InterruptedException ie) {
+			throw ie;
+		} else if (e instanceof RuntimeException re) {
+			throw re;
+		} else if (e != null) {
+			throw new UncheckedIOException(new IOException(e));
+		}
+	}
+
+	/**
+	 * Lists one directory, queues its sub directories for any walker and hands
+	 * its files to the sink. Only the walkers hold listings, so however many
+	 * directories wait, at most parallelism listings are kept while the sink
+	 * blocks.
+	 */
+	private void visit(Path dir, LinkedBlockingDeque<Path> dirs, AtomicInteger pending, Sink sink)
+			throws IOException, InterruptedException {
+		List<Entry> entries = list(dir);
+		List<Path> subdirs = new ArrayList<>();
+		for (Entry entry : entries) {
+			if (entry.attrs().isDirectory()) {
+				subdirs.add(entry.path());
+			}
+		}
+		pending.addAndGet(subdirs.size());
+		for (int i = subdirs.size() - 1; i >= 0; i--) {
+			dirs.addFirst(subdirs.get(i));
+		}
+		for (Entry entry : entries) {
+			if (!entry.attrs().isDirectory()) {
+				sink.accept(entry.path(), entry.attrs());
+			}
+		}
+	}
+
+	/**
+	 * Whether the file a link points to is reported apart from this link: by
+	 * the walk of a root it is inside of, or through another link.
+	 */
+	private boolean isReportedElsewhere(Path link) {
+		Path target;
+		try {
+			target = link.toRealPath();
+		} catch (IOException e) {
+			return true; // removed since it was listed
+		}
+		if (filter.test(target)) {
+			for (Path root : realRoots) {
+				// real paths hold no links, so the walk does get there
+				if (target.startsWith(root)) {
+					return true;
+				}
+			}
+		}
+		return !linkTargets.add(target);
+	}
+
+	private record Entry(Path path, BasicFileAttributes attrs) {
+	}
+
+	/**
+	 * Lists a directory in name order, keeping sub directories and regular files
+	 * accepted by the filter.
+	 */
+	private List<Entry> list(Path dir) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path p : stream) {
+				BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+				if (attrs.isSymbolicLink()) {
+					if (!filter.test(p)) {
+						continue;
+					}
+					try {
+						attrs = Files.readAttributes(p, BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue; // dangling link
+					}
+					if (!attrs.isRegularFile() || isReportedElsewhere(p)) {
+						continue;
+					}
+				}
+				if (attrs.isDirectory() || (attrs.isRegularFile() && filter.test(p))) {
+					entries.add(new Entry(p, attrs));
+				}
+			}
+		}
+		entries.sort((a, b) -> a.path().getFileName().toString().compareTo(b.path().getFileName().toString()));
+		return entries;
+	}
+}
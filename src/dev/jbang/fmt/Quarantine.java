@@ -0,0 +1,66 @@
+package dev.jbang.fmt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes of files the formatter got stuck on, so later runs skip them
+ * right away instead of waiting for the timeout again. Editing such a file
+ * changes its hash, which lifts the quarantine.
+ * <p>
+ * Each line of the file holds a content hash and the path it was seen at,
+ * the latter for humans only.
+ */
+public class Quarantine {
+
+	private final Path file;
+	private final Map<String, String> entries;
+	private volatile boolean changed;
+
+	private Quarantine(Path file, Map<String, String> entries) {
+		this.file = file;
+		this.entries = entries;
+	}
+
+	public static Quarantine load(Path file) throws IOException {
+		Map<String, String> entries = new ConcurrentHashMap<>();
+		if (Files.exists(file)) {
+			try (var lines = Files.lines(file, StandardCharsets.UTF_8)) {
+				lines.map(l -> l.split("\t", 2))
+					.filter(parts -> parts.length == 2)
+					.forEach(parts -> entries.put(parts[0], parts[1]));
+			}
+		}
+		return new Quarantine(file, entries);
+	}
+
+	public boolean contains(String contentHash) {
+		return entries.containsKey(contentHash);
+	}
+
+	public void add(String contentHash, String name) {
+		entries.put(contentHash, name);
+		changed = true;
+	}
+
+	/**
+	 * Writes the list if files were added, replacing the previous one
+	 * atomically.
+	 */
+	public void save() throws IOException {
+		if (!changed) {
+			return;
+		}
+		AtomicFile.write(file, w -> {
+			for (var e : new TreeMap<>(entries).entrySet()) {
+				w.write(e.getKey() + "\t" + e.getValue());
+				w.newLine();
+			}
+		});
+	}
+}
@@ -0,0 +1,273 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Directory based cache of formatting results that can be shared between
+ * machines, e.g. on an NFS mount used by all CI agents.
+ * <p>
+ * Entries map the hash of some content, under the settings fingerprint, to
+ * either "clean" or the hash of the formatted content; formatted content is
+ * stored once per hash under {@code blobs}. Every file is written once to a
+ * unique temporary name and then atomically renamed into place, so concurrent
+ * writers never corrupt an entry, and readers never see a partial one. As the
+ * name is derived from the content, racing writers write identical data.
+ * <p>
+ * Only what was observed is recorded: formatted content is not taken to be
+ * clean, as formatting it again can still change it.
+ * <p>
+ * Hits refresh the modification time of the entry; when the cache grows over
+ * its size limit the least recently used entries are removed, each together
+ * with its blob once no other entry refers to it. Trimming is done at most once
+ * an hour across all users of the directory, and leaves recent temporary files
+ * and unreferenced blobs alone, as other writers may be about to rename or
+ * refer to them. An entry whose blob was removed anyway, by a writer racing
+ * with the trim, reads as not cached.
+ */
+public class ResultCache {
+
+	private static final String CLEAN = "clean";
+	private static final String FORMATTED = "formatted ";
+	private static final String TMP = ".tmp-";
+	private static final long TRIM_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+	/** Age below which temporary files and unreferenced blobs may still be in use. */
+	static final long IN_USE_MILLIS = 10 * 60 * 1000;
+
+	private final Path dir;
+	private final Path entries;
+	private final Path blobs;
+	private final long maxBytes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public ResultCache(Path dir, String fingerprint, long maxBytes) {
+		this.dir = dir;
+		this.entries = dir.resolve(fingerprint.substring(0, 16));
+		this.blobs = dir.resolve("blobs");
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the formatted version of the content: the content itself when it is
+	 * known to be clean, or null when the cache does not know it.
+	 */
+	public String lookup(String contentHash, String content) {
+		try {
+			Path entry = shard(entries, contentHash);
+			String value = Files.readString(entry, StandardCharsets.UTF_8);
+			String formatted = null;
+			if (value.equals(CLEAN)) {
+				formatted = content;
+			} else if (value.startsWith(FORMATTED)) {
+				Path blob = shard(blobs, value.substring(FORMATTED.length()));
+				formatted = Files.readString(blob, StandardCharsets.UTF_8);
+				touch(blob);
+			}
+			if (formatted != null) {
+				touch(entry);
+				hits.increment();
+				return formatted;
+			}
+		} catch (NoSuchFileException e) {
+			// not cached
+		} catch (IOException e) {
+			verbose("Ignoring unreadable cache entry for " + contentHash + ": " + e.getMessage());
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Records the result of formatting content.
+	 */
+	public void store(String contentHash, String content, String formatted) {
+		store(contentHash, content, formatted, ContentHash.of(formatted));
+	}
+
+	/**
+	 * Like {@link #store(String, String, String)}, for content hashed other than
+	 * by {@link ContentHash#of(String)}: formattedHash is the same hash of the
+	 * formatted content.
+	 */
+	public void store(String contentHash, String content, String formatted, String formattedHash) {
+		try {
+			if (formatted.equals(content)) {
+				writeOnce(shard(entries, contentHash), CLEAN);
+			} else {
+				// blob first, so an entry never points to a missing blob
+				writeOnce(shard(blobs, formattedHash), formatted);
+				writeOnce(shard(entries, contentHash), FORMATTED + formattedHash);
+			}
+		} catch (IOException e) {
+			verbose("Could not write cache entry for " + contentHash + ": " + e.getMessage());
+		}
+	}
+
+	String getStatistics() {
+		return String.format("Result cache %s: %d hits, %d misses", dir, hits.sum(), misses.sum());
+	}
+
+	/**
+	 * Removes least recently used entries, with blobs no entry refers to anymore,
+	 * while the cache is larger than its limit. Skipped if another run trimmed
+	 * within the last hour.
+	 */
+	public void trim() throws IOException {
+		Path marker = dir.resolve(".last-trim");
+		if (Files.exists(marker)
+				&& System.currentTimeMillis() - Files.getLastModifiedTime(marker).toMillis() < TRIM_INTERVAL_MILLIS) {
+			return;
+		}
+		Files.createDirectories(dir);
+		writeOnce(marker, "");
+		touch(marker);
+
+		long now = System.currentTimeMillis();
+		List<CacheFile> entryFiles = new ArrayList<>();
+		Map<String, CacheFile> blobFiles = new HashMap<>();
+		long[] total = { 0 };
+		Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (file.equals(marker)) {
+					return FileVisitResult.CONTINUE;
+				}
+				var f = new CacheFile(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+				if (file.getFileName().toString().startsWith(TMP)) {
+					// left behind by a writer that died, unless it is still writing
+					if (now - f.lastUsed() > IN_USE_MILLIS) {
+						Files.deleteIfExists(file);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+				total[0] += f.size();
+				if (file.startsWith(blobs)) {
+					blobFiles.put(file.getFileName().toString(), f);
+				} else {
+					entryFiles.add(f);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		if (total[0] <= maxBytes) {
+			return;
+		}
+
+		// entries are tiny, reading them is what keeps a blob from being removed
+		// while an entry still refers to it
+		record Entry(CacheFile file, String blob) {
+		}
+		List<Entry> all = new ArrayList<>();
+		Map<String, Integer> references = new HashMap<>();
+		for (CacheFile f : entryFiles) {
+			String blob = null;
+			try {
+				String value = Files.readString(f.path(), StandardCharsets.UTF_8);
+				if (value.startsWith(FORMATTED)) {
+					blob = value.substring(FORMATTED.length());
+					references.merge(blob, 1, Integer::sum);
+				}
+			} catch (IOException e) {
+				// removed meanwhile, or unreadable: removing it is fine either way
+			}
+			all.add(new Entry(f, blob));
+		}
+		// blobs nobody refers to go first, each as an entry of its own
+		for (var e : blobFiles.entrySet()) {
+			if (!references.containsKey(e.getKey()) && now - e.getValue().lastUsed() > IN_USE_MILLIS) {
+				all.add(new Entry(null, e.getKey()));
+				references.put(e.getKey(), 1);
+			}
+		}
+		all.sort(Comparator.comparingLong((Entry e) -> e.file() != null ? e.file().lastUsed() : Long.MIN_VALUE));
+
+		int removed = 0;
+		for (Entry e : all) {
+			if (total[0] <= maxBytes) {
+				break;
+			}
+			// the entry first, so it never points to a missing blob
+			if (e.file() != null) {
+				Files.deleteIfExists(e.file().path());
+				total[0] -= e.file().size();
+				removed++;
+			}
+			CacheFile blob = e.blob() != null ? blobFiles.get(e.blob()) : null;
+			if (blob != null && references.merge(e.blob(), -1, Integer::sum) == 0 && !isUsedSince(blob)) {
+				Files.deleteIfExists(blob.path());
+				total[0] -= blob.size();
+			}
+		}
+		verbose("Trimmed " + removed + " least recently used entries from result cache " + dir);
+	}
+
+	private record CacheFile(Path path, long size, long lastUsed) {
+	}
+
+	/**
+	 * Whether the blob was read, or stored again, since the cache was walked.
+	 */
+	private static boolean isUsedSince(CacheFile blob) {
+		try {
+			return Files.getLastModifiedTime(blob.path()).toMillis() > blob.lastUsed();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static Path shard(Path base, String hash) {
+		return base.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private static void writeOnce(Path target, String value) throws IOException {
+		if (Files.exists(target)) {
+			// a blob about to be referred to again must not look unused to trim
+			touch(target);
+			return;
+		}
+		Files.createDirectories(target.getParent());
+		Path tmp = target.resolveSibling(TMP + UUID.randomUUID());
+		try {
+			Files.writeString(tmp, value, StandardCharsets.UTF_8);
+			try {
+				Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, target);
+			}
+		} catch (FileAlreadyExistsException e) {
+			// another writer won the race with the same content
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static void touch(Path file) {
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// LRU bookkeeping only, the entry itself is fine
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package dev.jbang.fmt;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * The slice of the files one CI node formats with {@code --shard i/n}.
+ * <p>
+ * Files are assigned by a stable hash of their path relative to the source
+ * argument they were found under, or to the directory holding all files given
+ * directly, so every node running the same command on its own checkout agrees
+ * on the assignment without talking to the others, wherever the checkout is
+ * and whether the sources are given as relative or absolute paths. With a
+ * previous run's report, the files it lists are instead spread over the shards
+ * largest first so every shard gets about the same number of bytes; files it
+ * does not list still go by hash.
+ */
+final class Shard {
+
+	private static final Path WORKING_DIR = Path.of("").toAbsolutePath();
+
+	private final int index;
+	private final int count;
+	private final Map<String, Integer> assignment;
+	private final List<Path> roots;
+	private final LongAdder others = new LongAdder();
+
+	private Shard(int index, int count, Map<String, Integer> assignment, List<Path> roots) {
+		this.index = index;
+		this.count = count;
+		this.assignment = assignment;
+		this.roots = roots;
+	}
+
+	/**
+	 * Parses {@code i/n}, with i counting from 1.
+	 */
+	static Shard parse(String spec) {
+		String[] parts = spec.split("/");
+		try {
+			if (parts.length == 2) {
+				int i = Integer.parseInt(parts[0].trim());
+				int n = Integer.parseInt(parts[1].trim());
+				if (n >= 1 && i >= 1 && i <= n) {
+					return new Shard(i - 1, n, Map.of(), List.of());
+				}
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid shard '" + spec + "', expected i/n with 1 <= i <= n");
+	}
+
+	/**
+	 * This shard with the files of a previous report assigned by size (longest
+	 * processing time first: each file, largest first, goes to the shard with
+	 * the fewest bytes so far).
+	 */
+	Shard balancedBy(ShardReport previous) {
+		List<ShardReport.FileEntry> files = previous.files()
+			.stream()
+			.sorted(Comparator.comparingLong(ShardReport.FileEntry::size)
+				.reversed()
+				.thenComparing(ShardReport.FileEntry::path))
+			.toList();
+		long[] bytes = new long[count];
+		Map<String, Integer> balanced = new HashMap<>(files.size() * 2);
+		for (ShardReport.FileEntry file : files) {
+			int smallest = 0;
+			for (int s = 1; s < count; s++) {
+				if (bytes[s] < bytes[smallest]) {
+					smallest = s;
+				}
+			}
+			bytes[smallest] += file.size();
+			balanced.put(file.path(), smallest);
+		}
+		return new Shard(index, count, balanced, roots);
+	}
+
+	/**
+	 * This shard with keys relative to the given roots, see {@link #roots}.
+	 */
+	Shard under(List<Path> roots) {
+		return new Shard(index, count, assignment, roots);
+	}
+
+	/**
+	 * Whether this shard formats the file. Files left to other shards are
+	 * counted.
+	 */
+	boolean owns(Path file, SourceArchives archives) {
+		String key = key(file, roots, archives);
+		Integer assigned = assignment.get(key);
+		if ((assigned != null ? assigned : hash(key)) == index) {
+			return true;
+		}
+		others.increment();
+		return false;
+	}
+
+	private int hash(String key) {
+		CRC32C crc = new CRC32C();
+		crc.update(key.getBytes(StandardCharsets.UTF_8));
+		return (int) (crc.getValue() % count);
+	}
+
+	long getOthers() {
+		return others.sum();
+	}
+
+	/**
+	 * The directories keys are relative to: the source directories, and the
+	 * closest directory that holds all sources that are files or archives, so
+	 * files given directly keep apart what tells same-named ones apart.
+	 */
+	static List<Path> roots(List<Path> sources) {
+		List<Path> roots = new ArrayList<>();
+		Path common = null;
+		boolean anyFile = false;
+		for (Path source : sources) {
+			Path root = source.toAbsolutePath().normalize();
+			if (Files.isDirectory(root)) {
+				roots.add(root);
+			} else if (root.getParent() != null) {
+				Path parent = root.getParent();
+				if (!anyFile) {
+					common = parent;
+					anyFile = true;
+				}
+				while (common != null && !parent.startsWith(common)) {
+					common = common.getParent();
+				}
+			}
+		}
+		// none when on different drives, they are then named by absolute paths
+		if (common != null) {
+			roots.add(common);
+		}
+		return roots;
+	}
+
+	/**
+	 * The name a file is known by in shard assignments and reports: its path
+	 * relative to the outermost root it is under with / separators, and for
+	 * archive entries the archive's followed by {@code !} and the entry. Files
+	 * under no root (e.g. followed //SOURCES) are named relative to the working
+	 * directory. Files at the same place under two roots share a name, and so a
+	 * shard.
+	 */
+	static String key(Path file, List<Path> roots, SourceArchives archives) {
+		Path archive = archives.archiveOf(file);
+		return archive == null ? relative(file, roots) : relative(archive, roots) + "!" + file;
+	}
+
+	private static String relative(Path path, List<Path> roots) {
+		Path p = path.toAbsolutePath().normalize();
+		Path base = null;
+		for (Path root : roots) {
+			if (p.startsWith(root) && !p.equals(root) && (base == null || base.startsWith(root))) {
+				base = root;
+			}
+		}
+		if (base != null) {
+			p = base.relativize(p);
+		} else if (p.startsWith(WORKING_DIR)) {
+			p = WORKING_DIR.relativize(p);
+		} else {
+			p = path.normalize();
+		}
+		String name = p.toString();
+		return File.separatorChar == '/' ? name : name.replace(File.separatorChar, '/');
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return (index + 1) + "/" + count;
+	}
+}
@@ -0,0 +1,120 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.error;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * JSON result of one run ({@code --report}), usually of one shard. Reports of
+ * all shards are merged ({@code --merge}) into one summary, and a report lists
+ * every file with its size so the next run can balance the shards
+ * ({@code --shard-balance}).
+ */
+record ShardReport(String shard, boolean check, long processed, long changed, long skipped, long upToDate,
+		long failedVerification, double elapsedSeconds, List<FileEntry> files) {
+
+	record FileEntry(String path, long size, boolean changed) {
+	}
+
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+	static ShardReport of(Shard shard, boolean check, Main.FileStats stats, List<FileEntry> files) {
+		List<FileEntry> sorted = new ArrayList<>(files);
+		sorted.sort(Comparator.comparing(FileEntry::path));
+		return new ShardReport(shard != null ? shard.toString() : null, check, stats.getProcessed(),
+				stats.getModified(), stats.getSkipped(), stats.getUpToDate(), stats.getUnverified(),
+				stats.getElapsedSeconds(), sorted);
+	}
+
+	static ShardReport read(Path file) throws IOException {
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			ShardReport report = GSON.fromJson(reader, ShardReport.class);
+			if (report == null) {
+				throw new IOException("Empty report " + file);
+			}
+			return report.files() != null ? report
+					: new ShardReport(report.shard(), report.check(), report.processed(), report.changed(),
+							report.skipped(), report.upToDate(), report.failedVerification(),
+							report.elapsedSeconds(), List.of());
+		} catch (JsonParseException e) {
+			throw new IOException("Invalid report " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Writes the report, replacing an existing one atomically.
+	 */
+	void write(Path file) throws IOException {
+		AtomicFile.write(file, w -> GSON.toJson(this, w));
+	}
+
+	/**
+	 * Adds up the reports. The shards ran side by side, so the time is that of
+	 * the slowest. Missing or duplicate shards are warned about.
+	 */
+	static ShardReport merge(List<ShardReport> reports) {
+		long processed = 0, changed = 0, skipped = 0, upToDate = 0, failed = 0;
+		double elapsed = 0;
+		boolean check = false;
+		List<FileEntry> files = new ArrayList<>();
+		int count = 0;
+		BitSet seen = new BitSet();
+		for (ShardReport r : reports) {
+			processed += r.processed();
+			changed += r.changed();
+			skipped += r.skipped();
+			upToDate += r.upToDate();
+			failed += r.failedVerification();
+			elapsed = Math.max(elapsed, r.elapsedSeconds());
+			check |= r.check();
+			files.addAll(r.files());
+			if (r.shard() != null && r.shard().matches("\\d+/\\d+")) {
+				String[] parts = r.shard().split("/");
+				int n = Integer.parseInt(parts[1]);
+				if (count != 0 && count != n) {
+					error("Warning: merging reports of different shard counts (" + count + " and " + n + ")");
+				}
+				count = n;
+				int i = Integer.parseInt(parts[0]);
+				if (seen.get(i)) {
+					error("Warning: shard " + r.shard() + " is reported twice");
+				}
+				seen.set(i);
+			}
+		}
+		for (int i = 1; i <= count; i++) {
+			if (!seen.get(i)) {
+				error("Warning: no report for shard " + i + "/" + count);
+			}
+		}
+		files.sort(Comparator.comparing(FileEntry::path));
+		return new ShardReport(null, check, processed, changed, skipped, upToDate, failed, elapsed, files);
+	}
+
+	/**
+	 * One line summary in the style of a single run's.
+	 */
+	String summary(int reports) {
+		String extra = (upToDate > 0 ? String.format(", %d up-to-date", upToDate) : "")
+				+ (failedVerification > 0 ? String.format(", %d failed verification", failedVerification) : "");
+		if (check) {
+			return String.format(
+					"Merged %d reports: would reformat %d files (out of %d%s) in %.1fs. Run without --check to apply.",
+					reports, changed, processed, extra, elapsedSeconds);
+		}
+		return String.format("Merged %d reports: processed %d files (%d changed, %d clean, %d skipped%s) in %.1fs",
+				reports, processed, changed, processed - changed, skipped, extra, elapsedSeconds);
+	}
+}
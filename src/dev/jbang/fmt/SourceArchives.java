@@ -0,0 +1,205 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.info;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * ZIP and JAR archives given as sources, such as {@code -sources.jar}
+ * artifacts.
+ * <p>
+ * Archives are opened through the zip file system provider, so their entries
+ * can be walked and read like regular files, in parallel and without
+ * extracting anything. Archives are never modified in place: changed entries
+ * are compressed into a temporary spool archive as they come, so they are not
+ * held in memory, and {@link #writeFormatted()} writes a copy of each archive
+ * with those entries replaced, in one sequential pass.
+ */
+public class SourceArchives implements AutoCloseable {
+
+	private final Map<FileSystem, Path> archives = new ConcurrentHashMap<>();
+	private final Map<Path, Spool> changes = new ConcurrentHashMap<>();
+
+	/**
+	 * Changed entries of one archive, written to a temporary archive next to
+	 * where the copy goes.
+	 */
+	private static final class Spool {
+		private final Path file;
+		private final ZipOutputStream out;
+		private int count;
+
+		Spool(Path target) throws IOException {
+			file = target.resolveSibling(target.getFileName() + ".changes.tmp");
+			out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+		}
+
+		synchronized void add(String name, byte[] content) throws IOException {
+			out.putNextEntry(new ZipEntry(name));
+			out.write(content);
+			out.closeEntry();
+			count++;
+		}
+
+		synchronized void close() throws IOException {
+			out.close();
+		}
+	}
+
+	public static boolean isArchive(Path path) {
+		String name = path.getFileName() == null ? "" : path.getFileName().toString().toLowerCase();
+		return name.endsWith(".zip") || name.endsWith(".jar");
+	}
+
+	/**
+	 * Opens the archive and returns its root directory.
+	 */
+	public Path open(Path archive) throws IOException {
+		FileSystem fs = FileSystems.newFileSystem(archive);
+		archives.put(fs, archive);
+		return fs.getRootDirectories().iterator().next();
+	}
+
+	/**
+	 * Whether the path is an entry of one of the opened archives.
+	 */
+	public boolean isEntry(Path path) {
+		return archives.containsKey(path.getFileSystem());
+	}
+
+	/**
+	 * The archive an entry belongs to, or null for regular files.
+	 */
+	public Path archiveOf(Path path) {
+		return archives.get(path.getFileSystem());
+	}
+
+	/**
+	 * Name to show for a path, e.g. {@code lib-sources.jar!/com/example/A.java}
+	 * for archive entries.
+	 */
+	public String displayName(Path path) {
+		Path archive = archives.get(path.getFileSystem());
+		return archive == null ? path.toString() : archive + "!" + path;
+	}
+
+	/**
+	 * Spools the new content of an archive entry for {@link #writeFormatted()}.
+	 */
+	public void recordChange(Path entry, byte[] content) throws IOException {
+		Path archive = archives.get(entry.getFileSystem());
+		Spool spool;
+		try {
+			spool = changes.computeIfAbsent(archive, a -> {
+				try {
+					return new Spool(formattedName(a));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		spool.add(entryName(entry), content);
+	}
+
+	/**
+	 * Writes {@code name.formatted.jar} (or {@code .zip}) next to each archive
+	 * with changed entries. Entries keep their order, time and compression
+	 * method.
+	 */
+	public void writeFormatted() throws IOException {
+		for (var archiveChanges : changes.entrySet()) {
+			Path archive = archiveChanges.getKey();
+			Spool spool = archiveChanges.getValue();
+			spool.close();
+			Path target = formattedName(archive);
+			Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+			try (ZipFile in = new ZipFile(archive.toFile());
+					ZipFile changed = new ZipFile(spool.file.toFile());
+					ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				Enumeration<? extends ZipEntry> entries = in.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry entry = entries.nextElement();
+					ZipEntry content = changed.getEntry(entry.getName());
+					ZipEntry source = content != null ? content : entry;
+					ZipEntry copy = new ZipEntry(entry.getName());
+					copy.setTime(entry.getTime());
+					copy.setComment(entry.getComment());
+					if (entry.getMethod() == ZipEntry.STORED) {
+						copy.setMethod(ZipEntry.STORED);
+						copy.setSize(source.getSize());
+						copy.setCompressedSize(source.getSize());
+						copy.setCrc(source.getCrc());
+					}
+					out.putNextEntry(copy);
+					if (!entry.isDirectory()) {
+						try (InputStream data = (content != null ? changed : in).getInputStream(source)) {
+							data.transferTo(out);
+						}
+					}
+					out.closeEntry();
+				}
+			} catch (IOException e) {
+				Files.deleteIfExists(tmp);
+				throw e;
+			} finally {
+				Files.deleteIfExists(spool.file);
+			}
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			info("Wrote " + target + " (" + spool.count + " entries changed)");
+		}
+		changes.clear();
+	}
+
+	static Path formattedName(Path archive) {
+		String name = archive.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return archive.resolveSibling(name.substring(0, dot) + ".formatted" + name.substring(dot));
+	}
+
+	private static String entryName(Path entry) {
+		String name = entry.toString();
+		return name.startsWith("/") ? name.substring(1) : name;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		// spools of a run that did not get to write its copies
+		for (Spool spool : changes.values()) {
+			try {
+				spool.close();
+				Files.deleteIfExists(spool.file);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		changes.clear();
+		for (FileSystem fs : archives.keySet()) {
+			try {
+				fs.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		archives.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
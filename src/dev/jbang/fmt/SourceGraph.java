@@ -0,0 +1,194 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.error;
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * The files of a JBang script project ({@code --follow-sources}): the entry
+ * scripts, or the local {@code script-ref}s of a {@code jbang-catalog.json},
+ * and everything they pull in through {@code //SOURCES}, transitively.
+ * <p>
+ * {@code //SOURCES} entries are resolved like JBang does, relative to the file
+ * declaring them and with glob patterns such as {@code model/*.java}. Each
+ * file is reported once, by its real path, as soon as it is found, so
+ * formatting starts while the rest of the graph is still being resolved and no
+ * unrelated directory is walked.
+ */
+final class SourceGraph {
+
+	static final String CATALOG = "jbang-catalog.json";
+
+	private static final String SOURCES = "//SOURCES";
+
+	private final PathWalker.Sink sink;
+	private final Set<Path> seen = new HashSet<>();
+	private final Deque<Path> pending = new ArrayDeque<>();
+
+	private SourceGraph(PathWalker.Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Resolves the graph from the entries (scripts, catalogs or directories
+	 * holding a catalog), handing each file of it to the sink once.
+	 */
+	static void walk(List<Path> entries, PathWalker.Sink sink) throws IOException, InterruptedException {
+		var graph = new SourceGraph(sink);
+		for (Path entry : entries) {
+			Path catalog = Files.isDirectory(entry) ? entry.resolve(CATALOG) : entry;
+			if (!Files.exists(catalog)) {
+				error("Warning: Path does not exist: " + catalog);
+			} else if (catalog.getFileName().toString().equals(CATALOG)) {
+				for (Path script : scriptRefs(catalog)) {
+					graph.add(script, catalog);
+				}
+			} else {
+				graph.add(entry, null);
+			}
+		}
+		graph.resolve();
+	}
+
+	private void add(Path file, Path referrer) throws IOException, InterruptedException {
+		if (!Files.isRegularFile(file)) {
+			error("Warning: " + file + (referrer != null ? ", referenced by " + referrer + "," : "")
+					+ " does not exist");
+			return;
+		}
+		if (seen.add(file.toRealPath())) {
+			pending.add(file);
+			if (SourceKind.of(file) != null) {
+				sink.accept(file, Files.readAttributes(file, BasicFileAttributes.class));
+			} else {
+				verbose("Following " + file + " without formatting it");
+			}
+		}
+	}
+
+	private void resolve() throws IOException, InterruptedException {
+		for (Path file = pending.poll(); file != null; file = pending.poll()) {
+			Path dir = parent(file);
+			for (String source : sources(file)) {
+				if (source.contains("://")) {
+					verbose("Not following remote source " + source + " of " + file);
+				} else if (isGlob(source)) {
+					List<Path> matches = glob(dir, source);
+					if (matches.isEmpty()) {
+						error("Warning: //SOURCES " + source + " of " + file + " matches no file");
+					}
+					for (Path match : matches) {
+						add(match, file);
+					}
+				} else {
+					add(dir.resolve(source).normalize(), file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The directory of a file, keeping relative paths relative.
+	 */
+	private static Path parent(Path file) {
+		Path parent = file.getParent();
+		return parent != null ? parent : Path.of("");
+	}
+
+	/**
+	 * The entries of all //SOURCES lines of the file.
+	 */
+	static List<String> sources(Path file) throws IOException {
+		List<String> sources = new ArrayList<>();
+		try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+			lines.filter(line -> line.startsWith(SOURCES + " ")).forEach(line -> {
+				for (String source : line.substring(SOURCES.length()).trim().split("\\s+")) {
+					if (!source.isEmpty()) {
+						sources.add(source);
+					}
+				}
+			});
+		}
+		return sources;
+	}
+
+	private static boolean isGlob(String source) {
+		return source.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+	}
+
+	/**
+	 * Files below dir matching the pattern, in name order. Only the directory
+	 * before the first glob character is walked, and the rest of the pattern is
+	 * matched against paths relative to it, so patterns going up with ..
+	 * match as well.
+	 */
+	private static List<Path> glob(Path dir, String pattern) throws IOException {
+		int wildcard = pattern.length();
+		for (char c : new char[] { '*', '?', '[', '{' }) {
+			int i = pattern.indexOf(c);
+			if (i >= 0) {
+				wildcard = Math.min(wildcard, i);
+			}
+		}
+		int slash = pattern.lastIndexOf('/', wildcard);
+		Path base = slash < 0 ? dir : dir.resolve(pattern.substring(0, slash)).normalize();
+		if (!Files.isDirectory(base)) {
+			return List.of();
+		}
+		PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + pattern.substring(slash + 1));
+		try (Stream<Path> files = Files.walk(base)) {
+			return files.filter(Files::isRegularFile)
+				.filter(p -> matcher.matches(base.relativize(p)))
+				.sorted()
+				.toList();
+		}
+	}
+
+	/**
+	 * The local scripts the aliases of a catalog refer to. Remote and Maven
+	 * references are skipped.
+	 */
+	static List<Path> scriptRefs(Path catalog) throws IOException {
+		JsonObject root;
+		try (Reader reader = Files.newBufferedReader(catalog, StandardCharsets.UTF_8)) {
+			root = JsonParser.parseReader(reader).getAsJsonObject();
+		} catch (JsonParseException | IllegalStateException e) {
+			throw new IOException("Invalid catalog " + catalog + ": " + e.getMessage(), e);
+		}
+		List<Path> scripts = new ArrayList<>();
+		Path dir = parent(catalog);
+		if (root.get("aliases") instanceof JsonObject aliases) {
+			for (var alias : aliases.entrySet()) {
+				if (alias.getValue() instanceof JsonObject a && a.get("script-ref") instanceof JsonElement ref
+						&& ref.isJsonPrimitive()) {
+					String scriptRef = ref.getAsString();
+					if (scriptRef.contains("://") || scriptRef.matches("[^/\\\\]+:[^/\\\\]+:.+")) {
+						verbose("Not following remote alias " + alias.getKey() + " (" + scriptRef + ")");
+					} else {
+						scripts.add(dir.resolve(scriptRef).normalize());
+					}
+				}
+			}
+		}
+		return scripts;
+	}
+}
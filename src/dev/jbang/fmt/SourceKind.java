@@ -0,0 +1,242 @@
+package dev.jbang.fmt;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import dev.jbang.fmt.FormatterBackend.CodeKind;
+
+/**
+ * The kinds of files JBang runs, and where the Java code in them is: all of a
+ * {@code .java} file or {@code .jsh} script, or the fenced {@code java} blocks
+ * of a Markdown file.
+ * <p>
+ * Each piece of code is formatted on its own and spliced back into the file at
+ * its original offsets, so everything around it is left byte for byte.
+ */
+enum SourceKind {
+	java(".java", CodeKind.compilationUnit),
+	/**
+	 * JShell scripts: statements and declarations, with import lines and JShell
+	 * commands left alone
+	 */
+	jsh(".jsh", CodeKind.statements),
+	/** fenced code blocks with the info string {@code java} */
+	markdown(".md", CodeKind.any);
+
+	private static final Pattern FENCE = Pattern.compile("^( {0,3})(`{3,}|~{3,})\\s*([^\\s`]*).*$");
+	private static final Pattern NOT_A_STATEMENT = Pattern.compile("^\\s*(import\\s|/[a-zA-Z!?]).*$");
+
+	/**
+	 * A piece of Java code at offset in the file, with indent removed from each
+	 * of its lines.
+	 */
+	record Snippet(int offset, int length, String code, String indent) {
+	}
+
+	private static final SourceKind[] VALUES = values();
+
+	private final String extension;
+	private final CodeKind codeKind;
+
+	SourceKind(String extension, CodeKind codeKind) {
+		this.extension = extension;
+		this.codeKind = codeKind;
+	}
+
+	/**
+	 * The kind of a file by its extension, or null if it is none of them.
+	 */
+	static SourceKind of(Path file) {
+		Path name = file.getFileName();
+		return name == null ? null : of(name.toString());
+	}
+
+	/**
+	 * The kind of a file by its name (or path), null for other files.
+	 */
+	static SourceKind of(String name) {
+		for (SourceKind kind : VALUES) {
+			int start = name.length() - kind.extension.length();
+			if (start >= 0 && name.regionMatches(true, start, kind.extension, 0, kind.extension.length())) {
+				return kind;
+			}
+		}
+		return null;
+	}
+
+	CodeKind getCodeKind() {
+		return codeKind;
+	}
+
+	/**
+	 * Hash of content as this kind. Java files keep the plain content hash, other
+	 * kinds are told apart as the same text formats differently.
+	 */
+	String hash(String content) {
+		return this == java ? ContentHash.of(content) : ContentHash.of(name() + "\n" + content);
+	}
+
+	/**
+	 * The pieces of Java code in the content, in order.
+	 */
+	List<Snippet> snippets(String content) {
+		return switch (this) {
+		case java -> List.of(new Snippet(0, content.length(), content, ""));
+		case jsh -> statements(content);
+		case markdown -> codeBlocks(content);
+		};
+	}
+
+	/**
+	 * The runs of lines between imports and JShell commands, which are no
+	 * statements, without the blank lines around them.
+	 */
+	private static List<Snippet> statements(String content) {
+		List<Snippet> snippets = new ArrayList<>();
+		int start = -1;
+		int end = -1;
+		int pos = 0;
+		while (pos < content.length()) {
+			int eol = content.indexOf('\n', pos);
+			int next = eol < 0 ? content.length() : eol + 1;
+			String line = content.substring(pos, eol < 0 ? content.length() : eol);
+			if (NOT_A_STATEMENT.matcher(line).matches()) {
+				if (start >= 0) {
+					snippets.add(new Snippet(start, end - start, content.substring(start, end), ""));
+				}
+				start = -1;
+			} else if (!line.isBlank()) {
+				if (start < 0) {
+					start = pos;
+				}
+				end = next;
+			}
+			pos = next;
+		}
+		if (start >= 0) {
+			snippets.add(new Snippet(start, end - start, content.substring(start, end), ""));
+		}
+		return snippets;
+	}
+
+	private static List<Snippet> codeBlocks(String content) {
+		List<Snippet> snippets = new ArrayList<>();
+		Matcher open = null;
+		int codeStart = 0;
+		int pos = 0;
+		while (pos < content.length()) {
+			int end = content.indexOf('\n', pos);
+			int next = end < 0 ? content.length() : end + 1;
+			String line = content.substring(pos, end < 0 ? content.length() : end);
+			if (open == null) {
+				Matcher m = FENCE.matcher(line);
+				// backtick fences cannot have backticks in their info string
+				if (m.matches() && !(m.group(2).charAt(0) == '`' && line.indexOf('`', m.end(2)) >= 0)) {
+					open = m;
+					codeStart = next;
+				}
+			} else if (isClosing(line, open.group(2))) {
+				if (open.group(3).equalsIgnoreCase("java")) {
+					snippets.add(snippet(content, codeStart, pos, open.group(1)));
+				}
+				open = null;
+			}
+			pos = next;
+		}
+		// a block left open runs to the end of the document, but is more likely a
+		// mistake: it is not formatted
+		return snippets;
+	}
+
+	private static boolean isClosing(String line, String fence) {
+		int indent = 0;
+		while (indent < line.length() && line.charAt(indent) == ' ') {
+			indent++;
+		}
+		String stripped = line.strip();
+		if (indent > 3 || stripped.length() < fence.length()) {
+			return false;
+		}
+		for (int i = 0; i < stripped.length(); i++) {
+			if (stripped.charAt(i) != fence.charAt(0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Snippet snippet(String content, int start, int end, String indent) {
+		String code = content.substring(start, end);
+		if (!indent.isEmpty()) {
+			StringBuilder sb = new StringBuilder(code.length());
+			for (String line : code.split("(?<=\n)")) {
+				int strip = 0;
+				while (strip < indent.length() && strip < line.length() && line.charAt(strip) == ' ') {
+					strip++;
+				}
+				sb.append(line, strip, line.length());
+			}
+			code = sb.toString();
+		}
+		return new Snippet(start, end - start, code, indent);
+	}
+
+	/**
+	 * Formats the Java code in the content.
+	 */
+	String format(String content, FormatterBackend formatter) throws Exception {
+		if (this == java) {
+			return formatter.format(content);
+		}
+		List<FormatEdit> edits = snippetEdits(content, formatter);
+		return edits.isEmpty() ? content : FormatEdit.apply(content, edits);
+	}
+
+	/**
+	 * The edits formatting the Java code in the content, one replacing each
+	 * snippet that changes.
+	 */
+	List<FormatEdit> snippetEdits(String content, FormatterBackend formatter) throws Exception {
+		List<FormatEdit> edits = new ArrayList<>();
+		for (Snippet snippet : snippets(content)) {
+			String formatted = formatSnippet(snippet.code(), formatter);
+			if (!formatted.equals(snippet.code())) {
+				edits.add(new FormatEdit(snippet.offset(), snippet.length(), indent(formatted, snippet.indent())));
+			}
+		}
+		return edits;
+	}
+
+	private String formatSnippet(String code, FormatterBackend formatter) throws Exception {
+		// the Eclipse formatter fails on snippets ending in a range without tokens
+		List<CodeRange> ranges = new ArrayList<>(formatter.formattableRanges(code));
+		ranges.removeIf(r -> code.substring(r.start(), r.end()).isBlank());
+		if (ranges.isEmpty()) {
+			return code;
+		}
+		List<FormatEdit> edits = formatter.formatEdits(code, ranges, codeKind);
+		if (edits.isEmpty()) {
+			return code;
+		}
+		// what follows the snippet, e.g. a closing fence, stays on its own line
+		String formatted = FormatEdit.apply(code, edits).stripTrailing();
+		return code.endsWith("\n") ? formatted + "\n" : formatted;
+	}
+
+	private static String indent(String code, String indent) {
+		if (indent.isEmpty()) {
+			return code;
+		}
+		StringBuilder sb = new StringBuilder(code.length() + 16 * indent.length());
+		for (String line : code.split("(?<=\n)")) {
+			if (!line.isBlank()) {
+				sb.append(indent);
+			}
+			sb.append(line);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,85 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Canonicalizes the sources given on the command line so that every file is
+ * discovered exactly once.
+ * <p>
+ * Instead of remembering every path seen during the run, overlapping inputs are
+ * removed up front: duplicates, directories inside another directory argument
+ * and files the walk of such a directory would find are dropped. Files inside
+ * a directory argument that its walk skips, such as a kind not selected with
+ * --kinds or an archive, are kept, as files given directly are always
+ * formatted. Directory walks do not follow symbolic links to directories, so
+ * the remaining roots can never list the same directory twice; the walk only
+ * remembers where links to files point ({@link PathWalker}).
+ */
+public final class SourceRoots {
+
+	private SourceRoots() {
+	}
+
+	/**
+	 * Returns the sources with duplicates and nested paths removed, keeping the
+	 * original order and spelling of the paths that remain. Paths that do not
+	 * exist are kept as-is so they can be reported later.
+	 *
+	 * @param walked whether the walk of a directory yields a file in it
+	 */
+	public static List<Path> canonicalize(List<Path> sources, Predicate<Path> walked) {
+		Set<Path> directories = new HashSet<>();
+		List<Path> reals = new ArrayList<>(sources.size());
+		for (Path source : sources) {
+			Path real = realPath(source);
+			reals.add(real);
+			if (real != null && Files.isDirectory(real)) {
+				directories.add(real);
+			}
+		}
+
+		Set<Path> seen = new HashSet<>();
+		List<Path> result = new ArrayList<>(sources.size());
+		for (int i = 0; i < sources.size(); i++) {
+			Path source = sources.get(i);
+			Path real = reals.get(i);
+			if (real == null) {
+				result.add(source);
+			} else if (!seen.add(real)) {
+				verbose("Ignoring duplicate source " + source);
+			} else if (isNested(real, directories)
+					&& (directories.contains(real) || (!SourceArchives.isArchive(real) && walked.test(real)))) {
+				verbose("Ignoring " + source + " as it is inside another source directory");
+			} else {
+				result.add(source);
+			}
+		}
+		return result;
+	}
+
+	private static boolean isNested(Path real, Set<Path> directories) {
+		for (Path parent = real.getParent(); parent != null; parent = parent.getParent()) {
+			if (directories.contains(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Path realPath(Path source) {
+		try {
+			return source.toRealPath();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
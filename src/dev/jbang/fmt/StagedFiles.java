@@ -0,0 +1,186 @@
+package dev.jbang.fmt;
+
+import static dev.jbang.fmt.FmtLogger.error;
+import static dev.jbang.fmt.FmtLogger.verbose;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The files staged in a git repository ({@code --staged}), read from the index
+ * and object store without running git, so pre-commit hooks check what is
+ * about to be committed rather than the work tree.
+ * <p>
+ * A formatted file is stored as a new blob and its index entry pointed to it.
+ * The work tree file gets the formatting too: as is when it holds exactly what
+ * is staged, otherwise merged into its unstaged changes, unless those touch the
+ * same lines, in which case it is left alone with a warning. The index is
+ * locked for the whole run, like git does, and written once at the end.
+ */
+final class StagedFiles implements AutoCloseable {
+
+	private final GitRepository repo;
+	private final Path indexFile;
+	private final Path lock;
+	private final GitIndex index;
+
+	// entries that differ from HEAD, and those selected for formatting by path
+	private final List<GitIndex.Entry> changed = new ArrayList<>();
+	private Map<Path, GitIndex.Entry> staged = Map.of();
+	private final Map<String, GitIndex.Update> updates = new ConcurrentHashMap<>();
+
+	private StagedFiles(GitRepository repo, Path indexFile, Path lock, GitIndex index) throws IOException {
+		this.repo = repo;
+		this.indexFile = indexFile;
+		this.lock = lock;
+		this.index = index;
+		if (index != null) {
+			Map<String, byte[]> head = repo.headTree();
+			for (GitIndex.Entry entry : index.getEntries().values()) {
+				byte[] committed = head.get(entry.path());
+				if (committed == null || !Arrays.equals(committed, entry.id())) {
+					changed.add(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the staging area of the repository containing dir, locking it when
+	 * formatted files are to be written back.
+	 */
+	static StagedFiles open(Path dir, boolean write) throws IOException {
+		GitRepository repo = GitRepository.find(dir);
+		Path lock = null;
+		try {
+			Path indexFile = repo.getIndexFile();
+			if (write) {
+				lock = GitIndex.lock(indexFile);
+			}
+			// a repository nothing was ever added to has no index
+			GitIndex index = Files.exists(indexFile) ? GitIndex.read(indexFile) : null;
+			return new StagedFiles(repo, indexFile, lock, index);
+		} catch (IOException | RuntimeException e) {
+			if (lock != null) {
+				Files.deleteIfExists(lock);
+			}
+			repo.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Selects the staged files of the given kinds, in index order, limited to
+	 * those below one of the pathspecs if there are any.
+	 */
+	Map<Path, GitIndex.Entry> files(List<Path> pathspecs, Set<SourceKind> kinds) {
+		staged = repo.select(changed, pathspecs, kinds);
+		return staged;
+	}
+
+	/**
+	 * The staged content of a file.
+	 */
+	byte[] read(Path file) throws IOException {
+		return repo.readBlob(staged.get(file).id());
+	}
+
+	/**
+	 * Stages the formatted content of a file and brings its formatting to the
+	 * work tree. The index itself is written by {@link #save()}.
+	 */
+	void recordChange(Path file, String content, String formatted) throws IOException {
+		GitIndex.Entry entry = staged.get(file);
+		byte[] id = repo.writeBlob(formatted.getBytes(StandardCharsets.UTF_8));
+		Path workFile = repo.getWorkTree().resolve(entry.path());
+		if (entry.skipWorktree() || !Files.isRegularFile(workFile, LinkOption.NOFOLLOW_LINKS)) {
+			updates.put(entry.path(), new GitIndex.Update(id, entry.size(), -1, -1));
+			return;
+		}
+		String work = new String(Files.readAllBytes(workFile), StandardCharsets.UTF_8);
+		if (work.equals(content)) {
+			AtomicFile.write(workFile, formatted.getBytes(StandardCharsets.UTF_8));
+			// stat data of the file that replaced it
+			var attrs = Files.readAttributes(workFile, BasicFileAttributes.class);
+			updates.put(entry.path(), new GitIndex.Update(id, attrs.size(), ctime(workFile),
+					nanos(attrs.lastModifiedTime())));
+			return;
+		}
+		String merged = merge(content, work, formatted);
+		if (merged == null) {
+			error("Warning: unstaged changes of " + file
+					+ " overlap the formatting; formatted the staged version only");
+		} else {
+			verbose("Formatted " + file + " around its unstaged changes");
+			AtomicFile.write(workFile, merged.getBytes(StandardCharsets.UTF_8));
+		}
+		// git's own marker for stat data it cannot trust: the content is compared
+		updates.put(entry.path(), new GitIndex.Update(id, 0, -1, -1));
+	}
+
+	/**
+	 * Applies the formatting (base to formatted) to the unstaged changes (base to
+	 * work), or returns null if they touch the same lines.
+	 */
+	static String merge(String base, String work, String formatted) {
+		List<FormatEdit> unstaged = TextDiff.diff(base, work);
+		List<FormatEdit> formatting = TextDiff.diff(base, formatted);
+		for (FormatEdit a : unstaged) {
+			for (FormatEdit b : formatting) {
+				if (a.offset() <= b.offset() + b.length() && b.offset() <= a.offset() + a.length()) {
+					return null;
+				}
+			}
+		}
+		List<FormatEdit> edits = new ArrayList<>(unstaged);
+		edits.addAll(formatting);
+		edits.sort(Comparator.comparingInt(FormatEdit::offset));
+		return FormatEdit.apply(base, edits);
+	}
+
+	private static long ctime(Path file) {
+		try {
+			return nanos((FileTime) Files.getAttribute(file, "unix:ctime"));
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	private static long nanos(FileTime time) {
+		return time.to(TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Writes the index if any file was formatted, releasing its lock.
+	 */
+	void save() throws IOException {
+		if (!updates.isEmpty()) {
+			index.write(lock, updates);
+			verbose("Staged " + updates.size() + " formatted files in " + indexFile);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (lock != null) {
+				Files.deleteIfExists(lock);
+			}
+		} finally {
+			repo.close();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package dev.jbang.fmt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line based diff (Myers' algorithm) that turns a formatted result back into
+ * the few edits an editor has to apply, instead of replacing the whole text.
+ * <p>
+ * Differences needing more than {@link #MAX_DIFFERENCES} line insertions and
+ * deletions become one edit spanning them, which keeps time and memory
+ * bounded on completely reformatted files.
+ */
+final class TextDiff {
+
+	static final int MAX_DIFFERENCES = 2000;
+
+	private TextDiff() {
+	}
+
+	/**
+	 * Edits, sorted by offset, that turn before into after.
+	 */
+	static List<FormatEdit> diff(String before, String after) {
+		if (before.equals(after)) {
+			return List.of();
+		}
+		int[] aStarts = lineStarts(before);
+		int[] bStarts = lineStarts(after);
+		String[] a = lines(before, aStarts);
+		String[] b = lines(after, bStarts);
+
+		// common lines at both ends need no diffing
+		int prefix = 0;
+		while (prefix < a.length && prefix < b.length && a[prefix].equals(b[prefix])) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < a.length - prefix && suffix < b.length - prefix
+				&& a[a.length - 1 - suffix].equals(b[b.length - 1 - suffix])) {
+			suffix++;
+		}
+
+		List<int[]> matches = new ArrayList<>();
+		matches.add(new int[] { prefix - 1, prefix - 1 });
+		if (!match(a, prefix, a.length - suffix, b, prefix, b.length - suffix, matches)) {
+			matches.subList(1, matches.size()).clear();
+		}
+		matches.add(new int[] { a.length - suffix, b.length - suffix });
+
+		// every gap between two matching lines is one edit
+		List<FormatEdit> edits = new ArrayList<>();
+		for (int i = 1; i < matches.size(); i++) {
+			int[] prev = matches.get(i - 1);
+			int[] next = matches.get(i);
+			int aFrom = prev[0] + 1;
+			int bFrom = prev[1] + 1;
+			if (aFrom < next[0] || bFrom < next[1]) {
+				int offset = offset(aStarts, before, aFrom);
+				edits.add(new FormatEdit(offset, offset(aStarts, before, next[0]) - offset,
+						after.substring(offset(bStarts, after, bFrom), offset(bStarts, after, next[1]))));
+			}
+		}
+		return edits;
+	}
+
+	/**
+	 * Adds the pairs of matching lines of a[aFrom, aTo) and b[bFrom, bTo) to
+	 * matches, in order. Returns false if they differ in too many lines.
+	 */
+	private static boolean match(String[] a, int aFrom, int aTo, String[] b, int bFrom, int bTo, List<int[]> matches) {
+		int n = aTo - aFrom;
+		int m = bTo - bFrom;
+		int limit = Math.min(n + m, MAX_DIFFERENCES);
+		int center = limit + 1;
+		int[] v = new int[2 * limit + 3];
+		// v as it was before each step, only the diagonals that step could read
+		List<int[]> trace = new ArrayList<>();
+
+		for (int d = 0; d <= limit; d++) {
+			trace.add(Arrays.copyOfRange(v, center - d - 1, center + d + 2));
+			for (int k = -d; k <= d; k += 2) {
+				int x = (k == -d || (k != d && v[center + k - 1] < v[center + k + 1])) ? v[center + k + 1]
+						: v[center + k - 1] + 1;
+				int y = x - k;
+				while (x < n && y < m && a[aFrom + x].equals(b[bFrom + y])) {
+					x++;
+					y++;
+				}
+				v[center + k] = x;
+				if (x >= n && y >= m) {
+					backtrack(trace, d, n, m, aFrom, bFrom, matches);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void backtrack(List<int[]> trace, int steps, int x, int y, int aFrom, int bFrom,
+			List<int[]> matches) {
+		List<int[]> reversed = new ArrayList<>();
+		for (int d = steps; d > 0; d--) {
+			int[] v = trace.get(d);
+			int k = x - y;
+			int prevK = (k == -d || (k != d && v[k - 1 + d + 1] < v[k + 1 + d + 1])) ? k + 1 : k - 1;
+			int prevX = v[prevK + d + 1];
+			int prevY = prevX - prevK;
+			// one insertion (down) or deletion (right), then a run of matching lines
+			int snakeX = prevK == k + 1 ? prevX : prevX + 1;
+			while (x > snakeX) {
+				reversed.add(new int[] { aFrom + --x, bFrom + --y });
+			}
+			x = prevX;
+			y = prevY;
+		}
+		while (x > 0 && y > 0) {
+			reversed.add(new int[] { aFrom + --x, bFrom + --y });
+		}
+		for (int i = reversed.size() - 1; i >= 0; i--) {
+			matches.add(reversed.get(i));
+		}
+	}
+
+	static int[] lineStarts(String s) {
+		int count = 1;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) == '\n') {
+				count++;
+			}
+		}
+		int[] starts = new int[count];
+		int line = 1;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) == '\n') {
+				starts[line++] = i + 1;
+			}
+		}
+		return starts;
+	}
+
+	/**
+	 * Lines including their terminator, so equal lines also end equally.
+	 */
+	private static String[] lines(String s, int[] starts) {
+		String[] lines = new String[starts.length];
+		for (int i = 0; i < starts.length; i++) {
+			lines[i] = s.substring(starts[i], i + 1 < starts.length ? starts[i + 1] : s.length());
+		}
+		return lines;
+	}
+
+	private static int offset(int[] starts, String s, int line) {
+		return line < starts.length ? starts[line] : s.length();
+	}
+}
@@ -0,0 +1,96 @@
+package dev.jbang.fmt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The files tracked by git ({@code --git-tracked}), listed from the index
+ * instead of walking the work tree, so untracked and ignored directories (build
+ * output, dependencies) are never visited and no directory is listed at all.
+ * <p>
+ * The index also records the size and modification time each file had when
+ * git last hashed it. While they still match, the content of the file is the
+ * blob the index points to, so the blob id tells {@code --incremental} whether
+ * the file was seen clean before, even in a fresh clone where every
+ * modification time is new. Like git, files modified in the same second the
+ * index was written are not trusted this way.
+ */
+final class TrackedFiles {
+
+	private static final HexFormat HEX = HexFormat.of();
+
+	private final Path workTree;
+	private final GitIndex index;
+	private final long indexModified;
+
+	// the files selected for formatting
+	private Map<Path, GitIndex.Entry> tracked = Map.of();
+
+	private TrackedFiles(Path workTree, GitIndex index, long indexModified) {
+		this.workTree = workTree;
+		this.index = index;
+		this.indexModified = indexModified;
+	}
+
+	/**
+	 * Reads the index of the repository containing dir.
+	 */
+	static TrackedFiles open(Path dir) throws IOException {
+		// only the paths of the repository are needed, not its objects
+		try (GitRepository repo = GitRepository.find(dir)) {
+			Path indexFile = repo.getIndexFile();
+			if (!Files.exists(indexFile)) {
+				throw new IOException("No file is tracked in " + repo.getWorkTree());
+			}
+			long modified = Files.getLastModifiedTime(indexFile).to(TimeUnit.NANOSECONDS);
+			return new TrackedFiles(repo.getWorkTree(), GitIndex.read(indexFile), modified);
+		}
+	}
+
+	/**
+	 * Selects the tracked files of the given kinds, in index order, limited to
+	 * those below one of the pathspecs if there are any.
+	 */
+	Map<Path, GitIndex.Entry> files(List<Path> pathspecs, Set<SourceKind> kinds) {
+		// sparse checkouts leave skip-worktree files out of the work tree
+		var present = index.getEntries().values().stream().filter(e -> !e.skipWorktree()).toList();
+		tracked = GitRepository.select(workTree, present, pathspecs, kinds);
+		return tracked;
+	}
+
+	/**
+	 * The blob id the index records for the file.
+	 */
+	String blobId(Path file) {
+		return HEX.formatHex(tracked.get(file).id());
+	}
+
+	/**
+	 * Whether the file's stat data still matches the index, so its content is
+	 * the blob the index records.
+	 */
+	boolean isUnchanged(Path file, BasicFileAttributes attrs) {
+		GitIndex.Entry entry = tracked.get(file);
+		long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+		long seconds = modified / 1_000_000_000L;
+		// git built without nanosecond support records whole seconds
+		boolean sameTime = entry.mtimeNanos() % 1_000_000_000L == 0 ? entry.mtimeNanos() / 1_000_000_000L == seconds
+				: entry.mtimeNanos() == modified;
+		return sameTime && entry.size() == (attrs.size() & 0xffffffffL)
+				&& seconds < indexModified / 1_000_000_000L;
+	}
+
+	/**
+	 * The blob id content has, to remember it as clean.
+	 */
+	static String blobId(byte[] content) {
+		return HEX.formatHex(GitRepository.blobId(content));
+	}
+}
@@ -0,0 +1,307 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
+//JAVA_OPTIONS -Xmx2g
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.code=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.file=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.parser=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.tree=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.text.edits.TextEdit;
+
+import com.google.googlejavaformat.java.JavaFormatterOptions;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ScopeType;
+
+// Benchmarks for jbang-fmt. Run with: jbang benchFmt.java <benchmark> [options]
+@Command(name = "benchFmt", mixinStandardHelpOptions = true, description = "Benchmarks for jbang-fmt")
+public class benchFmt implements Callable<Integer> {
+
+	@Option(names = "--dir", description = "Directory holding the generated corpus (reused between runs)", defaultValue = "${java.io.tmpdir}/jbang-fmt-bench", scope = ScopeType.INHERIT)
+	Path dir;
+
+	@Override
+	public Integer call() {
+		CommandLine.usage(this, System.out);
+		return 0;
+	}
+
+	/**
+	 * Heap retained by file discovery on a large tree, comparing the old
+	 * "remember every path" dedup with the up-front root canonicalization.
+	 */
+	@Command(name = "memory", description = "Heap retained while discovering a large number of files")
+	int memory(
+			@Option(names = "--files", description = "Number of files to generate", defaultValue = "1000000") int files)
+			throws Exception {
+		Path corpus = generateTree(dir.resolve("tree-" + files), files);
+
+		System.out.printf("Discovering %,d files in %s%n", files, corpus);
+		for (String mode : List.of("path-set", "roots")) {
+			Set<Path> seen = mode.equals("path-set") ? ConcurrentHashMap.newKeySet() : null;
+			long before = usedHeapAfterGc();
+			resetPeaks();
+
+			long start = System.nanoTime();
+			BlockingQueue<Main.QueuedFile> queue = Main.newQueue(Main.Schedule.fifo);
+			long count = 0;
+			try (var archives = new SourceArchives()) {
+				Thread producer = Thread.ofPlatform()
+					.start(Main.producePaths(SourceRoots.canonicalize(List.of(corpus), p -> true), 4,
+							new Main.FileStats(), queue, archives, null, Set.of(SourceKind.java)));
+				for (var p = queue.take(); p != Main.DONE; p = queue.take()) {
+					if (seen == null || seen.add(p.path().toAbsolutePath())) {
+						count++;
+					}
+				}
+				producer.join();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			long retained = Math.max(0, usedHeapAfterGc() - before);
+			System.out.printf("%-9s %,10d files in %5.1fs  retained %,8d KB  peak %,8d KB%n", mode, count, seconds,
+					retained / 1024, peakHeap() / 1024);
+			Reference.reachabilityFence(seen);
+		}
+		return 0;
+	}
+
+	/**
+	 * Wall time of FIFO against largest-first scheduling on a corpus of many small
+	 * files plus a few huge ones that are discovered last.
+	 */
+	@Command(name = "schedule", description = "Wall time of fifo vs largest-first scheduling on a skewed corpus")
+	int schedule(
+			@Option(names = "--small", description = "Number of small files", defaultValue = "2000") int small,
+			@Option(names = "--large", description = "Number of large files", defaultValue = "4") int large,
+			@Option(names = "--large-methods", description = "Methods per large file", defaultValue = "20000") int largeMethods,
+			@Option(names = "--runs", description = "Measured runs per schedule", defaultValue = "3") int runs)
+			throws Exception {
+		Path corpus = generateSkewed(dir.resolve("skewed-" + small + "-" + large + "-" + largeMethods), small, large,
+				largeMethods);
+
+		System.out.printf("Formatting %s with %d cpus%n", corpus, Runtime.getRuntime().availableProcessors());
+		runMain("--check", "--quiet", corpus.toString()); // warm up
+		for (String schedule : List.of("fifo", "largest")) {
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < runs; i++) {
+				long start = System.nanoTime();
+				runMain("--check", "--quiet", "--schedule", schedule, corpus.toString());
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.printf("%-8s best of %d: %6.2fs%n", schedule, runs, best / 1e9);
+		}
+		return 0;
+	}
+
+	/**
+	 * Single threaded throughput and allocation of each formatter engine on the
+	 * same in-memory corpus.
+	 */
+	@Command(name = "engines", description = "Throughput and allocation of the eclipse and google engines")
+	int engines(
+			@Option(names = "--corpus", description = "Directory with .java files (defaults to a generated corpus)") Path corpus,
+			@Option(names = "--iterations", description = "Measured passes over the corpus", defaultValue = "5") int iterations)
+			throws Exception {
+		if (corpus == null) {
+			corpus = generateSkewed(dir.resolve("engines-500"), 500, 0, 0);
+		}
+		List<String> sources = readCorpus(corpus);
+		long bytes = sources.stream().mapToLong(String::length).sum();
+		System.out.printf("Formatting %d files (%,d chars) from %s%n", sources.size(), bytes, corpus);
+
+		List<FormatterBackend> backends = List.of(
+				new JavaFormatter("jbang", JavaFormatter.loadSettingsFromClasspath("jbang"), false),
+				new GoogleJavaFormatter(JavaFormatterOptions.Style.GOOGLE, false));
+		var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		for (FormatterBackend backend : backends) {
+			for (String source : sources) { // warm up
+				backend.format(source);
+			}
+			long allocated = threads.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (String source : sources) {
+					backend.format(source);
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+			System.out.printf("%-8s %8.1f files/s %8.2f MB/s  allocated %,8d MB per pass (%.0f bytes per input char)%n",
+					backend.getName(), sources.size() * iterations / seconds, bytes * iterations / seconds / 1e6,
+					allocated / iterations / 1_000_000, (double) allocated / iterations / bytes);
+		}
+		return 0;
+	}
+
+	/**
+	 * Allocation and time of applying the Eclipse formatter's edits through a
+	 * jface Document compared with the flattened edits and a presized builder.
+	 */
+	@Command(name = "apply", description = "Applying formatter edits: jface Document against the lean applier")
+	int apply(
+			@Option(names = "--corpus", description = "Directory with .java files (defaults to a generated corpus)") Path corpus,
+			@Option(names = "--iterations", description = "Measured passes over the corpus", defaultValue = "20") int iterations)
+			throws Exception {
+		if (corpus == null) {
+			corpus = generateSkewed(dir.resolve("engines-500"), 500, 0, 0);
+		}
+		List<String> sources = readCorpus(corpus);
+		var formatter = new JavaFormatter("jbang", JavaFormatter.loadSettingsFromClasspath("jbang"), false);
+		List<TextEdit> edits = new ArrayList<>();
+		for (String source : sources) {
+			edits.add(formatter.computeEdit(source, formatter.formattableRanges(source)));
+		}
+		System.out.printf("Applying edits to %d files from %s%n", sources.size(), corpus);
+
+		var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		for (String mode : List.of("document", "lean", "document", "lean")) {
+			// applying to a Document moves the edits, so every pass gets fresh copies
+			List<List<TextEdit>> copies = new ArrayList<>();
+			for (int i = 0; i < iterations; i++) {
+				copies.add(mode.equals("document") ? edits.stream().map(TextEdit::copy).toList() : edits);
+			}
+			long allocated = threads.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			long chars = 0;
+			for (List<TextEdit> pass : copies) {
+				for (int f = 0; f < sources.size(); f++) {
+					String source = sources.get(f);
+					String result;
+					if (mode.equals("document")) {
+						IDocument doc = new Document(source);
+						pass.get(f).apply(doc);
+						result = doc.get();
+					} else {
+						List<FormatEdit> flat = new ArrayList<>();
+						JavaFormatter.flatten(source, pass.get(f), flat);
+						result = FormatEdit.apply(source, flat);
+					}
+					chars += result.length();
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+			System.out.printf("%-9s %8.1f ms per pass  allocated %,8d KB per pass (%.1f bytes per output char)%n", mode,
+					seconds * 1000 / iterations, allocated / iterations / 1024, (double) allocated / chars);
+		}
+		return 0;
+	}
+
+	static List<String> readCorpus(Path corpus) throws IOException {
+		try (var paths = Files.walk(corpus)) {
+			return paths.filter(p -> p.toString().endsWith(".java")).map(p -> {
+				try {
+					return Files.readString(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).toList();
+		}
+	}
+
+	static void runMain(String... args) {
+		new CommandLine(new Main()).execute(args);
+		FmtLogger.flush();
+	}
+
+	static Path generateSkewed(Path root, int small, int large, int largeMethods) throws IOException {
+		Path marker = root.resolve(".complete");
+		if (Files.exists(marker)) {
+			return root;
+		}
+		System.out.printf("Generating skewed corpus in %s...%n", root);
+		// large files go in a directory that sorts last, so FIFO discovers them last
+		Files.createDirectories(root.resolve("a"));
+		Files.createDirectories(root.resolve("zz"));
+		for (int i = 0; i < small; i++) {
+			Files.writeString(root.resolve("a").resolve("S" + i + ".java"), unformattedClass("S" + i, 20));
+		}
+		for (int i = 0; i < large; i++) {
+			Files.writeString(root.resolve("zz").resolve("L" + i + ".java"), unformattedClass("L" + i, largeMethods));
+		}
+		Files.createFile(marker);
+		return root;
+	}
+
+	static String unformattedClass(String name, int methods) {
+		StringBuilder sb = new StringBuilder("public class ").append(name).append("{");
+		for (int m = 0; m < methods; m++) {
+			sb.append("public int m")
+				.append(m)
+				.append("(int a,int b){if(a>b){return a-b;}else{return b+a*")
+				.append(m)
+				.append(";}}\n");
+		}
+		return sb.append("}\n").toString();
+	}
+
+	static Path generateTree(Path root, int files) throws IOException {
+		Path marker = root.resolve(".complete");
+		if (Files.exists(marker)) {
+			return root;
+		}
+		System.out.printf("Generating %,d files in %s...%n", files, root);
+		byte[] content = "class F {\n}\n".getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < files; i++) {
+			Path d = root.resolve(String.format("d%04d", i / 1000));
+			if (i % 1000 == 0) {
+				Files.createDirectories(d);
+			}
+			Files.write(d.resolve(String.format("F%07d.java", i)), content);
+		}
+		Files.createFile(marker);
+		return root;
+	}
+
+	static long usedHeapAfterGc() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	static void resetPeaks() {
+		ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+	}
+
+	static long peakHeap() {
+		return ManagementFactory.getMemoryPoolMXBeans()
+			.stream()
+			.filter(p -> p.getType() == MemoryType.HEAP)
+			.mapToLong(p -> p.getPeakUsage().getUsed())
+			.sum();
+	}
+
+	public static void main(String... args) {
+		int exitCode = new CommandLine(new benchFmt()).execute(args);
+		FmtLogger.flush();
+		System.exit(exitCode);
+	}
+}
@@ -0,0 +1,149 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+import dev.jbang.fmt.Main.QueuedFile;
+import dev.jbang.fmt.Main.Schedule;
+
+// JUnit5 Test class for the work queue and --schedule
+public class testBoundedPriorityBlockingQueue {
+
+	private record Item(int priority, String name) {
+	}
+
+	@Test
+	public void testPutBlocksAtCapacity() throws Exception {
+		var queue = new BoundedPriorityBlockingQueue<Integer>(2, Comparator.naturalOrder());
+		queue.put(2);
+		queue.put(1);
+		assertThat(queue.remainingCapacity()).isZero();
+		assertThat(queue.offer(3)).isFalse();
+		assertThat(queue.offer(3, 10, TimeUnit.MILLISECONDS)).isFalse();
+
+		var put = CompletableFuture.runAsync(() -> {
+			try {
+				queue.put(0);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(100);
+		assertThat(put).isNotDone();
+
+		assertThat(queue.take()).isEqualTo(1);
+		put.get(10, TimeUnit.SECONDS);
+		assertThat(queue.size()).isEqualTo(2);
+		assertThat(queue.poll()).isEqualTo(0);
+		assertThat(queue.poll()).isEqualTo(2);
+		assertThat(queue.poll()).isNull();
+		assertThat(queue.poll(10, TimeUnit.MILLISECONDS)).isNull();
+	}
+
+	@Test
+	public void testElementsComeOutInPriorityOrder() throws Exception {
+		var queue = new BoundedPriorityBlockingQueue<Integer>(10, Comparator.naturalOrder());
+		for (int i : new int[] { 5, 3, 9, 1, 7 }) {
+			queue.put(i);
+		}
+
+		assertThat(queue.peek()).isEqualTo(1);
+		assertThat(drain(queue)).containsExactly(1, 3, 5, 7, 9);
+	}
+
+	@Test
+	public void testEqualElementsComeOutInInsertionOrder() throws Exception {
+		var queue = new BoundedPriorityBlockingQueue<Item>(20, Comparator.comparingInt(Item::priority));
+		List<Item> items = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			items.add(new Item(i % 2, "item" + i));
+		}
+		for (Item item : items) {
+			queue.put(item);
+		}
+
+		List<Item> expected = new ArrayList<>(items.stream().filter(i -> i.priority() == 0).toList());
+		expected.addAll(items.stream().filter(i -> i.priority() == 1).toList());
+		List<Item> taken = new ArrayList<>();
+		queue.drainTo(taken);
+		assertThat(taken).containsExactlyElementsOf(expected);
+	}
+
+	@Test
+	public void testFifoKeepsDiscoveryOrder() throws Exception {
+		assertThat(scheduled(Schedule.fifo)).containsExactly("a", "b", "c", "d");
+	}
+
+	@Test
+	public void testLargestComesFirst() throws Exception {
+		// b and d have the same size and keep their discovery order
+		assertThat(scheduled(Schedule.largest)).containsExactly("c", "b", "d", "a");
+	}
+
+	@Test
+	public void testNewestComesFirst() throws Exception {
+		assertThat(scheduled(Schedule.newest)).containsExactly("d", "a", "c", "b");
+	}
+
+	/**
+	 * Queues four files and the poison pill, which is put before the last file,
+	 * and returns the names in the order they are taken up to the pill.
+	 */
+	private static List<String> scheduled(Schedule schedule) throws InterruptedException {
+		BlockingQueue<QueuedFile> queue = Main.newQueue(schedule);
+		queue.put(new QueuedFile(Path.of("a"), 10, 300));
+		queue.put(new QueuedFile(Path.of("b"), 20, 100));
+		queue.put(new QueuedFile(Path.of("c"), 30, 200));
+		if (schedule != Schedule.fifo) {
+			// priority queues sort the pill after the files
+			queue.put(Main.DONE);
+			queue.put(new QueuedFile(Path.of("d"), 20, 400));
+		} else {
+			queue.put(new QueuedFile(Path.of("d"), 20, 400));
+			queue.put(Main.DONE);
+		}
+
+		List<String> names = new ArrayList<>();
+		for (QueuedFile f = queue.take(); f != Main.DONE; f = queue.take()) {
+			names.add(f.path().toString());
+		}
+		assertThat(queue).isEmpty();
+		return names;
+	}
+
+	private static <E> List<E> drain(BlockingQueue<E> queue) throws InterruptedException {
+		List<E> taken = new ArrayList<>();
+		while (!queue.isEmpty()) {
+			taken.add(queue.take());
+		}
+		return taken;
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,128 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+import picocli.CommandLine;
+
+// JUnit5 Test class for --journal
+public class testCompletionJournal {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testCompletedFilesAreDoneAfterRestart() throws Exception {
+		Path journalFile = tmp.resolve("journal");
+		Path a = Files.writeString(tmp.resolve("A.java"), "class A {\n}\n");
+		Path b = Files.writeString(tmp.resolve("B.java"), "class B {\n}\n");
+		try (var journal = CompletionJournal.open(journalFile, "f")) {
+			journal.completed(a, "hash-a");
+			journal.completed(b, "hash-b");
+		}
+		Files.setLastModifiedTime(b, FileTime.fromMillis(Files.getLastModifiedTime(b).toMillis() + 5000));
+
+		try (var journal = CompletionJournal.open(journalFile, "f")) {
+			assertThat(journal.isDone(a, Files.size(a), Files.getLastModifiedTime(a).toMillis())).isTrue();
+			// touched, but with the same content
+			assertThat(journal.isDone(b, Files.size(b), Files.getLastModifiedTime(b).toMillis())).isFalse();
+			assertThat(journal.isDone(b, "hash-b")).isTrue();
+			assertThat(journal.isDone(b, "other")).isFalse();
+		}
+	}
+
+	@Test
+	public void testTornLineIsDroppedAndAppendedAfter() throws Exception {
+		Path journalFile = tmp.resolve("journal");
+		Path a = Files.writeString(tmp.resolve("A.java"), "class A {\n}\n");
+		Path b = Files.writeString(tmp.resolve("B.java"), "class B {\n}\n");
+		try (var journal = CompletionJournal.open(journalFile, "f")) {
+			journal.completed(a, "hash-a");
+		}
+		Files.writeString(journalFile, "12\t34\thash-b\t" + b.toAbsolutePath().toString().substring(0, 5),
+				StandardOpenOption.APPEND);
+
+		try (var journal = CompletionJournal.open(journalFile, "f")) {
+			assertThat(journal.isDone(a, "hash-a")).isTrue();
+			journal.completed(b, "hash-b");
+		}
+
+		assertThat(Files.readAllLines(journalFile)).hasSize(3).allMatch(l -> !l.contains("\t34\t"));
+		try (var journal = CompletionJournal.open(journalFile, "f")) {
+			assertThat(journal.isDone(b, "hash-b")).isTrue();
+		}
+	}
+
+	@Test
+	public void testOtherSettingsStartANewJournal() throws Exception {
+		Path journalFile = tmp.resolve("journal");
+		Path a = Files.writeString(tmp.resolve("A.java"), "class A {\n}\n");
+		try (var journal = CompletionJournal.open(journalFile, "f")) {
+			journal.completed(a, "hash-a");
+		}
+
+		try (var journal = CompletionJournal.open(journalFile, "g")) {
+			assertThat(journal.isDone(a, "hash-a")).isFalse();
+		}
+		assertThat(Files.readAllLines(journalFile)).hasSize(1);
+	}
+
+	@Test
+	public void testNothingIsQueuedOnceWritingFailed() throws Exception {
+		Path a = Files.writeString(tmp.resolve("A.java"), "class A {\n}\n");
+		try (var journal = CompletionJournal.open(tmp.resolve("journal"), "f")) {
+			// the disk going away, as far as the writer can tell
+			journal.getChannel().close();
+			journal.completed(a, "hash-a");
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (!journal.isFailed() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertThat(journal.isFailed()).isTrue();
+
+			for (int i = 0; i < 1000; i++) {
+				journal.completed(a, "hash-a");
+			}
+
+			assertThat(journal.getQueued()).isZero();
+		}
+	}
+
+	@Test
+	public void testStdoutIsRejected() throws Exception {
+		Path a = Files.writeString(tmp.resolve("A.java"), "class A {\n}\n");
+
+		int exitCode = new CommandLine(new Main()).setParameterExceptionHandler(new Main.ShortErrorMessageHandler())
+			.execute("--stdout", "--journal", tmp.resolve("journal").toString(), a.toString());
+
+		assertThat(exitCode).isEqualTo(2);
+		assertThat(tmp.resolve("journal")).doesNotExist();
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,95 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for --adaptive-threads
+public class testConcurrencyController {
+
+	private final FormatService service = new FormatService(new JavaFormatter("test", Map.of(), false), 2, 4);
+
+	@Test
+	public void testClimbsWhileThroughputHoldsAndTurnsAround() {
+		// nothing completes, so only the calls below adapt
+		try (var controller = new ConcurrencyController(service, () -> 0, () -> 0, 1, 4)) {
+			controller.adapt(100, true);
+			assertThat(service.getParallelism()).isEqualTo(3);
+			controller.adapt(98, true); // within the tolerance
+			assertThat(service.getParallelism()).isEqualTo(4);
+			controller.adapt(120, true);
+			assertThat(service.getParallelism()).isEqualTo(4); // stays at --max-threads
+			controller.adapt(80, true);
+			assertThat(service.getParallelism()).isEqualTo(3);
+			controller.adapt(60, true);
+			assertThat(service.getParallelism()).isEqualTo(4);
+			assertThat(controller.getLevel()).isEqualTo(4);
+		}
+	}
+
+	@Test
+	public void testThroughputInAnotherUnitIsANewBaseline() {
+		try (var controller = new ConcurrencyController(service, () -> 0, () -> 0, 1, 4)) {
+			// only up-to-date files completed at 2 threads
+			controller.adapt(100, false);
+			assertThat(service.getParallelism()).isEqualTo(3);
+			// fewer bytes than files per second is no drop
+			controller.adapt(50, true);
+			assertThat(service.getParallelism()).isEqualTo(4);
+			controller.adapt(40, true);
+			assertThat(service.getParallelism()).isEqualTo(3);
+		}
+	}
+
+	@Test
+	public void testStepsOnlyAfterSeveralWindows() throws Exception {
+		// files complete all the time
+		try (var controller = new ConcurrencyController(service, System::nanoTime, () -> 0, 1, 4)) {
+			// at most two windows have passed
+			TimeUnit.NANOSECONDS.sleep(ConcurrencyController.WINDOW * 2);
+			assertThat(service.getParallelism()).isEqualTo(2);
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			while (service.getParallelism() == 2 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertThat(controller.getLevel()).isEqualTo(3);
+		}
+	}
+
+	@Test
+	public void testParallelismStaysWithinTheMaximum() {
+		service.setParallelism(4);
+		assertThat(service.getActive()).isZero();
+
+		service.setParallelism(1);
+
+		assertThat(service.getParallelism()).isEqualTo(1);
+		assertThat(service.getActive()).isZero();
+		service.setParallelism(10);
+		assertThat(service.getParallelism()).isEqualTo(4);
+		assertThat(service.getConsumers()).isEqualTo(8);
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
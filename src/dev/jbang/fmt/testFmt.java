@@ -4,33 +4,56 @@
 //DEPS org.junit.platform:junit-platform-console:1.12.2
 //DEPS org.assertj:assertj-core:3.25.1
 
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.code=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.file=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.parser=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.tree=ALL-UNNAMED
+//JAVA_OPTIONS --add-exports=jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED
+
 //SOURCES ../../../../src/**/*.java
 
 package dev.jbang.fmt;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
+import org.eclipse.jdt.core.JavaCore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.platform.console.ConsoleLauncher;
 
+import com.google.googlejavaformat.java.Formatter;
+import com.google.googlejavaformat.java.JavaFormatterOptions;
+
+import picocli.CommandLine;
+
 import dev.jbang.fmt.JavaFormatter;
 
 // JUnit5 Test class for fmt
 public class testFmt {
 
-	private static Stream<JavaFormatter> formatters() {
-		return Stream.of(new JavaFormatter("test", null, true));
+	private static Stream<FormatterBackend> formatters() {
+		return Stream.of(new JavaFormatter("test", null, true),
+				new GoogleJavaFormatter(JavaFormatterOptions.Style.GOOGLE, false));
 	}
 
 	@ParameterizedTest
 	@MethodSource("formatters")
-	public void testBasicHelloWorld(JavaFormatter formatter) throws Exception {
+	public void testBasicHelloWorld(FormatterBackend formatter) throws Exception {
 		String input = """
 				public class TestClass{public static void main(String[]args){System.out.println("Hello");}}
 				""";
@@ -44,7 +67,7 @@ public class testFmt {
 
 	@ParameterizedTest
 	@MethodSource("formatters")
-	public void testEmptyInput(JavaFormatter formatter) throws Exception {
+	public void testEmptyInput(FormatterBackend formatter) throws Exception {
 
 		String emptyInput = "";
 
@@ -58,7 +81,7 @@ public class testFmt {
 
 	@ParameterizedTest
 	@MethodSource("formatters")
-	public void testInvalidJavaCode(JavaFormatter formatter) throws Exception {
+	public void testInvalidJavaCode(FormatterBackend formatter) throws Exception {
 		String invalidCode = "this is not valid java code {";
 
 		// Both formatters should handle invalid code gracefully
@@ -71,7 +94,7 @@ public class testFmt {
 
 	@ParameterizedTest
 	@MethodSource("formatters")
-	public void testJBangDirectivesSurvive(JavaFormatter formatter) throws Exception {
+	public void testJBangDirectivesSurvive(FormatterBackend formatter) throws Exception {
 		String input = """
 				///usr/bin/env jbang "$0" "$@" ; exit $?
 				      //DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
@@ -104,7 +127,7 @@ public class testFmt {
 
 	@ParameterizedTest
 	@MethodSource("formatters")
-	public void testFormatterNames(JavaFormatter formatter) throws Exception {
+	public void testFormatterNames(FormatterBackend formatter) throws Exception {
 		assertThat(formatter.getName()).as("Formatter should have a non-null name")
 			.isNotNull()
 			.isIn("Eclipse",
@@ -113,7 +136,7 @@ public class testFmt {
 
 	@ParameterizedTest
 	@MethodSource("formatters")
-	public void testComplexJavaCode(JavaFormatter formatter) throws Exception {
+	public void testComplexJavaCode(FormatterBackend formatter) throws Exception {
 		String input = """
 				public class ComplexTest{private String name;public ComplexTest(String name){this.name=name;}public String getName(){return name;}public void setName(String name){this.name=name;}}
 				""";
@@ -131,7 +154,7 @@ public class testFmt {
 
 	@ParameterizedTest
 	@MethodSource("formatters")
-	public void testNestedStructures(JavaFormatter formatter) throws Exception {
+	public void testNestedStructures(FormatterBackend formatter) throws Exception {
 		String input = """
 				public class NestedTest{public static void main(String[]args){if(true){if(false){System.out.println("Inner");}else{System.out.println("Outer");}}}}
 				""";
@@ -147,6 +170,68 @@ public class testFmt {
 			.contains("System.out.println(\"Outer\")");
 	}
 
+	@Test
+	public void testFailFastStopsAtTheFirstChange(@TempDir Path tmp) throws Exception {
+		// more files than the queue holds, so discovery blocks unless it is cancelled
+		int files = FormatService.QUEUE_CAPACITY + 100;
+		for (int d = 0; d < 100; d++) {
+			Path dir = Files.createDirectories(tmp.resolve("dir" + d));
+			for (int f = 0; f < files / 100; f++) {
+				Files.writeString(dir.resolve("A" + f + ".java"), "class A" + f + "{}");
+			}
+		}
+
+		// in its own JVM, as the summary goes to the stdout it started with
+		Path out = tmp.resolve("out.txt");
+		String java = ProcessHandle.current().info().command().orElse("java");
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				Main.class.getName(), "--check", "--fail-fast", "--max-threads", "1", tmp.toString())
+			.redirectOutput(out.toFile())
+			.redirectError(ProcessBuilder.Redirect.DISCARD)
+			.start();
+		try {
+			assertThat(process.waitFor(60, TimeUnit.SECONDS)).as("stopped in time").isTrue();
+		} finally {
+			process.destroyForcibly();
+		}
+		String output = Files.readString(out, StandardCharsets.UTF_8);
+
+		assertThat(process.exitValue()).isEqualTo(1);
+		var summary = Pattern.compile("Would reformat (.+\\.java) \\(stopped after (\\d+) files\\) in .*")
+			.matcher(output.strip().lines().reduce((a, b) -> b).orElse(""));
+		assertThat(summary.matches()).as(output).isTrue();
+		assertThat(Path.of(summary.group(1))).startsWith(tmp);
+		// the other consumer waits for the only CPU permit and is cancelled
+		assertThat(summary.group(2)).isEqualTo("1");
+	}
+
+	@Test
+	public void testEngineVersionsAreKnown() {
+		assertThat(EngineVersion.of(JavaCore.class, "Bundle-Version")).matches("\\d+\\.\\d+.*");
+		assertThat(EngineVersion.of(Formatter.class, "Implementation-Version")).matches("\\d+\\.\\d+.*");
+		assertThat(EngineVersion.of(testFmt.class, "Bundle-Version")).isEqualTo("unknown");
+	}
+
+	@Test
+	public void testWritesKeepLinksAndPermissions(@TempDir Path tmp) throws Exception {
+		assumeTrue(tmp.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		Path file = tmp.resolve("src/A.java");
+		Files.createDirectories(file.getParent());
+		Files.writeString(file, "class A{}");
+		var permissions = PosixFilePermissions.fromString("rwxr-x---");
+		Files.setPosixFilePermissions(file, permissions);
+		Path link = Files.createSymbolicLink(tmp.resolve("A.java"), file);
+
+		assertThat(new CommandLine(new Main()).execute(link.toString())).isZero();
+
+		assertThat(Files.isSymbolicLink(link)).isTrue();
+		assertThat(Files.readString(file)).isNotEqualTo("class A{}");
+		assertThat(Files.getPosixFilePermissions(file)).isEqualTo(permissions);
+		try (var files = Files.list(file.getParent())) {
+			assertThat(files).containsExactly(file);
+		}
+	}
+
 	// Scan the system classpath for tests
 	// Include those found in /cache/jars/ which is where
 	// jbang will by default put them. Adjust as needed.
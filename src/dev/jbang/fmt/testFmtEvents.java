@@ -0,0 +1,89 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+// JUnit5 Test class for the flight recorder events
+public class testFmtEvents {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testFormatEventIsRecorded() throws Exception {
+		var formatter = new JavaFormatter("test", Map.of(), false);
+
+		List<RecordedEvent> events = record(() -> FmtEvents.withFile("A.java",
+				() -> formatter.format("class A{}")));
+
+		assertThat(events).singleElement().satisfies(e -> {
+			assertThat(e.getString("file")).isEqualTo("A.java");
+			assertThat(e.getString("engine")).isEqualTo("Eclipse");
+			assertThat(e.getLong("size")).isEqualTo(9);
+			assertThat(e.getBoolean("failed")).isFalse();
+		});
+	}
+
+	@Test
+	public void testFormatEventIsRecordedWhenTheEngineThrows() throws Exception {
+		var formatter = new JavaFormatter("test", Map.of(), false);
+
+		List<RecordedEvent> events = record(() -> FmtEvents.withFile("A.java", () -> {
+			// a range past the end of the content
+			assertThatThrownBy(() -> formatter.computeEdit("class A{}", List.of(new CodeRange(0, 100))))
+				.isInstanceOf(IllegalArgumentException.class);
+			return null;
+		}));
+
+		assertThat(events).singleElement().satisfies(e -> {
+			assertThat(e.getString("file")).isEqualTo("A.java");
+			assertThat(e.getBoolean("failed")).isTrue();
+		});
+	}
+
+	private List<RecordedEvent> record(Callable<?> task) throws Exception {
+		Path file = tmp.resolve("fmt.jfr");
+		try (var recording = new Recording()) {
+			recording.enable("dev.jbang.fmt.Format");
+			recording.start();
+			task.call();
+			recording.stop();
+			recording.dump(file);
+		}
+		return RecordingFile.readAllEvents(file)
+			.stream()
+			.filter(e -> e.getEventType().getName().equals("dev.jbang.fmt.Format"))
+			.toList();
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
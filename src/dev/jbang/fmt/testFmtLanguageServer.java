@@ -0,0 +1,267 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.lsp4j.DidOpenTextDocumentParams;
+import org.eclipse.lsp4j.DocumentFormattingParams;
+import org.eclipse.lsp4j.DocumentOnTypeFormattingParams;
+import org.eclipse.lsp4j.DocumentRangeFormattingParams;
+import org.eclipse.lsp4j.FormattingOptions;
+import org.eclipse.lsp4j.InitializeParams;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentIdentifier;
+import org.eclipse.lsp4j.TextDocumentItem;
+import org.eclipse.lsp4j.TextEdit;
+import org.eclipse.lsp4j.services.LanguageServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for --lsp
+public class testFmtLanguageServer {
+
+	private static final String URI = "file:///A.java";
+
+	private static final String SOURCE = """
+			//DEPS org.example:lib:1.0
+			class A {
+			void   f( ){ int x=1; }
+			void   g( ){ int y=2; }
+			}
+			""";
+
+	private final FmtLanguageServer impl = new FmtLanguageServer(
+			style -> new JavaFormatter(style, Map.of(), false), "test");
+	private final LanguageServer server = impl;
+
+	@BeforeEach
+	public void initialize() throws Exception {
+		server.initialize(new InitializeParams()).get(10, TimeUnit.SECONDS);
+	}
+
+	@AfterEach
+	public void shutdown() throws Exception {
+		server.shutdown().get(10, TimeUnit.SECONDS);
+		assertThat(impl.getExitCode()).isZero();
+	}
+
+	@Test
+	public void testDocumentFormattingLeavesDirectivesAlone() throws Exception {
+		open(SOURCE);
+
+		String formatted = apply(SOURCE, server.getTextDocumentService()
+			.formatting(new DocumentFormattingParams(document(), options()))
+			.get(10, TimeUnit.SECONDS));
+
+		assertThat(formatted).startsWith("//DEPS org.example:lib:1.0\n")
+			.contains("\tvoid f() {")
+			.contains("\tvoid g() {")
+			.doesNotContain("void   ");
+	}
+
+	@Test
+	public void testRangeFormattingOnlyTouchesTheRange() throws Exception {
+		open(SOURCE);
+
+		// the range starts in the directive, which stays as it is
+		var edits = server.getTextDocumentService()
+			.rangeFormatting(new DocumentRangeFormattingParams(document(), options(),
+					new Range(new Position(0, 3), new Position(2, 23))))
+			.get(10, TimeUnit.SECONDS);
+
+		assertThat(edits).isNotEmpty().allSatisfy(e -> assertThat(e.getRange().getEnd().getLine()).isLessThan(3));
+		String formatted = apply(SOURCE, edits);
+		assertThat(formatted).startsWith("//DEPS org.example:lib:1.0\n")
+			.contains("void   g( ){ int y=2; }")
+			.doesNotContain("void   f(");
+	}
+
+	@Test
+	public void testRangeWithinTheDirectivesHasNoEdits() throws Exception {
+		open(SOURCE);
+
+		var edits = server.getTextDocumentService()
+			.rangeFormatting(new DocumentRangeFormattingParams(document(), options(),
+					new Range(new Position(0, 0), new Position(0, 10))))
+			.get(10, TimeUnit.SECONDS);
+
+		assertThat(edits).isEmpty();
+	}
+
+	@Test
+	public void testOnTypeFormattingFormatsTheTypedLine() throws Exception {
+		open(SOURCE);
+
+		String afterSemicolon = apply(SOURCE, server.getTextDocumentService()
+			.onTypeFormatting(new DocumentOnTypeFormattingParams(document(), options(), new Position(3, 21), ";"))
+			.get(10, TimeUnit.SECONDS));
+		assertThat(afterSemicolon).contains("void   f( ){ int x=1; }").doesNotContain("void   g(");
+
+		// after a newline the line just finished and the new one are formatted
+		var afterNewline = server.getTextDocumentService()
+			.onTypeFormatting(new DocumentOnTypeFormattingParams(document(), options(), new Position(3, 0), "\n"))
+			.get(10, TimeUnit.SECONDS);
+		assertThat(afterNewline).allSatisfy(e -> {
+			assertThat(e.getRange().getStart().getLine()).isGreaterThanOrEqualTo(2);
+			assertThat(e.getRange().getEnd().getLine()).isLessThanOrEqualTo(4);
+		});
+		assertThat(apply(SOURCE, afterNewline)).doesNotContain("void   f(").endsWith("\t}\n}\n");
+	}
+
+	@Test
+	public void testPositionsOnCrlfContent() throws Exception {
+		String crlf = SOURCE.replace("\n", "\r\n");
+		open(crlf);
+
+		// past the end of line 2 means its end, before the line break
+		var edits = server.getTextDocumentService()
+			.rangeFormatting(new DocumentRangeFormattingParams(document(), options(),
+					new Range(new Position(2, 0), new Position(2, 500))))
+			.get(10, TimeUnit.SECONDS);
+
+		assertThat(edits).isNotEmpty().allSatisfy(e -> {
+			assertThat(e.getRange().getStart().getLine()).isEqualTo(2);
+			assertThat(e.getRange().getEnd().getLine()).isEqualTo(2);
+		});
+		String formatted = apply(crlf, edits);
+		assertThat(formatted).doesNotContain("void   f(").contains("void   g( ){ int y=2; }\r\n");
+		// inserted line breaks match the document
+		assertThat(formatted.replace("\r\n", "")).doesNotContain("\n").doesNotContain("\r");
+	}
+
+	@Test
+	public void testMarkdownFormatsOnlyItsJavaBlocks() throws Exception {
+		String markdown = """
+				Some   text  {with} braces;
+
+				```java
+				class A { void   f( ){ } }
+				```
+				""";
+		open("file:///README.md", markdown);
+
+		String formatted = apply(markdown, server.getTextDocumentService()
+			.formatting(new DocumentFormattingParams(new TextDocumentIdentifier("file:///README.md"), options()))
+			.get(10, TimeUnit.SECONDS));
+
+		assertThat(formatted).startsWith("Some   text  {with} braces;\n\n```java\n")
+			.contains("\tvoid f() {")
+			.endsWith("}\n```\n");
+	}
+
+	@Test
+	public void testKindsTheEngineCannotFormatHaveNoEdits() throws Exception {
+		var javaOnly = new FmtLanguageServer(style -> new FormatterBackend() {
+			@Override
+			public String getName() {
+				return "JavaOnly";
+			}
+
+			@Override
+			public String getFingerprint() {
+				return "java-only";
+			}
+
+			@Override
+			public boolean isTouchJBang() {
+				return false;
+			}
+
+			@Override
+			public String format(String content, List<CodeRange> ranges) {
+				return "class Formatted {}\n";
+			}
+		}, "test");
+		javaOnly.initialize(new InitializeParams()).get(10, TimeUnit.SECONDS);
+		javaOnly.getTextDocumentService()
+			.didOpen(new DidOpenTextDocumentParams(
+					new TextDocumentItem("file:///script.jsh", "java", 1, "int x=1;\n")));
+
+		var edits = javaOnly.getTextDocumentService()
+			.formatting(new DocumentFormattingParams(new TextDocumentIdentifier("file:///script.jsh"), options()))
+			.get(10, TimeUnit.SECONDS);
+
+		assertThat(edits).isEmpty();
+		javaOnly.shutdown().get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testPositionMappingOnCrlfContent() {
+		String crlf = "ab\r\ncd\r\n";
+		int[] starts = TextDiff.lineStarts(crlf);
+
+		assertThat(FmtLanguageServer.offset(starts, crlf, new Position(1, 1))).isEqualTo(5);
+		// clamped to the end of the line, before \r\n
+		assertThat(FmtLanguageServer.offset(starts, crlf, new Position(0, 9))).isEqualTo(2);
+		assertThat(FmtLanguageServer.offset(starts, crlf, new Position(5, 0))).isEqualTo(crlf.length());
+		assertThat(FmtLanguageServer.position(starts, 5)).isEqualTo(new Position(1, 1));
+		assertThat(FmtLanguageServer.position(starts, crlf.length())).isEqualTo(new Position(2, 0));
+	}
+
+	private void open(String text) {
+		open(URI, text);
+	}
+
+	private void open(String uri, String text) {
+		server.getTextDocumentService()
+			.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, "java", 1, text)));
+	}
+
+	private static TextDocumentIdentifier document() {
+		return new TextDocumentIdentifier(URI);
+	}
+
+	private static FormattingOptions options() {
+		return new FormattingOptions(4, false);
+	}
+
+	/**
+	 * Applies edits the way an editor does, from the last to the first, with
+	 * lines ending at \n.
+	 */
+	private static String apply(String content, List<? extends TextEdit> edits) {
+		List<Integer> starts = new ArrayList<>(List.of(0));
+		for (int i = 0; i < content.length(); i++) {
+			if (content.charAt(i) == '\n') {
+				starts.add(i + 1);
+			}
+		}
+		List<TextEdit> sorted = new ArrayList<>(edits);
+		sorted.sort(Comparator.comparing((TextEdit e) -> e.getRange().getStart().getLine())
+			.thenComparing(e -> e.getRange().getStart().getCharacter())
+			.reversed());
+		var sb = new StringBuilder(content);
+		for (TextEdit e : sorted) {
+			int start = starts.get(e.getRange().getStart().getLine()) + e.getRange().getStart().getCharacter();
+			int end = starts.get(e.getRange().getEnd().getLine()) + e.getRange().getEnd().getCharacter();
+			sb.replace(start, end, e.getNewText());
+		}
+		return sb.toString();
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
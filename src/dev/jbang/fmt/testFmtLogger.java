@@ -0,0 +1,163 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// JUnit5 Test class for the asynchronous logger
+public class testFmtLogger {
+
+	@TempDir
+	Path tmp;
+
+	private record Result(String out, String err) {
+	}
+
+	@Test
+	public void testQuoteEscapesQuotesAndControlCharacters() {
+		assertThat(FmtLogger.quote("say \"hi\"\\ \n\r\t\u0001\u001f ok"))
+			.isEqualTo("\"say \\\"hi\\\"\\\\ \\n\\r\\t\\u0001\\u001f ok\"");
+	}
+
+	@Test
+	public void testFlushWritesEverythingQueued() throws Exception {
+		// the child halts right after flush(), skipping the shutdown hook
+		Result result = run("messages");
+
+		List<JsonObject> out = json(result.out());
+		List<JsonObject> err = json(result.err());
+		assertThat(out).extracting(o -> o.get("message").getAsString())
+			.containsExactly("say \"hi\"\n\tnext", "required");
+		assertThat(out).extracting(o -> o.get("level").getAsString()).containsExactly("info", "info");
+		assertThat(out.get(0).get("thread").getAsString()).isEqualTo("main");
+		assertThat(err).extracting(o -> o.get("message").getAsString()).containsExactly("broken\u0001");
+		assertThat(err.get(0).get("level").getAsString()).isEqualTo("error");
+	}
+
+	@Test
+	public void testEverythingGoesToStderrWhenStdoutCarriesAProtocol() throws Exception {
+		Result result = run("stderr-only");
+
+		assertThat(result.out()).isEmpty();
+		assertThat(result.err().lines()).containsExactly("to stderr", "also to stderr");
+	}
+
+	@Test
+	public void testOutputLargerThanTheLimitDoesNotBlock() throws Exception {
+		Result result = run("large");
+
+		assertThat(result.out().lines()).hasSize(3);
+		assertThat(result.out().lines().map(String::length))
+			.containsExactly(FmtLogger.OUTPUT_LIMIT + 1, FmtLogger.OUTPUT_LIMIT + 1, 4);
+	}
+
+	@Test
+	public void testNullMessagesAreWritten() throws Exception {
+		Result result = run("null");
+
+		assertThat(json(result.out())).extracting(o -> o.get("message").getAsString())
+			.containsExactly("null", "after");
+		assertThat(json(result.err())).extracting(o -> o.get("message").getAsString()).containsExactly("null");
+	}
+
+	@Test
+	public void testNullOutputIsWritten() throws Exception {
+		Result result = run("null-output");
+
+		assertThat(result.out().lines()).containsExactly("null", "after");
+	}
+
+	/**
+	 * Runs a scenario of {@link Child} in its own JVM, as the logger writes to
+	 * the streams it found when it started.
+	 */
+	private Result run(String scenario) throws IOException, InterruptedException {
+		Path out = tmp.resolve(scenario + ".out");
+		Path err = tmp.resolve(scenario + ".err");
+		String java = ProcessHandle.current().info().command().orElse("java");
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				Child.class.getName(), scenario)
+			.redirectOutput(out.toFile())
+			.redirectError(err.toFile())
+			.start();
+		try {
+			assertThat(process.waitFor(60, TimeUnit.SECONDS)).as("finished in time").isTrue();
+		} finally {
+			process.destroyForcibly();
+		}
+		assertThat(process.exitValue()).as("exit code, stderr: %s", Files.readString(err)).isZero();
+		return new Result(Files.readString(out, StandardCharsets.UTF_8), Files.readString(err, StandardCharsets.UTF_8));
+	}
+
+	private static List<JsonObject> json(String lines) {
+		return lines.lines().map(line -> JsonParser.parseString(line).getAsJsonObject()).toList();
+	}
+
+	public static class Child {
+		public static void main(String... args) {
+			switch (args[0]) {
+			case "messages" -> {
+				FmtLogger.format = FmtLogger.Format.json;
+				FmtLogger.info("say \"hi\"\n\tnext");
+				FmtLogger.verbose("not shown");
+				FmtLogger.error("broken\u0001");
+				FmtLogger.requiredInfo("required");
+			}
+			case "stderr-only" -> {
+				FmtLogger.stderrOnly = true;
+				FmtLogger.info("to stderr");
+				FmtLogger.error("also to stderr");
+			}
+			case "large" -> {
+				String content = "x".repeat(FmtLogger.OUTPUT_LIMIT + 1);
+				FmtLogger.output(content);
+				FmtLogger.output(content);
+				FmtLogger.output("done");
+			}
+			case "null" -> {
+				FmtLogger.format = FmtLogger.Format.json;
+				FmtLogger.info(null);
+				FmtLogger.error(null);
+				FmtLogger.info("after");
+			}
+			case "null-output" -> {
+				FmtLogger.output(null);
+				FmtLogger.output("after");
+			}
+			default -> throw new IllegalArgumentException(args[0]);
+			}
+			FmtLogger.flush();
+			Runtime.getRuntime().halt(0);
+		}
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,135 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.jupiter:junit-jupiter-params:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.text.edits.CopySourceEdit;
+import org.eclipse.text.edits.CopyTargetEdit;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for applying flattened Eclipse formatter edits
+public class testFormatEdit {
+
+	private static final List<String> CORPUS = List.of(
+			"""
+					//DEPS info.picocli:picocli:4.7.6
+					package a.b;
+					import java.util.*;
+					/** Javadoc   that is   long enough to be wrapped by the formatter when the line length is reached by it */
+					public class A<T extends Comparable<T>>{
+					  @Deprecated   private final List<T>items=new ArrayList<>();
+					     // line comment
+					  public   A(){}
+					  T max(){return items.stream().max(Comparator.naturalOrder()).orElseThrow(()->new IllegalStateException("empty"));}
+					  /* block */ int sw(int k){switch(k){case 1->{return 2;}default->{return k*k;}}}
+					}
+					""",
+			"""
+					record Point(int x,int y){Point{if(x<0)throw new IllegalArgumentException();}
+					static Point of(int x,int y){return new Point(x,y);}}
+					enum Color{RED,GREEN,BLUE;Color next(){return values()[(ordinal()+1)%values().length];}}
+					interface Shape{double area();default String describe(){return "area "+area();}}
+					""",
+			"""
+					class Texts {
+						String block = \"""
+						    keep   this
+						      as it is
+						    \""";
+						void loops() { for(int i=0;i<10;i++){ if(i%2==0) continue; else { System.out.println(i); } }
+							try{ Thread.sleep(1); }catch(InterruptedException e){ Thread.currentThread().interrupt(); }finally{}
+						}
+					}
+					""",
+			"""
+					class Formatted {
+
+						void nothingToDo() {
+						}
+					}
+					""", "public class Dense{public int m(int a,int b){if(a>b){return a-b;}else{return b+a;}}}\n");
+
+	private static Stream<JavaFormatter> formatters() throws Exception {
+		return Stream.of(new JavaFormatter("default", null, false),
+				new JavaFormatter("jbang", JavaFormatter.loadSettingsFromClasspath("jbang"), false),
+				new JavaFormatter("eclipse", JavaFormatter.loadSettingsFromClasspath("eclipse"), false));
+	}
+
+	@ParameterizedTest
+	@MethodSource("formatters")
+	public void testFlattenedEditsMatchTheDocument(JavaFormatter formatter) throws Exception {
+		for (String source : CORPUS) {
+			TextEdit edit = formatter.computeEdit(source, formatter.formattableRanges(source));
+			assertThat(edit).as("formatting %s", source).isNotNull();
+
+			assertThat(applyFlattened(source, edit)).isEqualTo(applyToDocument(source, edit));
+		}
+	}
+
+	@Test
+	public void testChildrenOfAReplaceAreReplacedWithIt() throws Exception {
+		String source = "abcdef";
+		var root = new MultiTextEdit();
+		var replace = new ReplaceEdit(1, 4, "X");
+		replace.addChild(new InsertEdit(2, "ignored"));
+		root.addChild(replace);
+		root.addChild(new InsertEdit(6, "!"));
+
+		assertThat(applyFlattened(source, root)).isEqualTo("aXf!").isEqualTo(applyToDocument(source, root));
+	}
+
+	@Test
+	public void testEditsMovingTextAreRejected() {
+		var root = new MultiTextEdit();
+		var copy = new CopySourceEdit(0, 1);
+		root.addChild(copy);
+		root.addChild(new CopyTargetEdit(3, copy));
+
+		assertThatThrownBy(() -> applyFlattened("abc", root)).isInstanceOf(IllegalArgumentException.class)
+			.hasMessageContaining("CopySourceEdit");
+	}
+
+	private static String applyFlattened(String source, TextEdit edit) {
+		List<FormatEdit> edits = new ArrayList<>();
+		JavaFormatter.flatten(source, edit, edits);
+		return FormatEdit.apply(source, edits);
+	}
+
+	private static String applyToDocument(String source, TextEdit edit) throws Exception {
+		var doc = new Document(source);
+		// applying moves the edit, keep the original for flattening
+		edit.copy().apply(doc);
+		return doc.get();
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
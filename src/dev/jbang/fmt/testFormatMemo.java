@@ -0,0 +1,122 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for formatting duplicate contents once
+public class testFormatMemo {
+
+	private final FormatService service = new FormatService(new JavaFormatter("test", Map.of(), false), 2);
+	private final AtomicInteger calls = new AtomicInteger();
+
+	@Test
+	public void testDuplicatesAreFormattedOnce() throws Exception {
+		var memo = new FormatMemo(service, FormatMemo.DEFAULT_CAPACITY);
+
+		assertThat(memo.format(SourceKind.java, "class A{}", () -> upper("class A{}"))).isEqualTo("CLASS A{}");
+		assertThat(memo.format(SourceKind.java, "class A{}", () -> upper("class A{}"))).isEqualTo("CLASS A{}");
+		assertThat(memo.format(SourceKind.java, "CLEAN", () -> upper("CLEAN"))).isEqualTo("CLEAN");
+		assertThat(memo.format(SourceKind.java, "CLEAN", () -> upper("CLEAN"))).isEqualTo("CLEAN");
+
+		assertThat(calls).hasValue(2);
+		assertThat(memo.getReused()).isEqualTo(2);
+	}
+
+	@Test
+	public void testOnlyEqualContentOfTheSameKindIsReused() throws Exception {
+		var memo = new FormatMemo(service, FormatMemo.DEFAULT_CAPACITY);
+		// same length and hash code
+		assertThat("Aa".hashCode()).isEqualTo("BB".hashCode());
+
+		assertThat(memo.format(SourceKind.java, "Aa", () -> upper("Aa"))).isEqualTo("AA");
+		assertThat(memo.format(SourceKind.java, "BB", () -> upper("BB"))).isEqualTo("BB");
+		assertThat(memo.format(SourceKind.markdown, "Aa", () -> upper("Aa"))).isEqualTo("AA");
+
+		assertThat(calls).hasValue(3);
+		assertThat(memo.getReused()).isZero();
+	}
+
+	@Test
+	public void testLeastRecentlyUsedResultsAreDropped() throws Exception {
+		// room for four results of "class N{}" and "CLASS N{}"
+		var memo = new FormatMemo(service, 18 * 4);
+		for (int i = 0; i < 5; i++) {
+			String content = "class " + i + "{}";
+			memo.format(SourceKind.java, content, () -> upper(content));
+		}
+		memo.format(SourceKind.java, "class 4{}", () -> upper("class 4{}"));
+		memo.format(SourceKind.java, "class 1{}", () -> upper("class 1{}"));
+		memo.format(SourceKind.java, "class 0{}", () -> upper("class 0{}"));
+
+		assertThat(calls).hasValue(6);
+		assertThat(memo.getReused()).isEqualTo(2);
+	}
+
+	@Test
+	public void testDuplicatesWaitWithoutACpuPermit() throws Exception {
+		var memo = new FormatMemo(service, FormatMemo.DEFAULT_CAPACITY);
+		var otherDone = new CountDownLatch(1);
+		var results = new ConcurrentLinkedQueue<String>();
+		var queue = new ArrayBlockingQueue<String>(10);
+		// both permits go to the copies, unless the waiting one gives its permit up
+		List.of("copy", "copy", "other", "done").forEach(queue::add);
+
+		var run = CompletableFuture.runAsync(() -> {
+			try {
+				service.process(queue, "done", () -> {
+				}, item -> {
+					results.add(memo.format(SourceKind.java, item, () -> {
+						if (item.equals("copy")) {
+							otherDone.await();
+						} else {
+							otherDone.countDown();
+						}
+						return upper(item);
+					}));
+					return false;
+				}, (item, e) -> results.add(e.toString()), nanos -> {
+				});
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		run.get(30, TimeUnit.SECONDS);
+		assertThat(results).containsExactlyInAnyOrder("COPY", "COPY", "OTHER");
+		assertThat(calls).hasValue(2);
+	}
+
+	private String upper(String content) {
+		calls.incrementAndGet();
+		return content.toUpperCase();
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,98 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for the --jmx view of a run
+public class testFormatRun {
+
+	private final Main.FileStats stats = new Main.FileStats();
+	private final FormatService service = new FormatService(new JavaFormatter("test", Map.of(), false), 2);
+
+	@Test
+	public void testAttributesAreReadFromTheRun() throws Exception {
+		var queue = new ArrayBlockingQueue<String>(10);
+		queue.add("queued");
+		stats.addProcessed();
+		stats.addModified();
+		stats.addBytes(100);
+		var server = ManagementFactory.getPlatformMBeanServer();
+		var name = new ObjectName(FormatRun.OBJECT_NAME);
+
+		var run = new FormatRun(stats, queue, service).register();
+		try {
+			assertThat(server.getAttribute(name, "FilesProcessed")).isEqualTo(1L);
+			assertThat(server.getAttribute(name, "FilesModified")).isEqualTo(1L);
+			assertThat(server.getAttribute(name, "BytesProcessed")).isEqualTo(100L);
+			assertThat(server.getAttribute(name, "QueueDepth")).isEqualTo(1);
+			assertThat(server.getAttribute(name, "ActivePermits")).isEqualTo(0);
+			assertThat(server.getAttribute(name, "Parallelism")).isEqualTo(2);
+		} finally {
+			run.close();
+		}
+		assertThat(server.isRegistered(name)).isFalse();
+	}
+
+	@Test
+	public void testALaterRunReplacesAnEarlierOne() throws Exception {
+		var queue = new ArrayBlockingQueue<String>(10);
+		var server = ManagementFactory.getPlatformMBeanServer();
+
+		var name = new ObjectName(FormatRun.OBJECT_NAME);
+		var earlier = new FormatRun(stats, queue, service).register();
+		var later = new FormatRun(new Main.FileStats(), queue, service).register();
+		try {
+			stats.addProcessed();
+			assertThat(server.getAttribute(name, "FilesProcessed")).isEqualTo(0L);
+			earlier.close();
+			assertThat(server.isRegistered(name)).isTrue();
+		} finally {
+			later.close();
+		}
+		assertThat(server.isRegistered(name)).isFalse();
+	}
+
+	@Test
+	public void testInFlightFilesPerConsumer() throws Exception {
+		var run = new FormatRun(stats, new ArrayBlockingQueue<String>(1), service);
+		run.started("A.java");
+		Thread other = Thread.ofPlatform().start(() -> {
+			run.started("B.java");
+			run.started("C.java");
+		});
+		other.join();
+
+		assertThat(run.getInFlightFiles()).hasSize(2);
+		assertThat(run.getInFlightFiles()[0]).startsWith("A.java (");
+		assertThat(run.getInFlightFiles()[1]).startsWith("C.java (");
+
+		run.finished();
+		assertThat(run.getInFlightFiles()).singleElement().asString().startsWith("C.java (");
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,138 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+import dev.jbang.fmt.FormatService.Result;
+import dev.jbang.fmt.FormatService.Results;
+import dev.jbang.fmt.FormatService.Source;
+
+// JUnit5 Test class for the embeddable batch API
+public class testFormatService {
+
+	private final FormatService service = new FormatService(new JavaFormatter("test", Map.of(), false), 2);
+
+	@Test
+	public void testFormatAllInMemory() throws Exception {
+		var progress = new ConcurrentLinkedQueue<Result>();
+
+		Results results = service.formatAll(IntStream.range(0, 50)
+			.mapToObj(i -> Source.of("T" + i + ".java", "class T" + i + "{int x;}")), progress::add)
+			.get(30, TimeUnit.SECONDS);
+
+		assertThat(results.results()).hasSize(50);
+		assertThat(results.results().get(7).source().name()).isEqualTo("T7.java");
+		assertThat(results.results().get(7).formatted()).contains("class T7 {");
+		assertThat(results.changed()).isEqualTo(50);
+		assertThat(results.failed()).isZero();
+		assertThat(progress).hasSize(50);
+	}
+
+	@Test
+	public void testFailuresAreReportedPerSource() throws Exception {
+		Source broken = new Source() {
+			@Override
+			public String name() {
+				return "Broken.java";
+			}
+
+			@Override
+			public String content() {
+				throw new IllegalStateException("unreadable");
+			}
+		};
+
+		Results results = service
+			.formatAll(Stream.of(Source.of("Ok.java", "class Ok {\n}\n"), broken))
+			.get(30, TimeUnit.SECONDS);
+
+		assertThat(results.results()).extracting(Result::failed).containsExactly(false, true);
+		assertThat(results.results().get(0).changed()).isFalse();
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		var read = new AtomicInteger();
+		var formatted = new AtomicInteger();
+		CompletableFuture<Results> future = service.formatAll(Stream.generate(() -> new Source() {
+			@Override
+			public String name() {
+				return "Endless.java";
+			}
+
+			@Override
+			public String content() {
+				read.incrementAndGet();
+				return "class E{}";
+			}
+		}), r -> formatted.incrementAndGet());
+		while (formatted.get() < 10) {
+			Thread.sleep(10);
+		}
+
+		future.cancel(true);
+
+		assertThat(future).isCancelled();
+		// sources being formatted when cancelled may still finish
+		int settled = awaitSettled(read);
+		Thread.sleep(500);
+		assertThat(read.get()).isEqualTo(settled);
+		assertThat(formatted.get()).isLessThanOrEqualTo(settled);
+	}
+
+	@Test
+	public void testFailingProgressFailsTheBatchOnce() throws Exception {
+		var calls = new AtomicInteger();
+
+		CompletableFuture<Results> future = service.formatAll(Stream.of(Source.of("A.java", "class A{}")), r -> {
+			calls.incrementAndGet();
+			throw new IllegalStateException("listener failed");
+		});
+
+		assertThatThrownBy(() -> future.get(30, TimeUnit.SECONDS)).hasRootCauseMessage("listener failed");
+		assertThat(calls).hasValue(1);
+	}
+
+	private static int awaitSettled(AtomicInteger counter) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		int last;
+		do {
+			assertThat(System.nanoTime()).as("still running").isLessThan(deadline);
+			last = counter.get();
+			Thread.sleep(100);
+		} while (counter.get() != last);
+		return last;
+	}
+
+	// Scan the system classpath for tests
+	// Include those found in /cache/jars/ which is where
+	// jbang will by default put them. Adjust as needed.
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
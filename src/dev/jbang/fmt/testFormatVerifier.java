@@ -0,0 +1,104 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for the --verify check
+public class testFormatVerifier {
+
+	private final FormatVerifier verifier = new FormatVerifier(true);
+
+	@Test
+	public void testLayoutAndCommentChangesPass() {
+		String before = "//DEPS a:b:1\nclass A{int x=1;/* c */ void f(){}}\n";
+		String after = "//DEPS a:b:1\nclass A {\n\tint x = 1;\n\t/* comment */\n\tvoid f() {\n\t}\n}\n";
+
+		assertThatCode(() -> verifier.verify(before, after)).doesNotThrowAnyException();
+	}
+
+	@Test
+	public void testChangedTokenFails() {
+		String before = "class A {\n\tint x = 1;\n}\n";
+		String after = "class A {\n\tint x = 2;\n}\n";
+
+		assertThatThrownBy(() -> verifier.verify(before, after))
+			.isInstanceOf(FormatVerifier.VerificationException.class)
+			.hasMessageContaining("'1' at line 2");
+	}
+
+	@Test
+	public void testMissingTokenFails() {
+		assertThatThrownBy(() -> verifier.verify("class A { int x; }", "class A { int x }"))
+			.isInstanceOf(FormatVerifier.VerificationException.class);
+	}
+
+	@Test
+	public void testChangedDirectiveFails() {
+		String before = "///usr/bin/env jbang\n//DEPS a:b:1\nclass A {}\n";
+		String after = "///usr/bin/env jbang\n// DEPS a:b:1\nclass A {}\n";
+
+		assertThatThrownBy(() -> verifier.verify(before, after))
+			.isInstanceOf(FormatVerifier.VerificationException.class)
+			.hasMessageContaining("line 2");
+	}
+
+	@Test
+	public void testDirectivesIgnoredWhenTouchingIsAllowed() {
+		String before = "//DEPS a:b:1\nclass A {}\n";
+		String after = "// DEPS a:b:1\nclass A {}\n";
+
+		assertThatCode(() -> new FormatVerifier(false).verify(before, after)).doesNotThrowAnyException();
+	}
+
+	@Test
+	public void testTokensAreScannedAtTheConfiguredLevel() {
+		// the \s escape exists since Java 15
+		String before = "class A{String s=\"a\\sb\";}\n";
+		String after = "class A {\n\tString s = \"a\\sb\";\n}\n";
+
+		assertThatCode(() -> new FormatVerifier(true, "17", "17").verify(before, after))
+			.doesNotThrowAnyException();
+		assertThatThrownBy(() -> new FormatVerifier(true, "1.8", "1.8").verify(before, after))
+			.isInstanceOf(FormatVerifier.VerificationException.class)
+			.hasMessageContaining("cannot tokenize");
+	}
+
+	@Test
+	public void testReindentedTextBlockPasses() {
+		String before = "class A {\nString s = \"\"\"\n  a\n    b\n  \"\"\";\n}\n";
+		String after = "class A {\n\tString s = \"\"\"\n\t\t\ta\n\t\t\t  b\n\t\t\t\"\"\";\n}\n";
+
+		assertThatCode(() -> verifier.verify(before, after)).doesNotThrowAnyException();
+	}
+
+	@Test
+	public void testChangedTextBlockFails() {
+		String before = "class A {\nString s = \"\"\"\n  a\n    b\n  \"\"\";\n}\n";
+		String after = "class A {\nString s = \"\"\"\n  a\n  b\n  \"\"\";\n}\n";
+
+		assertThatThrownBy(() -> verifier.verify(before, after))
+			.isInstanceOf(FormatVerifier.VerificationException.class);
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,175 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for --file-timeout and --quarantine
+public class testFormatWatchdog {
+
+	private final FormatService service = new FormatService(new JavaFormatter("test", Map.of(), false), 2);
+	private final FormatWatchdog watchdog = new FormatWatchdog(Duration.ofMillis(200), service);
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testResultsAndFailuresPassThrough() throws Exception {
+		assertThat(watchdog.format(() -> "formatted")).isEqualTo("formatted");
+		assertThatThrownBy(() -> watchdog.format(() -> {
+			throw new IOException("broken");
+		})).isInstanceOf(IOException.class).hasMessage("broken");
+	}
+
+	@Test
+	public void testAbandonedFormattingHoldsAPermitUntilItEnds() throws Exception {
+		var stop = new AtomicBoolean();
+
+		assertThatThrownBy(() -> watchdog.format(() -> spin(stop)))
+			.isInstanceOfSatisfying(FormatWatchdog.FileTimeoutException.class,
+					e -> assertThat(e.getSample(12)).contains("spin"));
+
+		// still spinning, interruption or not
+		assertThat(service.getActive()).isEqualTo(1);
+		stop.set(true);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (service.getActive() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(service.getActive()).isZero();
+	}
+
+	@Test
+	public void testTimesOutWhenEveryPermitIsStuck() throws Exception {
+		// by default there are as many permits as carriers of virtual threads
+		int permits = Runtime.getRuntime().availableProcessors();
+		var stuck = new FormatService(new JavaFormatter("test", Map.of(), false), permits);
+		var watched = new FormatWatchdog(Duration.ofMillis(200), stuck);
+		var stop = new AtomicBoolean();
+
+		var callers = Executors.newVirtualThreadPerTaskExecutor();
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < permits; i++) {
+				results.add(callers.submit(() -> watched.format(() -> spin(stop))));
+			}
+			for (Future<String> result : results) {
+				assertThatThrownBy(() -> result.get(10, TimeUnit.SECONDS))
+					.hasCauseInstanceOf(FormatWatchdog.FileTimeoutException.class);
+			}
+		} finally {
+			stop.set(true);
+			callers.close();
+		}
+	}
+
+	@Test
+	public void testStuckFileDoesNotTakeTheOnlyPermit() throws Exception {
+		var stop = new AtomicBoolean();
+		var stuck = new FormatterBackend() {
+			@Override
+			public String getName() {
+				return "Stuck";
+			}
+
+			@Override
+			public String getFingerprint() {
+				return "stuck";
+			}
+
+			@Override
+			public boolean isTouchJBang() {
+				return false;
+			}
+
+			@Override
+			public String format(String content, List<CodeRange> ranges) {
+				return content.equals("stuck") ? spin(stop) : content.strip();
+			}
+		};
+		var single = new FormatService(stuck, 1);
+		var watched = new FormatWatchdog(Duration.ofMillis(200), single);
+		var queue = new ArrayBlockingQueue<String>(8);
+		var formatted = new ConcurrentLinkedQueue<String>();
+		var failed = new ConcurrentLinkedQueue<Exception>();
+
+		var callers = Executors.newVirtualThreadPerTaskExecutor();
+		try {
+			var run = callers.submit(() -> single.process(queue, "done", () -> {
+				queue.add("stuck");
+				queue.add(" ok ");
+				queue.add("done");
+			}, item -> {
+				formatted.add(watched.format(() -> stuck.format(item)));
+				return false;
+			}, (item, e) -> failed.add(e), nanos -> {
+			}));
+
+			assertThat(run.get(10, TimeUnit.SECONDS)).isFalse();
+			assertThat(formatted).containsExactly("ok");
+			assertThat(failed).singleElement().isInstanceOf(FormatWatchdog.FileTimeoutException.class);
+			assertThat(single.getActive()).isZero();
+		} finally {
+			stop.set(true);
+			callers.close();
+		}
+	}
+
+	@Test
+	public void testQuarantineIsKeptAcrossRuns() throws Exception {
+		Path file = tmp.resolve("state/quarantine");
+		var quarantine = Quarantine.load(file);
+		quarantine.add("hash", "src/Stuck.java");
+		quarantine.save();
+
+		var next = Quarantine.load(file);
+
+		assertThat(next.contains("hash")).isTrue();
+		assertThat(next.contains("other")).isFalse();
+		try (var files = Files.list(file.getParent())) {
+			assertThat(files).containsExactly(file);
+		}
+	}
+
+	private static String spin(AtomicBoolean stop) {
+		while (!stop.get()) {
+			Thread.onSpinWait();
+		}
+		return "late";
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,195 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+import picocli.CommandLine;
+
+// JUnit5 Test class for --incremental, run the way build plugins run it: once
+// per module of a fixture project, in the same JVM
+public class testIncrementalState {
+
+	private static final String UNFORMATTED = "class %s{int x;}\n";
+	private static final String FORMATTED = "class %s {\n\tint x;\n}\n";
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testUnchangedModulesAndFilesAreSkipped() throws Exception {
+		Path app = module("app", Map.of("App", UNFORMATTED, "Util", FORMATTED));
+		Path lib = module("lib", Map.of("Lib", FORMATTED));
+
+		ShardReport first = run(app);
+		assertThat(first.processed()).isEqualTo(2);
+		assertThat(first.changed()).isEqualTo(1);
+		assertThat(run(lib).processed()).isEqualTo(1);
+		assertThat(source(app, "App")).hasContent(FORMATTED.formatted("App"));
+
+		// the file just formatted is only known clean once it formats to itself
+		ShardReport second = run(app);
+		assertThat(second.processed()).isEqualTo(1);
+		assertThat(second.changed()).isZero();
+		assertThat(second.upToDate()).isEqualTo(1);
+
+		// nothing changed in either module
+		assertThat(run(app).upToDate()).isEqualTo(2);
+		assertThat(run(lib).upToDate()).isEqualTo(1);
+
+		// only the changed file of a module is formatted
+		Files.writeString(source(app, "Util"), UNFORMATTED.formatted("Util") + "// changed\n");
+		ShardReport changed = run(app);
+		assertThat(changed.processed()).isEqualTo(1);
+		assertThat(changed.changed()).isEqualTo(1);
+		assertThat(changed.upToDate()).isEqualTo(1);
+	}
+
+	@Test
+	public void testOtherSettingsCheckAllFiles() throws Exception {
+		Path lib = module("lib", Map.of("Lib", FORMATTED));
+		run(lib);
+
+		ShardReport report = run(lib, "--indent-with", "space");
+
+		assertThat(report.processed()).isEqualTo(1);
+		assertThat(report.upToDate()).isZero();
+	}
+
+	@Test
+	public void testFormattedContentIsNotTakenAsClean() throws Exception {
+		Path lib = module("lib", Map.of("Lib", FORMATTED));
+		// formats differently every time, as formatters sometimes do
+		var growing = new Main() {
+			@Override
+			FormatterBackend createFormatter(Path style) {
+				return new FormatterBackend() {
+					@Override
+					public String getName() {
+						return "Growing";
+					}
+
+					@Override
+					public String getFingerprint() {
+						return "growing";
+					}
+
+					@Override
+					public boolean isTouchJBang() {
+						return false;
+					}
+
+					@Override
+					public String format(String content, List<CodeRange> ranges) {
+						return content + "\n";
+					}
+				};
+			}
+		};
+		String state = lib.resolve("target/fmt.state").toString();
+		String sources = lib.resolve("src/main/java").toString();
+
+		assertThat(new CommandLine(growing).execute("--incremental", state, sources)).isZero();
+
+		// fails like a plain --check would, it formats differently again
+		assertThat(new CommandLine(growing).execute("--check", "--incremental", state, sources)).isEqualTo(1);
+	}
+
+	@Test
+	public void testDamagedLinesAreChecked() throws Exception {
+		Path app = module("app", Map.of("App", FORMATTED, "Util", FORMATTED));
+		run(app);
+		run(app);
+		Path state = app.resolve("target/fmt.state");
+		List<String> lines = Files.readAllLines(state);
+		// a size that is no number, as left by a hand edit
+		lines.set(lines.size() - 1, "x" + lines.get(lines.size() - 1));
+		Files.write(state, lines);
+
+		ShardReport report = run(app);
+
+		assertThat(report.upToDate()).isEqualTo(1);
+		assertThat(report.processed()).isEqualTo(1);
+	}
+
+	@Test
+	public void testStdoutIsRejected() throws Exception {
+		Path lib = module("lib", Map.of("Lib", FORMATTED));
+
+		int exitCode = new CommandLine(new Main()).setParameterExceptionHandler(new Main.ShortErrorMessageHandler())
+			.execute("--stdout", "--incremental", lib.resolve("target/fmt.state").toString(),
+					lib.resolve("src/main/java").toString());
+
+		assertThat(exitCode).isEqualTo(2);
+	}
+
+	@Test
+	public void testSharedServiceIsKeptPerSettingsUntilEvicted() {
+		var service = FormatService.shared(new JavaFormatter("test", Map.of(), false));
+
+		assertThat(FormatService.shared(new JavaFormatter("test", Map.of(), false))).isSameAs(service);
+		assertThat(FormatService.shared(new JavaFormatter("test", Map.of(), true))).isNotSameAs(service);
+
+		FormatService.evictShared(new JavaFormatter("test", Map.of(), false));
+
+		assertThat(FormatService.shared(new JavaFormatter("test", Map.of(), false))).isNotSameAs(service);
+		FormatService.evictAllShared();
+	}
+
+	private Path module(String name, Map<String, String> classes) throws Exception {
+		Path module = tmp.resolve(name);
+		Files.createDirectories(module.resolve("src/main/java"));
+		for (var e : classes.entrySet()) {
+			Files.writeString(source(module, e.getKey()), e.getValue().formatted(e.getKey()));
+		}
+		return module;
+	}
+
+	private static Path source(Path module, String name) {
+		return module.resolve("src/main/java/" + name + ".java");
+	}
+
+	/**
+	 * Formats a module as its build would, with the state in its build directory.
+	 */
+	private static ShardReport run(Path module, String... extra) throws Exception {
+		Path report = module.resolve("target/fmt-report.json");
+		String[] args = { "--incremental", module.resolve("target/fmt.state").toString(), "--report",
+				report.toString() };
+		args = concat(concat(args, extra), module.resolve("src/main/java").toString());
+
+		assertThat(new CommandLine(new Main()).execute(args)).isZero();
+		return ShardReport.read(report);
+	}
+
+	private static String[] concat(String[] a, String... b) {
+		String[] all = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, all, a.length, b.length);
+		return all;
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
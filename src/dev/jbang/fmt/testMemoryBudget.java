@@ -0,0 +1,162 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for admitting files by estimated memory use
+public class testMemoryBudget {
+
+	@Test
+	public void testOneFileIsAlwaysAdmitted() throws Exception {
+		try (var budget = new MemoryBudget(100)) {
+			budget.acquire(1000);
+			budget.release(1000);
+			budget.acquire(60);
+			budget.acquire(40);
+			assertThat(budget.getWaiting()).isZero();
+		}
+	}
+
+	@Test
+	public void testLargeFilesAreNotOvertaken() throws Exception {
+		try (var budget = new MemoryBudget(100)) {
+			var admitted = new ConcurrentLinkedQueue<String>();
+			budget.acquire(60);
+			var large = CompletableFuture.runAsync(() -> admit(budget, 100, "large", admitted));
+			awaitTrue(() -> budget.getWaiting() == 1);
+			// would fit next to the first, but the large one asked earlier
+			var small = CompletableFuture.runAsync(() -> admit(budget, 10, "small", admitted));
+			awaitTrue(() -> budget.getWaiting() == 2);
+			assertThat(admitted).isEmpty();
+
+			budget.release(60);
+			large.get(10, TimeUnit.SECONDS);
+			assertThat(admitted).containsExactly("large");
+			budget.release(100);
+			small.get(10, TimeUnit.SECONDS);
+			assertThat(admitted).containsExactly("large", "small");
+		}
+	}
+
+	@Test
+	public void testWaitersAreAdmittedTogetherWhenTheyFit() throws Exception {
+		try (var budget = new MemoryBudget(100)) {
+			var admitted = new ConcurrentLinkedQueue<String>();
+			budget.acquire(100);
+			var first = CompletableFuture.runAsync(() -> admit(budget, 30, "first", admitted));
+			awaitTrue(() -> budget.getWaiting() == 1);
+			var second = CompletableFuture.runAsync(() -> admit(budget, 30, "second", admitted));
+			awaitTrue(() -> budget.getWaiting() == 2);
+
+			budget.release(100);
+			// the first admitted signals the second, no other release needed
+			awaitTrue(() -> budget.getWaiting() == 0);
+			CompletableFuture.allOf(first, second).get(10, TimeUnit.SECONDS);
+			// which one notes it first is up to the scheduler
+			assertThat(admitted).containsExactlyInAnyOrder("first", "second");
+		}
+	}
+
+	@Test
+	public void testPreviousThresholdsAreRestored() {
+		Map<MemoryPoolMXBean, Long> before = new HashMap<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+				pool.setCollectionUsageThreshold(1024);
+				before.put(pool, 1024L);
+			}
+		}
+		try {
+			new MemoryBudget(100).close();
+			before.forEach((pool, threshold) -> assertThat(pool.getCollectionUsageThreshold()).isEqualTo(threshold));
+		} finally {
+			before.keySet().forEach(pool -> pool.setCollectionUsageThreshold(0));
+		}
+	}
+
+	@Test
+	public void testFilesWaitForMemoryWithoutACpuPermit() throws Exception {
+		var service = new FormatService(new JavaFormatter("test", Map.of(), false), 2);
+		var queue = new ArrayBlockingQueue<String>(10);
+		List.of("first", "second", "done").forEach(queue::add);
+		var formatting = new CountDownLatch(1);
+		var finish = new CountDownLatch(1);
+
+		try (var budget = new MemoryBudget(100)) {
+			var run = CompletableFuture.runAsync(() -> {
+				try {
+					service.process(queue, "done", () -> {
+					}, item -> {
+						budget.acquire(100);
+						return () -> budget.release(100);
+					}, item -> {
+						formatting.countDown();
+						finish.await();
+						return false;
+					}, (item, e) -> {
+					}, nanos -> {
+					});
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+
+			assertThat(formatting.await(10, TimeUnit.SECONDS)).isTrue();
+			awaitTrue(() -> budget.getWaiting() == 1);
+			// the second file waits for memory, not holding the other permit
+			assertThat(service.getActive()).isEqualTo(1);
+			finish.countDown();
+			run.get(30, TimeUnit.SECONDS);
+		}
+	}
+
+	private static void admit(MemoryBudget budget, long bytes, String name, ConcurrentLinkedQueue<String> admitted) {
+		try {
+			budget.acquire(bytes);
+			admitted.add(name);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertThat(System.nanoTime()).as("waited too long").isLessThan(deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
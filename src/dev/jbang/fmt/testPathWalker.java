@@ -0,0 +1,195 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.jupiter:junit-jupiter-params:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for walking source directories
+public class testPathWalker {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testSequentialWalkIsDepthFirstInNameOrder() throws Exception {
+		touch("b.java", "a/z.java", "a/b/c.java", "a/a.txt", "c/d.java", "a.java");
+
+		List<String> found = new ArrayList<>();
+		new PathWalker(1, p -> p.toString().endsWith(".java")).walk(List.of(tmp),
+				(p, attrs) -> found.add(tmp.relativize(p).toString()));
+
+		assertThat(found).containsExactly("a/b/c.java", "a/z.java", "a.java", "b.java", "c/d.java");
+	}
+
+	@Test
+	public void testParallelWalkFindsTheSameFiles() throws Exception {
+		touch("b.java", "a/z.java", "a/b/c.java", "a/a.txt", "c/d.java", "a.java");
+		Path other = Files.createDirectories(tmp.resolveSibling(tmp.getFileName() + "-other"));
+		Files.writeString(other.resolve("e.java"), "");
+
+		try {
+			var found = new ConcurrentLinkedQueue<String>();
+			new PathWalker(4, p -> p.toString().endsWith(".java")).walk(List.of(tmp, other),
+					(p, attrs) -> found.add(p.getFileName().toString()));
+
+			assertThat(found).containsExactlyInAnyOrder("c.java", "z.java", "a.java", "b.java", "d.java", "e.java");
+		} finally {
+			Files.delete(other.resolve("e.java"));
+			Files.delete(other);
+		}
+	}
+
+	@Test
+	public void testDirectoriesAreListedInParallel() throws Exception {
+		touch("a/a.java", "b/b.java", "c/c.java", "d/d.java");
+		// each listing waits until all four are being listed at once
+		var listing = new CountDownLatch(4);
+
+		var found = new ConcurrentLinkedQueue<Path>();
+		new PathWalker(4, p -> {
+			listing.countDown();
+			try {
+				return listing.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}).walk(List.of(tmp), (p, attrs) -> found.add(p));
+
+		assertThat(found).hasSize(4);
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 1, 4 })
+	public void testMissingDirectoryFailsTheWalk(int parallelism) throws Exception {
+		touch("a/a.java");
+
+		assertThatThrownBy(() -> new PathWalker(parallelism, p -> true).walk(List.of(tmp, tmp.resolve("gone")),
+				(p, attrs) -> {
+				}))
+			.isInstanceOf(NoSuchFileException.class);
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 1, 4 })
+	public void testUnreadableDirectoryFailsTheWalk(int parallelism) throws Exception {
+		touch("a/a.java", "b/b.java");
+		Path unreadable = tmp.resolve("b");
+		Files.setPosixFilePermissions(unreadable, PosixFilePermissions.fromString("-wx------"));
+		try {
+			assumeFalse(Files.isReadable(unreadable), "permissions are not enforced for this user");
+
+			assertThatThrownBy(() -> new PathWalker(parallelism, p -> true).walk(List.of(tmp), (p, attrs) -> {
+			})).isInstanceOf(AccessDeniedException.class);
+		} finally {
+			Files.setPosixFilePermissions(unreadable, PosixFilePermissions.fromString("rwx------"));
+		}
+	}
+
+	@Test
+	public void testFullSinkHoldsBackTheListings() throws Exception {
+		for (int i = 0; i < 200; i++) {
+			touch(String.format("dir%03d/File.java", i));
+		}
+		var queue = new ArrayBlockingQueue<Path>(1);
+		var listed = new AtomicInteger();
+		var walker = new PathWalker(4, p -> {
+			listed.incrementAndGet();
+			return true;
+		});
+
+		var walk = CompletableFuture.runAsync(() -> {
+			try {
+				walker.walk(List.of(tmp), (p, attrs) -> queue.put(p));
+			} catch (IOException | InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(500);
+		// each walker holds one listing, one file went into the queue
+		assertThat(listed).hasValueLessThanOrEqualTo(4 + 1);
+
+		for (int i = 0; i < 200; i++) {
+			assertThat(queue.poll(10, TimeUnit.SECONDS)).isNotNull();
+		}
+		walk.get(10, TimeUnit.SECONDS);
+		assertThat(listed).hasValue(200);
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 1, 4 })
+	public void testLinkedFilesAreReportedOnce(int parallelism) throws Exception {
+		touch("a/A.java", "b/B.java", "outside/C.java", "outside/D.java", "given/E.java");
+		Path a = tmp.resolve("a");
+		Path b = tmp.resolve("b");
+		// to a file the walk finds, in the same root and in another one
+		Files.createSymbolicLink(a.resolve("Same.java"), a.resolve("A.java"));
+		Files.createSymbolicLink(a.resolve("Other.java"), b.resolve("B.java"));
+		// twice to a file outside the roots
+		Files.createSymbolicLink(a.resolve("C1.java"), tmp.resolve("outside/C.java"));
+		Files.createSymbolicLink(b.resolve("C2.java"), tmp.resolve("outside/C.java"));
+		Files.createSymbolicLink(a.resolve("D.java"), tmp.resolve("outside/D.java"));
+		// to a file given directly
+		Files.createSymbolicLink(b.resolve("E.java"), tmp.resolve("given/E.java"));
+
+		var found = new ConcurrentLinkedQueue<Path>();
+		var walker = new PathWalker(parallelism, p -> p.toString().endsWith(".java"));
+		walker.skipLinksTo(tmp.resolve("given/E.java"));
+		walker.walk(List.of(a, b), (p, attrs) -> found.add(p));
+
+		List<Path> reals = new ArrayList<>();
+		for (Path p : found) {
+			reals.add(p.toRealPath());
+		}
+		assertThat(reals).containsExactlyInAnyOrder(a.resolve("A.java").toRealPath(),
+				b.resolve("B.java").toRealPath(), tmp.resolve("outside/C.java").toRealPath(),
+				tmp.resolve("outside/D.java").toRealPath());
+	}
+
+	private void touch(String... paths) throws IOException {
+		for (String path : paths) {
+			Path file = tmp.resolve(path);
+			Files.createDirectories(file.getParent());
+			Files.writeString(file, "");
+		}
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
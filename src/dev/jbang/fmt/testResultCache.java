@@ -0,0 +1,122 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for --cache-dir
+public class testResultCache {
+
+	private static final String FINGERPRINT = ContentHash.of("settings");
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testOnlyObservedResultsAreRecorded() {
+		var cache = new ResultCache(tmp, FINGERPRINT, Long.MAX_VALUE);
+		String content = "class A{}";
+		String formatted = "class A {\n}\n";
+
+		cache.store(ContentHash.of(content), content, formatted);
+		cache.store(ContentHash.of("class B {\n}\n"), "class B {\n}\n", "class B {\n}\n");
+
+		assertThat(cache.lookup(ContentHash.of(content), content)).isEqualTo(formatted);
+		assertThat(cache.lookup(ContentHash.of("class B {\n}\n"), "class B {\n}\n")).isEqualTo("class B {\n}\n");
+		// formatting the result again was never observed
+		assertThat(cache.lookup(ContentHash.of(formatted), formatted)).isNull();
+	}
+
+	@Test
+	public void testTrimRemovesEntriesWithTheirBlobs() throws Exception {
+		var cache = new ResultCache(tmp, FINGERPRINT, 0);
+		cache.store(ContentHash.of("old"), "old", "shared");
+		cache.store(ContentHash.of("older"), "older", "shared");
+		cache.store(ContentHash.of("alone"), "alone", "formatted alone");
+		// old enough to be unused
+		long hourAgo = System.currentTimeMillis() - 60 * 60 * 1000;
+		for (Path f : files()) {
+			Files.setLastModifiedTime(f, FileTime.fromMillis(hourAgo));
+		}
+		Path writing = Files.writeString(tmp.resolve("blobs/.tmp-writing"), "partial");
+		Path abandoned = Files.writeString(tmp.resolve("blobs/.tmp-abandoned"), "partial");
+		Files.setLastModifiedTime(abandoned, FileTime.fromMillis(hourAgo));
+
+		cache.trim();
+
+		assertThat(writing).exists();
+		assertThat(abandoned).doesNotExist();
+		assertThat(files()).isEmpty();
+	}
+
+	@Test
+	public void testTrimKeepsBlobsOfRemainingEntries() throws Exception {
+		var cache = new ResultCache(tmp, FINGERPRINT, Long.MAX_VALUE);
+		cache.store(ContentHash.of("old"), "old", "shared");
+		cache.store(ContentHash.of("new"), "new", "shared");
+		cache.store(ContentHash.of("alone"), "alone", "formatted alone");
+		long hourAgo = System.currentTimeMillis() - 60 * 60 * 1000;
+		for (Path f : files()) {
+			Files.setLastModifiedTime(f, FileTime.fromMillis(hourAgo));
+		}
+		Files.setLastModifiedTime(entry("old"), FileTime.fromMillis(hourAgo - 2000));
+		Files.setLastModifiedTime(entry("alone"), FileTime.fromMillis(hourAgo - 1000));
+		long size = 0;
+		for (Path f : files()) {
+			size += Files.size(f);
+		}
+
+		// room for all but the two least recently used entries
+		new ResultCache(tmp, FINGERPRINT, size - Files.size(entry("old")) - Files.size(entry("alone"))
+				- "formatted alone".length())
+			.trim();
+
+		assertThat(entry("old")).doesNotExist();
+		assertThat(entry("alone")).doesNotExist();
+		assertThat(cache.lookup(ContentHash.of("new"), "new")).isEqualTo("shared");
+		assertThat(files()).hasSize(2);
+	}
+
+	private Path entry(String content) {
+		String hash = ContentHash.of(content);
+		return tmp.resolve(FINGERPRINT.substring(0, 16)).resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	/**
+	 * Entries and blobs in the cache.
+	 */
+	private List<Path> files() throws IOException {
+		try (Stream<Path> files = Files.walk(tmp)) {
+			return files.filter(Files::isRegularFile)
+				.filter(f -> !f.getFileName().toString().startsWith("."))
+				.toList();
+		}
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
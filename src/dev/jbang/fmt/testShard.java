@@ -0,0 +1,136 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for --shard assignment
+public class testShard {
+
+	@TempDir
+	Path tmp;
+
+	private final SourceArchives archives = new SourceArchives();
+
+	@Test
+	public void testEveryFileHasExactlyOneShard() {
+		List<Shard> shards = List.of(Shard.parse("1/3"), Shard.parse("2/3"), Shard.parse("3/3"));
+		for (int i = 0; i < 300; i++) {
+			Path file = Path.of("src", "d" + (i % 7), "F" + i + ".java");
+			assertThat(shards.stream().filter(s -> s.owns(file, archives)).count()).isEqualTo(1);
+		}
+		assertThat(shards).allSatisfy(s -> assertThat(s.getOthers()).isBetween(150L, 250L));
+	}
+
+	@Test
+	public void testAbsoluteAndRelativePathsAgree() {
+		Path relative = Path.of("src", "A.java");
+		assertThat(Shard.key(relative.toAbsolutePath(), List.of(), archives)).isEqualTo("src/A.java");
+		assertThat(Shard.key(Path.of(".", "src", "A.java"), List.of(), archives)).isEqualTo("src/A.java");
+	}
+
+	@Test
+	public void testCheckoutsInDifferentPlacesAgree() throws Exception {
+		// the same sources, given as absolute paths on two CI nodes
+		Path first = Files.createDirectories(tmp.resolve("builds/1/project/src"));
+		Path second = Files.createDirectories(tmp.resolve("home/ci/checkout/src"));
+		Path file = Files.createDirectories(first.resolve("pkg")).resolve("B.java");
+		Files.writeString(file, "class B {}");
+		List<Path> firstRoots = Shard.roots(List.of(first, file));
+		List<Path> secondRoots = Shard.roots(List.of(second));
+
+		assertThat(Shard.key(file, firstRoots, archives)).isEqualTo("pkg/B.java");
+		assertThat(Shard.key(second.resolve("pkg/B.java"), secondRoots, archives)).isEqualTo("pkg/B.java");
+		for (String spec : List.of("1/3", "2/3", "3/3")) {
+			Shard onFirst = Shard.parse(spec).under(firstRoots);
+			Shard onSecond = Shard.parse(spec).under(secondRoots);
+			for (int i = 0; i < 100; i++) {
+				String name = "d" + (i % 7) + "/F" + i + ".java";
+				assertThat(onFirst.owns(first.resolve(name), archives))
+					.isEqualTo(onSecond.owns(second.resolve(name), archives));
+			}
+		}
+	}
+
+	@Test
+	public void testSameNamedFilesGivenDirectlyDiffer() throws Exception {
+		Path a = Files.createDirectories(tmp.resolve("project/a")).resolve("Foo.java");
+		Path b = Files.createDirectories(tmp.resolve("project/b")).resolve("Foo.java");
+		Files.writeString(a, "class Foo {}");
+		Files.writeString(b, "class Foo {}");
+		List<Path> roots = Shard.roots(List.of(a, b));
+
+		assertThat(Shard.key(a, roots, archives)).isEqualTo("a/Foo.java");
+		assertThat(Shard.key(b, roots, archives)).isEqualTo("b/Foo.java");
+		// a single file is still known by its name wherever it is
+		assertThat(Shard.key(a, Shard.roots(List.of(a)), archives)).isEqualTo("Foo.java");
+	}
+
+	@Test
+	public void testInvalidShardsAreRejected() {
+		for (String spec : List.of("0/3", "4/3", "1", "a/b", "1/0")) {
+			assertThatThrownBy(() -> Shard.parse(spec)).isInstanceOf(IllegalArgumentException.class);
+		}
+	}
+
+	@Test
+	public void testBalancedBySize() {
+		List<ShardReport.FileEntry> files = new ArrayList<>();
+		files.add(new ShardReport.FileEntry("big.java", 1000, false));
+		for (int i = 0; i < 10; i++) {
+			files.add(new ShardReport.FileEntry("small" + i + ".java", 100, false));
+		}
+		var report = new ShardReport(null, true, 11, 0, 0, 0, 0, 1.0, files);
+
+		List<Shard> shards = List.of(Shard.parse("1/2").balancedBy(report), Shard.parse("2/2").balancedBy(report));
+		for (Shard shard : shards) {
+			long bytes = files.stream()
+				.filter(f -> shard.owns(Path.of(f.path()), archives))
+				.mapToLong(ShardReport.FileEntry::size)
+				.sum();
+			assertThat(bytes).isEqualTo(1000);
+		}
+	}
+
+	@Test
+	public void testMergeAddsUpShards() {
+		var first = new ShardReport("1/2", true, 3, 1, 0, 2, 0, 2.0,
+				List.of(new ShardReport.FileEntry("b.java", 10, true)));
+		var second = new ShardReport("2/2", true, 4, 2, 1, 0, 1, 3.0,
+				List.of(new ShardReport.FileEntry("a.java", 20, true)));
+
+		var merged = ShardReport.merge(List.of(first, second));
+
+		assertThat(merged.processed()).isEqualTo(7);
+		assertThat(merged.changed()).isEqualTo(3);
+		assertThat(merged.failedVerification()).isEqualTo(1);
+		assertThat(merged.elapsedSeconds()).isEqualTo(3.0);
+		assertThat(merged.files()).extracting(ShardReport.FileEntry::path).containsExactly("a.java", "b.java");
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,179 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+import picocli.CommandLine;
+
+// JUnit5 Test class for ZIP and JAR archives given as sources
+public class testSourceArchives {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testEntriesAreReadInPlace() throws Exception {
+		Path jar = jar();
+
+		try (var archives = new SourceArchives()) {
+			Path root = archives.open(jar);
+			Path entry = root.resolve("com/example/A.java");
+
+			assertThat(archives.isEntry(entry)).isTrue();
+			assertThat(archives.isEntry(jar)).isFalse();
+			assertThat(archives.archiveOf(entry)).isEqualTo(jar);
+			assertThat(archives.displayName(entry)).isEqualTo(jar + "!/com/example/A.java");
+			assertThat(Files.readString(entry)).isEqualTo("class A{}");
+			try (Stream<Path> files = Files.walk(root)) {
+				assertThat(files.filter(f -> f.toString().endsWith(".java")).map(Path::toString))
+					.containsExactlyInAnyOrder("/com/example/A.java", "/com/example/B.java");
+			}
+		}
+	}
+
+	@Test
+	public void testChangedEntriesAreWrittenToACopy() throws Exception {
+		Path jar = jar();
+		byte[] original = Files.readAllBytes(jar);
+
+		try (var archives = new SourceArchives()) {
+			Path root = archives.open(jar);
+			archives.recordChange(root.resolve("com/example/A.java"), bytes("class A {\n}\n"));
+			archives.recordChange(root.resolve("com/example/B.java"), bytes("class B {\n}\n"));
+			archives.writeFormatted();
+		}
+
+		Path copy = tmp.resolve("lib-sources.formatted.jar");
+		assertThat(Files.readAllBytes(jar)).isEqualTo(original);
+		assertThat(tmp.resolve("lib-sources.formatted.jar.changes.tmp")).doesNotExist();
+		try (var in = new ZipFile(jar.toFile()); var out = new ZipFile(copy.toFile())) {
+			assertThat(names(out)).isEqualTo(names(in));
+			assertThat(content(out, "com/example/A.java")).isEqualTo("class A {\n}\n");
+			assertThat(content(out, "com/example/B.java")).isEqualTo("class B {\n}\n");
+			assertThat(content(out, "README.txt")).isEqualTo("read me");
+			assertThat(out.getEntry("com/example/A.java").getMethod()).isEqualTo(ZipEntry.STORED);
+			assertThat(out.getEntry("com/example/B.java").getMethod()).isEqualTo(ZipEntry.DEFLATED);
+		}
+		try (var in = new JarInputStream(Files.newInputStream(copy))) {
+			assertThat(in.getManifest().getMainAttributes().getValue("Created-By")).isEqualTo("test");
+		}
+	}
+
+	@Test
+	public void testUnwrittenChangesLeaveNothingBehind() throws Exception {
+		Path jar = jar();
+
+		try (var archives = new SourceArchives()) {
+			archives.recordChange(archives.open(jar).resolve("com/example/A.java"), bytes("class A {\n}\n"));
+		}
+
+		try (Stream<Path> files = Files.list(tmp)) {
+			assertThat(files).containsExactly(jar);
+		}
+	}
+
+	@Test
+	public void testArchiveSourcesAreFormattedToACopy() throws Exception {
+		Path jar = jar();
+
+		assertThat(new CommandLine(new Main()).execute(jar.toString())).isZero();
+
+		try (var out = new ZipFile(tmp.resolve("lib-sources.formatted.jar").toFile())) {
+			assertThat(content(out, "com/example/A.java")).isEqualTo("class A {\n}");
+		}
+	}
+
+	/**
+	 * A sources jar with a manifest, a stored and a deflated source and a
+	 * resource.
+	 */
+	private Path jar() throws IOException {
+		Path jar = tmp.resolve("lib-sources.jar");
+		var manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		manifest.getMainAttributes().putValue("Created-By", "test");
+		try (var out = new ZipOutputStream(Files.newOutputStream(jar))) {
+			out.putNextEntry(new ZipEntry("META-INF/"));
+			out.closeEntry();
+			out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+			manifest.write(out);
+			out.closeEntry();
+			out.putNextEntry(stored("com/example/A.java", bytes("class A{}")));
+			out.write(bytes("class A{}"));
+			out.closeEntry();
+			out.putNextEntry(new ZipEntry("com/example/B.java"));
+			out.write(bytes("class B{}"));
+			out.closeEntry();
+			out.putNextEntry(new ZipEntry("README.txt"));
+			out.write(bytes("read me"));
+			out.closeEntry();
+		}
+		return jar;
+	}
+
+	private static ZipEntry stored(String name, byte[] content) {
+		var entry = new ZipEntry(name);
+		var crc = new CRC32();
+		crc.update(content);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(content.length);
+		entry.setCompressedSize(content.length);
+		entry.setCrc(crc.getValue());
+		return entry;
+	}
+
+	private static List<String> names(ZipFile zip) {
+		List<String> names = new ArrayList<>();
+		for (ZipEntry e : Collections.list(zip.entries())) {
+			names.add(e.getName());
+		}
+		return names;
+	}
+
+	private static String content(ZipFile zip, String name) throws IOException {
+		try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,84 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for --follow-sources
+public class testSourceGraph {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testSourcesAreFollowedOnceWithGlobs() throws Exception {
+		Path app = Files.createDirectories(tmp.resolve("app/model"));
+		Path other = Files.createDirectories(tmp.resolve("other"));
+		Path main = Files.writeString(tmp.resolve("app/App.java"),
+				"//SOURCES model/*.java ../other/Util.java\nclass App {}\n");
+		Path m = Files.writeString(app.resolve("M.java"), "//SOURCES ../App.java\nclass M {}\n");
+		Path n = Files.writeString(app.resolve("N.java"), "class N {}\n");
+		Path util = Files.writeString(other.resolve("Util.java"), "class Util {}\n");
+		Files.writeString(other.resolve("Unrelated.java"), "class Unrelated {}\n");
+
+		assertThat(walk(main)).containsExactlyInAnyOrder(main, m, n, util);
+	}
+
+	@Test
+	public void testGlobsGoingUpMatch() throws Exception {
+		// like the tests of this repository, which follow ../../../../src/**/*.java
+		Path pkg = Files.createDirectories(tmp.resolve("src/dev/jbang/fmt"));
+		Path other = Files.createDirectories(tmp.resolve("src/dev/other"));
+		Path test = Files.writeString(pkg.resolve("testA.java"),
+				"//SOURCES ../../../../src/**/*.java\nclass testA {}\n");
+		Path a = Files.writeString(pkg.resolve("A.java"), "class A {}\n");
+		Path b = Files.writeString(other.resolve("B.java"), "class B {}\n");
+		Files.writeString(other.resolve("notes.txt"), "not a source\n");
+
+		assertThat(walk(test)).containsExactlyInAnyOrder(test, a, b);
+		// the same with the script given relative to the working directory
+		assertThat(walk(Path.of("").toAbsolutePath().relativize(test))).hasSize(3);
+	}
+
+	@Test
+	public void testCatalogScriptRefsAreEntries() throws Exception {
+		Path script = Files.writeString(tmp.resolve("hello.java"), "class Hello {}\n");
+		Files.writeString(tmp.resolve(SourceGraph.CATALOG),
+				"{\"aliases\": {\"hello\": {\"script-ref\": \"hello.java\"},"
+						+ " \"remote\": {\"script-ref\": \"https://example.com/x.java\"},"
+						+ " \"gav\": {\"script-ref\": \"org.example:tool:1.0\"}}}");
+
+		assertThat(walk(tmp)).containsExactly(script);
+	}
+
+	private static List<Path> walk(Path entry) throws Exception {
+		List<Path> files = new ArrayList<>();
+		SourceGraph.walk(List.of(entry), (file, attrs) -> files.add(file));
+		return files;
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,126 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for formatting .jsh scripts and Markdown code blocks
+public class testSourceKind {
+
+	private final JavaFormatter formatter = new JavaFormatter("test", Map.of(), false);
+
+	@Test
+	public void testKindByExtension() {
+		assertThat(SourceKind.of(Path.of("a/B.java"))).isEqualTo(SourceKind.java);
+		assertThat(SourceKind.of(Path.of("hello.jsh"))).isEqualTo(SourceKind.jsh);
+		assertThat(SourceKind.of(Path.of("README.MD"))).isEqualTo(SourceKind.markdown);
+		assertThat(SourceKind.of(Path.of("build.gradle"))).isNull();
+	}
+
+	@Test
+	public void testJshStatementsAreFormattedAroundImportsAndCommands() throws Exception {
+		String script = "//DEPS a:b:1\nimport java.util.*;\n\nvar l=new ArrayList<String>( );\nl.add( \"x\" );\n/exit\n";
+
+		String formatted = SourceKind.jsh.format(script, formatter);
+
+		assertThat(formatted).isEqualTo(
+				"//DEPS a:b:1\nimport java.util.*;\n\nvar l = new ArrayList<String>();\nl.add(\"x\");\n/exit\n");
+	}
+
+	@Test
+	public void testJshMethodDeclarationsAreFormattedWithTheStatements() throws Exception {
+		String script = "import java.util.*;\n\nvoid hello(String name){System.out.println( \"hi \"+name );}\n"
+				+ "int[] ids={1,2};\nfor(int id:ids){hello( \"\"+id );}\nif(ids.length>1){hello(\"many\");}\n"
+				+ "else{hello(\"one\");}\nrecord P(int x){}\nhello( \"end\" )\n/exit\n";
+
+		String formatted = SourceKind.jsh.format(script, formatter);
+
+		assertThat(formatted).isEqualTo("""
+				import java.util.*;
+
+				void hello(String name) {
+					System.out.println("hi " + name);
+				}
+				int[] ids = {1, 2};
+				for (int id : ids) {
+					hello("" + id);
+				}
+				if (ids.length > 1) {
+					hello("many");
+				} else {
+					hello("one");
+				}
+				record P(int x) {
+				}
+				hello("end")
+				/exit
+				""");
+	}
+
+	@Test
+	public void testJshIsSplitIntoTopLevelStatementsAndDeclarations() {
+		String code = "void f(){g();}\nint[] a={1};\ntry{f();}catch(Exception e){}\ndo{f();}while(false);\nf()";
+
+		assertThat(JavaFormatter.topLevel(code, "21", "21").stream().map(r -> code.substring(r.start(), r.end())))
+			.containsExactly("void f(){g();}", "int[] a={1};", "try{f();}catch(Exception e){}", "do{f();}while(false);",
+					"f()");
+	}
+
+	@Test
+	public void testJshIsScannedAtTheConfiguredLevel() {
+		// the \s escape exists since Java 15
+		String code = "String s=\"a\\sb\";\nf();";
+
+		assertThat(JavaFormatter.topLevel(code, "17", "17")).hasSize(2);
+		assertThat(JavaFormatter.topLevel(code, "1.8", "1.8")).isNull();
+	}
+
+	@Test
+	public void testUnparsableJshIsLeftAlone() throws Exception {
+		String script = "void hello({\nhello( );\n";
+
+		assertThat(SourceKind.jsh.format(script, formatter)).isEqualTo(script);
+	}
+
+	@Test
+	public void testOnlyJavaBlocksOfMarkdownAreFormatted() throws Exception {
+		String doc = "# Title\n\nIt's  text.\n\n```java\nint x=1;\n```\n\n```bash\necho  hi\n```\n\n"
+				+ "- item\n\n  ```java\n  void f(){}\n  ```\n";
+
+		String formatted = SourceKind.markdown.format(doc, formatter);
+
+		assertThat(formatted)
+			.isEqualTo("# Title\n\nIt's  text.\n\n```java\nint x = 1;\n```\n\n```bash\necho  hi\n```\n\n"
+					+ "- item\n\n  ```java\n  void f() {\n  }\n  ```\n");
+	}
+
+	@Test
+	public void testUnclosedAndUnparsableBlocksAreLeftAlone() throws Exception {
+		String doc = "```java\nthis is ... not java {\n```\n\n```java\nint x=1;\n";
+
+		assertThat(SourceKind.markdown.snippets(doc)).hasSize(1);
+		assertThat(SourceKind.markdown.format(doc, formatter)).isEqualTo(doc);
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,73 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for source canonicalization
+public class testSourceRoots {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testNestedAndDuplicateSourcesAreDropped() throws Exception {
+		Path src = Files.createDirectories(tmp.resolve("src"));
+		Path nested = Files.createDirectories(src.resolve("main"));
+		Path file = Files.writeString(nested.resolve("A.java"), "class A {}");
+		Path other = Files.writeString(tmp.resolve("B.java"), "class B {}");
+
+		List<Path> roots = SourceRoots.canonicalize(List.of(file, src, nested, other, src.resolve("."), other),
+				p -> true);
+
+		assertThat(roots).containsExactly(src, other);
+	}
+
+	@Test
+	public void testNestedFilesTheWalkSkipsAreKept() throws Exception {
+		Path src = Files.createDirectories(tmp.resolve("src"));
+		Path java = Files.writeString(src.resolve("A.java"), "class A {}");
+		Path script = Files.writeString(src.resolve("s.jsh"), "int x=1;");
+		Path archive = Files.writeString(src.resolve("lib-sources.jar"), "");
+
+		// the walk only finds .java files, as with the default --kinds
+		List<Path> roots = SourceRoots.canonicalize(List.of(src, java, script, archive),
+				p -> SourceKind.of(p) == SourceKind.java);
+
+		assertThat(roots).containsExactly(src, script, archive);
+	}
+
+	@Test
+	public void testMissingSourcesAreKept() throws Exception {
+		Path missing = tmp.resolve("missing");
+
+		assertThat(SourceRoots.canonicalize(List.of(missing, missing), p -> true)).containsExactly(missing, missing);
+	}
+
+	// Scan the system classpath for tests
+	// Include those found in /cache/jars/ which is where
+	// jbang will by default put them. Adjust as needed.
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
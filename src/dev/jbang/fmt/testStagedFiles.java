@@ -0,0 +1,233 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.jupiter:junit-jupiter-params:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for --staged
+public class testStagedFiles {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testBlobsAreWrittenWithGitIds() throws Exception {
+		Files.createDirectories(tmp.resolve(".git/objects"));
+		Files.writeString(tmp.resolve(".git/HEAD"), "ref: refs/heads/main\n");
+
+		try (var repo = GitRepository.find(tmp.resolve("src"))) {
+			byte[] id = repo.writeBlob("hello\n".getBytes(StandardCharsets.UTF_8));
+
+			assertThat(HexFormat.of().formatHex(id)).isEqualTo("ce013625030ba8dba906f756967f9e9ca394464a");
+			assertThat(new String(repo.readBlob(id), StandardCharsets.UTF_8)).isEqualTo("hello\n");
+			// unborn branch
+			assertThat(repo.headTree()).isEmpty();
+		}
+	}
+
+	@Test
+	public void testFormattingIsMergedAroundUnstagedChanges() {
+		String staged = "class A{\nint x=1;\n}\n\n// end\n";
+		String work = staged + "// unstaged\n";
+		String formatted = "class A {\n\tint x = 1;\n}\n\n// end\n";
+
+		assertThat(StagedFiles.merge(staged, work, formatted)).isEqualTo(formatted + "// unstaged\n");
+	}
+
+	@Test
+	public void testOverlappingUnstagedChangesAreNotMerged() {
+		String staged = "class A{\nint x=1;\n}\n";
+
+		assertThat(StagedFiles.merge(staged, "class A{\nint x=2;\n}\n", "class A {\n\tint x = 1;\n}\n")).isNull();
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 2, 3, 4 })
+	public void testStagedFilesAreFormattedInTheIndex(int version) throws Exception {
+		assumeTrue(hasGit(), "git is not installed");
+		Path work = tmp.toAbsolutePath();
+		git("init", "-q", "-b", "main");
+		write("src/a/A.java", "class A {\n}\n");
+		write("src/a/B.java", "class B{}\n");
+		write("src/b/C.java", "class C{}\n");
+		write("README.md", "read me\n");
+		git("add", ".");
+		git("commit", "-q", "-m", "initial");
+		write("src/a/B.java", "class B{int x;}\n");
+		write("src/b/C.java", "class C{int y;}\n\n// end\n");
+		git("add", "src");
+		// C has an unstaged change on top of the staged one
+		write("src/b/C.java", "class C{int y;}\n\n// end\n// unstaged\n");
+		if (version > 2) {
+			// an intent-to-add entry has extended flags, which need version 3
+			write("src/b/D.java", "class D{}\n");
+			git("add", "-N", "src/b/D.java");
+		}
+		// the cached tree must go, the untracked cache stay
+		git("write-tree");
+		git("update-index", "--untracked-cache");
+		git("status", "--porcelain");
+		git("update-index", "--index-version", Integer.toString(version));
+		assertThat(GitRepository.readInt(Files.readAllBytes(work.resolve(".git/index")), 4)).isEqualTo(version);
+
+		var formatter = new JavaFormatter("test", Map.of(), false);
+		try (var staged = StagedFiles.open(work, true)) {
+			var files = staged.files(List.of(work), EnumSet.of(SourceKind.java));
+			// named relative to the current directory when it holds them
+			assertThat(files.keySet().stream().map(Path::toAbsolutePath))
+				.containsExactly(work.resolve("src/a/B.java"), work.resolve("src/b/C.java"));
+			for (Path file : files.keySet()) {
+				String content = new String(staged.read(file), StandardCharsets.UTF_8);
+				staged.recordChange(file, content, formatter.format(content));
+			}
+			staged.save();
+		}
+
+		byte[] index = Files.readAllBytes(work.resolve(".git/index"));
+		assertThat(GitRepository.readInt(index, 4)).isEqualTo(version);
+		// no path holds the extension signatures
+		assertThat(new String(index, StandardCharsets.ISO_8859_1)).contains("UNTR").doesNotContain("TREE");
+		assertThat(work.resolve(".git/index.lock")).doesNotExist();
+		// git checks the index checksum on every read
+		git("fsck", "--no-progress");
+		assertThat(git("show", ":src/a/B.java")).isEqualTo("class B {\n\tint x;\n}\n");
+		assertThat(git("show", ":src/b/C.java")).isEqualTo("class C {\n\tint y;\n}\n\n// end\n");
+		assertThat(git("diff", "--cached", "--name-only")).isEqualTo("src/a/B.java\nsrc/b/C.java\n");
+		// B's stat data matches the work tree, only C's unstaged change is left
+		assertThat(git("status", "--porcelain"))
+			.isEqualTo("M  src/a/B.java\nMM src/b/C.java\n" + (version > 2 ? " A src/b/D.java\n" : ""));
+		assertThat(git("diff", "src/b/C.java")).contains("+// unstaged");
+		assertThat(Files.readString(work.resolve("src/b/C.java")))
+			.isEqualTo("class C {\n\tint y;\n}\n\n// end\n// unstaged\n");
+	}
+
+	@Test
+	public void testObjectsAreReadFromPacks() throws Exception {
+		assumeTrue(hasGit(), "git is not installed");
+		git("init", "-q", "-b", "main");
+		// versions of a file differing in a line pack as deltas of each other
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			lines.add("line " + i + " of a file long enough to be stored as a delta");
+		}
+		for (int version = 0; version < 5; version++) {
+			lines.set(version * 40, "changed in version " + version);
+			write("dir/file.txt", String.join("\n", lines) + "\n");
+			write("other.txt", "version " + version + "\n");
+			git("add", ".");
+			git("commit", "-q", "-m", "version " + version);
+		}
+		List<String> blobs = git("rev-list", "--objects", "--all").lines()
+			.map(line -> line.split(" ")[0])
+			.filter(id -> git("cat-file", "-t", id).equals("blob\n"))
+			.toList();
+
+		for (String deltaBase : List.of("true", "false")) {
+			// offset deltas by default, ref deltas without
+			git("-c", "repack.useDeltaBaseOffset=" + deltaBase, "repack", "-q", "-a", "-d", "-f");
+			git("prune-packed");
+			assertThat(git("count-objects", "-v")).contains("count: 0\n");
+			assertThat(git("verify-pack", "-v", packIndex().toString())).contains("chain length = 1");
+
+			try (var repo = GitRepository.find(tmp)) {
+				for (String id : blobs) {
+					assertThat(new String(repo.readBlob(HexFormat.of().parseHex(id)), StandardCharsets.UTF_8))
+						.isEqualTo(git("cat-file", "blob", id));
+				}
+				Map<String, String> head = new HashMap<>();
+				repo.headTree().forEach((path, id) -> head.put(path, HexFormat.of().formatHex(id)));
+				assertThat(head).containsOnly(Map.entry("dir/file.txt", git("rev-parse", "HEAD:dir/file.txt").strip()),
+						Map.entry("other.txt", git("rev-parse", "HEAD:other.txt").strip()));
+			}
+		}
+	}
+
+	@Test
+	public void testIndexLockIsExclusive() throws Exception {
+		Path index = tmp.resolve("index");
+		Path lock = GitIndex.lock(index);
+
+		assertThat(lock).exists();
+		assertThatThrownBy(() -> GitIndex.lock(index)).isInstanceOf(IOException.class)
+			.hasMessageContaining("another git process");
+	}
+
+	private void write(String path, String content) throws IOException {
+		Path file = tmp.resolve(path);
+		Files.createDirectories(file.getParent());
+		Files.writeString(file, content);
+	}
+
+	private Path packIndex() throws IOException {
+		try (var files = Files.list(tmp.resolve(".git/objects/pack"))) {
+			return files.filter(f -> f.toString().endsWith(".idx")).findFirst().orElseThrow();
+		}
+	}
+
+	private static boolean hasGit() {
+		try {
+			return new ProcessBuilder("git", "--version").start().waitFor() == 0;
+		} catch (IOException | InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Runs git in the repository, isolated from the user's configuration, and
+	 * returns its output.
+	 */
+	private String git(String... args) {
+		List<String> command = new ArrayList<>(
+				List.of("git", "-c", "user.name=test", "-c", "user.email=test@example.com",
+						"-c", "core.autocrlf=false"));
+		command.addAll(List.of(args));
+		var builder = new ProcessBuilder(command).directory(tmp.toFile()).redirectErrorStream(true);
+		builder.environment().put("GIT_CONFIG_NOSYSTEM", "1");
+		builder.environment().put("GIT_CONFIG_GLOBAL", "/dev/null");
+		builder.environment().remove("GIT_INDEX_FILE");
+		try {
+			Process process = builder.start();
+			String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+			assertThat(process.waitFor()).as("git %s: %s", String.join(" ", args), output).isZero();
+			return output;
+		} catch (IOException | InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,80 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for the line diff used by the language server
+public class testTextDiff {
+
+	@Test
+	public void testSingleChangedLineGivesSingleEdit() {
+		String before = "class A {\n\tint x;\n   void f(){}\n\tint y;\n}\n";
+		String after = "class A {\n\tint x;\n\tvoid f() {\n\t}\n\tint y;\n}\n";
+
+		List<FormatEdit> edits = TextDiff.diff(before, after);
+
+		assertThat(edits).containsExactly(new FormatEdit(18, 14, "\tvoid f() {\n\t}\n"));
+		assertThat(FormatEdit.apply(before, edits)).isEqualTo(after);
+	}
+
+	@Test
+	public void testSeparateChangesStaySeparate() {
+		String before = "a\nB\nc\nd\ne\nF\ng\n";
+		String after = "a\nb\nc\nd\ne\nf\nf2\ng\n";
+
+		List<FormatEdit> edits = TextDiff.diff(before, after);
+
+		assertThat(edits).hasSize(2);
+		assertThat(FormatEdit.apply(before, edits)).isEqualTo(after);
+	}
+
+	@Test
+	public void testEqualTextHasNoEdits() {
+		assertThat(TextDiff.diff("a\nb\n", "a\nb\n")).isEmpty();
+	}
+
+	@Test
+	public void testRandomEditsReproduceTarget() {
+		Random random = new Random(42);
+		for (int run = 0; run < 200; run++) {
+			String before = randomLines(random);
+			String after = randomLines(random);
+			assertThat(FormatEdit.apply(before, TextDiff.diff(before, after))).isEqualTo(after);
+		}
+	}
+
+	private static String randomLines(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int lines = random.nextInt(12);
+		for (int i = 0; i < lines; i++) {
+			sb.append((char) ('a' + random.nextInt(4)));
+			if (i < lines - 1 || random.nextBoolean()) {
+				sb.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}
@@ -0,0 +1,107 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.junit.jupiter:junit-jupiter-engine:5.12.2
+//DEPS org.junit.platform:junit-platform-console:1.12.2
+//DEPS org.assertj:assertj-core:3.25.1
+
+//SOURCES Main.java
+
+package dev.jbang.fmt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.platform.console.ConsoleLauncher;
+
+// JUnit5 Test class for --git-tracked
+public class testTrackedFiles {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	public void testTrackedFilesAreListedFromTheIndex() throws Exception {
+		Path work = tmp.toAbsolutePath();
+		Files.createDirectories(work.resolve(".git"));
+		Files.writeString(work.resolve(".git/HEAD"), "ref: refs/heads/main\n");
+		Files.write(work.resolve(".git/index"),
+				index("README.md", "src/A.java", "src/b/B.java", "test/T.java", "test/T.java.orig"));
+
+		var tracked = TrackedFiles.open(work);
+
+		// files are named relative to the current directory when it holds them
+		var files = tracked.files(List.of(), EnumSet.of(SourceKind.java));
+		assertThat(absolute(files.keySet()))
+			.containsExactly(work.resolve("src/A.java"), work.resolve("src/b/B.java"), work.resolve("test/T.java"));
+		assertThat(tracked.blobId(files.keySet().iterator().next()))
+			.isEqualTo("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391");
+		assertThat(absolute(tracked.files(List.of(work.resolve("src/b"), work.resolve("test/T.java")),
+				EnumSet.of(SourceKind.java))
+			.keySet()))
+			.containsExactly(work.resolve("src/b/B.java"), work.resolve("test/T.java"));
+		assertThat(tracked.files(List.of(work.resolve("sr")), EnumSet.of(SourceKind.java))).isEmpty();
+		// outside the repository, warned about
+		assertThat(tracked.files(List.of(work.resolveSibling("elsewhere")), EnumSet.of(SourceKind.java))).isEmpty();
+	}
+
+	@Test
+	public void testCleanBlobsAreKeptAcrossRuns() throws Exception {
+		Path file = tmp.resolve("state");
+		var state = IncrementalState.load(file, "f");
+		state.recordCleanBlob("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391");
+		state.save();
+
+		var next = IncrementalState.load(file, "f");
+
+		assertThat(next.isCleanBlob("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391")).isTrue();
+		assertThat(next.isCleanBlob("0000000000000000000000000000000000000000")).isFalse();
+	}
+
+	/**
+	 * A version 2 index of empty regular files, in the order given.
+	 */
+	private static byte[] index(String... paths) {
+		var out = new ByteArrayOutputStream();
+		out.writeBytes(new byte[] { 'D', 'I', 'R', 'C', 0, 0, 0, 2 });
+		out.writeBytes(ByteBuffer.allocate(4).putInt(paths.length).array());
+		byte[] emptyBlob = HexFormat.of().parseHex("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391");
+		for (String path : paths) {
+			byte[] name = path.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer entry = ByteBuffer.allocate((62 + name.length + 8) & ~7);
+			entry.position(24);
+			entry.putInt(0100644);
+			entry.position(40);
+			entry.put(emptyBlob);
+			entry.putShort((short) name.length);
+			entry.put(name);
+			out.writeBytes(entry.array());
+		}
+		out.writeBytes(GitRepository.sha1().digest(out.toByteArray()));
+		return out.toByteArray();
+	}
+
+	private static List<Path> absolute(Collection<Path> files) {
+		return files.stream().map(Path::toAbsolutePath).toList();
+	}
+
+	public static void main(final String... args) {
+		String jarsList = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+			.filter(path -> path.contains("/cache/jars/"))
+			.reduce((a, b) -> a + File.pathSeparator + b)
+			.orElse("");
+
+		ConsoleLauncher.main("execute", "--scan-class-path", "-cp", jarsList);
+	}
+}